@@ -0,0 +1,76 @@
+package com.example.hl7fhirconverter.bench;
+
+import com.example.hl7fhirconverter.service.BatchConversionEngine;
+import com.example.hl7fhirconverter.service.ConversionPipeline;
+import com.example.hl7fhirconverter.service.HL7StreamReader;
+import com.example.hl7fhirconverter.service.PartitionedExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of {@link BatchConversionEngine} with lane count: one op is a batch of {@link #BATCH_SIZE}
+ * corpus messages, each rewritten to its own patient (PID-3) so they spread over the lanes. Compare ops/s
+ * across {@code parallelism} values on the target box.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class BatchConversionBenchmark {
+
+    private static final int BATCH_SIZE = 48;
+    private static final String[] CORPUS = {"adt_a04_small", "adt_a01_medium", "adt_a08_large"};
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int parallelism;
+
+    @Param({"true", "false"})
+    public boolean ordered;
+
+    private String batch;
+    private PartitionedExecutor lanes;
+    private BatchConversionEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            sb.append(HL7StreamReader.START_BLOCK)
+                    .append(readCorpus(CORPUS[i % CORPUS.length]).replace("|123456^^^TRINITY^MR", "|" + (100000 + i) + "^^^TRINITY^MR"))
+                    .append(HL7StreamReader.END_BLOCK).append('\r');
+        }
+        batch = sb.toString();
+        lanes = new PartitionedExecutor(parallelism, parallelism * 4, new SimpleMeterRegistry());
+        engine = new BatchConversionEngine(new ConversionPipeline(), lanes, parallelism * 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lanes.shutdown();
+    }
+
+    @Benchmark
+    public int batch(Blackhole bh) throws IOException, InterruptedException {
+        return engine.run(new HL7StreamReader(new StringReader(batch)), ordered, (index, json) -> bh.consume(json));
+    }
+
+    private static String readCorpus(String name) {
+        String path = "/corpus/" + name + ".hl7";
+        try (InputStream in = BatchConversionBenchmark.class.getResourceAsStream(path)) {
+            if (in == null) throw new IllegalArgumentException("Missing corpus message " + path);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
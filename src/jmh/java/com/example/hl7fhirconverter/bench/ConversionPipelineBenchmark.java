@@ -0,0 +1,122 @@
+package com.example.hl7fhirconverter.bench;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hl7fhirconverter.service.BundleNormalizer;
+import com.example.hl7fhirconverter.service.ConversionPipeline;
+import com.example.hl7fhirconverter.service.HL7BundleConverter;
+import com.example.hl7fhirconverter.service.HL7SimpleData;
+import io.github.linuxforhealth.hl7.HL7ToFHIRConverter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each stage of the /api/convert pipeline on its own and end to end, over the ADT corpus in
+ * {@code src/main/resources/corpus}. Run with {@code mvn -Pbenchmark test-compile exec:exec}; the
+ * profile adds {@code -prof gc} so every result also reports bytes allocated per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ConversionPipelineBenchmark {
+
+    @Param({"adt_a04_small", "adt_a01_medium", "adt_a08_large"})
+    public String message;
+
+    private String hl7;
+    private String lfhJson;
+    private HL7SimpleData data;
+    private Bundle converted;
+    private Bundle normalized;
+
+    private HL7ToFHIRConverter lfhConverter;
+    private HL7BundleConverter bundleConverter;
+    private BundleNormalizer normalizer;
+    private FhirContext fhirCtx;
+    private ConversionPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        hl7 = readCorpus(message);
+        lfhConverter = new HL7ToFHIRConverter();
+        bundleConverter = new HL7BundleConverter();
+        normalizer = new BundleNormalizer();
+        fhirCtx = FhirContext.forR4();
+        pipeline = new ConversionPipeline();
+
+        lfhJson = lfhConverter.convert(hl7);
+        data = HL7SimpleData.parse(hl7);
+        converted = bundleConverter.convert(hl7);
+        normalized = normalizer.normalize(bundleConverter.convert(hl7), data);
+    }
+
+    /** LinuxForHealth's own entry point: HL7 in, JSON string out. */
+    @Benchmark
+    public String lfhConvertToJson() {
+        return lfhConverter.convert(hl7);
+    }
+
+    /** The templates driven directly, handing back the in-memory Bundle. */
+    @Benchmark
+    public Bundle convertToBundle() {
+        return bundleConverter.convert(hl7);
+    }
+
+    /** HAPI parse of the converter's JSON, as the controller did before it took Bundles directly. */
+    @Benchmark
+    public Bundle hapiParse() {
+        return (Bundle) fhirCtx.newJsonParser().parseResource(lfhJson);
+    }
+
+    @Benchmark
+    public HL7SimpleData simpleDataParse() {
+        return HL7SimpleData.parse(hl7);
+    }
+
+    /** Normalizes a fresh copy each time since normalize mutates its input; the copy cost is included. */
+    @Benchmark
+    public Bundle normalize() {
+        return normalizer.normalize(converted.copy(), data);
+    }
+
+    /** Baseline for {@link #normalize()}: the copy alone. */
+    @Benchmark
+    public Bundle copyOnly() {
+        return converted.copy();
+    }
+
+    @Benchmark
+    public String encode() {
+        return fhirCtx.newJsonParser().encodeResourceToString(normalized);
+    }
+
+    /** Everything behind POST /api/convert, minus the HTTP layer: convert, normalize, stream-encode. */
+    @Benchmark
+    public void endToEnd() throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+        pipeline.encode(pipeline.convert(hl7), out, false);
+        out.flush();
+    }
+
+    private static String readCorpus(String name) {
+        String path = "/corpus/" + name + ".hl7";
+        try (InputStream in = ConversionPipelineBenchmark.class.getResourceAsStream(path)) {
+            if (in == null) throw new IllegalArgumentException("Missing corpus message " + path);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.hl7fhirconverter.bench;
+
+import com.example.hl7fhirconverter.service.BundleNormalizer;
+import com.example.hl7fhirconverter.service.HL7BundleConverter;
+import com.example.hl7fhirconverter.service.HL7SimpleData;
+import com.example.hl7fhirconverter.service.NormalizationProfiles;
+import com.example.hl7fhirconverter.service.ReferenceDataCache;
+import com.example.hl7fhirconverter.service.TerminologyMaps;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the {@link ReferenceDataCache} saves in {@link BundleNormalizer#normalize}: the same message normalized
+ * with the cache off (every Practitioner, payer and Location built afresh) and on (built once, deep-copied into
+ * each Bundle). Compare ops/s and {@code gc.alloc.rate.norm} between the two {@code referenceCache} values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ReferenceDataBenchmark {
+
+    @Param({"adt_a04_small", "adt_a01_medium", "adt_a08_large"})
+    public String message;
+
+    @Param({"false", "true"})
+    public boolean referenceCache;
+
+    private HL7SimpleData data;
+    private Bundle converted;
+    private BundleNormalizer normalizer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String hl7 = readCorpus(message);
+        data = HL7SimpleData.parse(hl7);
+        converted = new HL7BundleConverter().convert(hl7);
+        ReferenceDataCache cache = referenceCache
+                ? new ReferenceDataCache(new SimpleMeterRegistry(), 10_000, false)
+                : new ReferenceDataCache();
+        normalizer = new BundleNormalizer(Collections.emptyList(), cache, TerminologyMaps.defaults(),
+                NormalizationProfiles.defaults());
+    }
+
+    /** Normalizes a fresh copy each time since normalize mutates its input; the copy cost is included. */
+    @Benchmark
+    public Bundle normalize() {
+        return normalizer.normalize(converted.copy(), data);
+    }
+
+    private static String readCorpus(String name) {
+        String path = "/corpus/" + name + ".hl7";
+        try (InputStream in = ReferenceDataBenchmark.class.getResourceAsStream(path)) {
+            if (in == null) throw new IllegalArgumentException("Missing corpus message " + path);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
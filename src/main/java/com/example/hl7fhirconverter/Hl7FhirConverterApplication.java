@@ -1,11 +1,27 @@
 package com.example.hl7fhirconverter;
 
+import com.example.hl7fhirconverter.service.ConversionMetrics;
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
 
 @SpringBootApplication
 public class Hl7FhirConverterApplication {
     public static void main(String[] args) {
         SpringApplication.run(Hl7FhirConverterApplication.class, args);
     }
+
+    /** sendingFacility comes from the messages themselves; bound how many series it can create. */
+    @Bean
+    MeterFilter hl7FacilityTagLimit(@Value("${converter.metrics.max-facilities:100}") int maxFacilities) {
+        return ConversionMetrics.facilityTagLimit(maxFacilities);
+    }
+
+    /** So does eventCode (MSH-9). */
+    @Bean
+    MeterFilter hl7EventTagLimit(@Value("${converter.metrics.max-event-codes:100}") int maxEventCodes) {
+        return ConversionMetrics.eventTagLimit(maxEventCodes);
+    }
 } 
\ No newline at end of file
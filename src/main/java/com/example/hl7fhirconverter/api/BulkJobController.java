@@ -0,0 +1,155 @@
+package com.example.hl7fhirconverter.api;
+
+import com.example.hl7fhirconverter.service.BulkConversionJob;
+import com.example.hl7fhirconverter.service.BulkJobService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asynchronous bulk conversion jobs, following the FHIR Bulk Data kick-off / status / output pattern:
+ * <ul>
+ *   <li>{@code POST /api/bulk?path=...} (a local file) or {@code POST /api/bulk} with the HL7 as body:
+ *       202 with the status URL in {@code Content-Location}</li>
+ *   <li>{@code GET /api/bulk/{id}}: 202 with an {@code X-Progress} header and the job's progress while it is
+ *       queued or running; 200 with the output manifest once completed; 500 if it failed</li>
+ *   <li>{@code GET /api/bulk/{id}/{file}}: one gzip-compressed NDJSON output file</li>
+ *   <li>{@code DELETE /api/bulk/{id}}: cancels the job and deletes its output</li>
+ * </ul>
+ */
+@RestController
+@RequestMapping("/api/bulk")
+public class BulkJobController {
+
+    private static final MediaType GZIP = MediaType.parseMediaType("application/gzip");
+
+    private final BulkJobService jobs;
+
+    public BulkJobController(BulkJobService jobs) {
+        this.jobs = jobs;
+    }
+
+    /**
+     * Starts a job converting the local file {@code path} (which must be under {@code converter.bulk.input-dirs}),
+     * or, without {@code path}, the request body, which is spooled to disk before the response is sent.
+     */
+    @PostMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> submit(@RequestParam(name = "path", required = false) String path,
+                                                      HttpServletRequest request) throws IOException {
+        BulkConversionJob job;
+        try {
+            if (path != null) {
+                job = jobs.submit(path);
+            } else {
+                if (request.getContentLengthLong() == 0) {
+                    return error(HttpStatus.BAD_REQUEST, "Either a path parameter or an HL7 body is required");
+                }
+                try (InputStream body = request.getInputStream()) {
+                    job = jobs.submit(body);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        URI status = ServletUriComponentsBuilder.fromCurrentRequestUri().path("/{id}").buildAndExpand(job.getId()).toUri();
+        return ResponseEntity.accepted()
+                .header("Content-Location", status.toString())
+                .body(status(job));
+    }
+
+    @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> status(@PathVariable("id") String id) {
+        BulkConversionJob job = jobs.get(id);
+        if (job == null) return error(HttpStatus.NOT_FOUND, "No bulk job " + id);
+        switch (job.getState()) {
+            case COMPLETED:
+                return ResponseEntity.ok(manifest(job));
+            case FAILED:
+                return ResponseEntity.internalServerError().body(status(job));
+            default:
+                return ResponseEntity.accepted()
+                        .header("X-Progress", progress(job))
+                        .header("Retry-After", "5")
+                        .body(status(job));
+        }
+    }
+
+    @GetMapping("/{id}/{file:.+}")
+    public ResponseEntity<Resource> output(@PathVariable("id") String id, @PathVariable("file") String file) {
+        BulkConversionJob job = jobs.get(id);
+        Path path = job == null ? null : job.outputFile(file);
+        if (path == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok().contentType(GZIP).body(new FileSystemResource(path));
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> cancel(@PathVariable("id") String id) throws IOException {
+        return jobs.cancel(id) ? ResponseEntity.accepted().build() : ResponseEntity.notFound().build();
+    }
+
+    private static String progress(BulkConversionJob job) {
+        String s = String.format("%.1f%% (%d messages, %d failed)", job.getProgress() * 100, job.getMessages(),
+                job.getFailed());
+        long eta = job.getEtaSeconds();
+        return eta < 0 ? s : s + ", ETA " + eta + "s";
+    }
+
+    private static Map<String, Object> status(BulkConversionJob job) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", job.getId());
+        m.put("state", job.getState().name());
+        m.put("submitted", job.getSubmitted().toString());
+        if (job.getFinished() != null) m.put("finished", job.getFinished().toString());
+        m.put("progress", job.getProgress());
+        m.put("messages", job.getMessages());
+        m.put("failed", job.getFailed());
+        m.put("resources", job.getResources());
+        m.put("messagesPerSecond", Math.round(job.getMessagesPerSecond() * 10) / 10.0);
+        long eta = job.getEtaSeconds();
+        if (eta >= 0) m.put("etaSeconds", eta);
+        if (job.getError() != null) m.put("error", job.getError());
+        return m;
+    }
+
+    /** The Bulk Data completion manifest, with the job's counters as an extension. */
+    private static Map<String, Object> manifest(BulkConversionJob job) {
+        List<Map<String, Object>> output = new ArrayList<>();
+        List<Map<String, Object>> errors = new ArrayList<>();
+        String base = ServletUriComponentsBuilder.fromCurrentRequestUri().toUriString();
+        job.getOutputFiles().forEach((name, count) -> {
+            Map<String, Object> f = new LinkedHashMap<>();
+            f.put("type", BulkConversionJob.resourceType(name));
+            f.put("url", base + "/" + name);
+            f.put("count", count);
+            (BulkConversionJob.isErrorFile(name) ? errors : output).add(f);
+        });
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("transactionTime", job.getFinished().toString());
+        m.put("request", job.getSource().toString());
+        m.put("requiresAccessToken", false);
+        m.put("output", output);
+        m.put("error", errors);
+        m.put("extension", status(job));
+        return m;
+    }
+
+    private static ResponseEntity<Map<String, Object>> error(HttpStatus status, String message) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", message);
+        return ResponseEntity.status(status).body(body);
+    }
+}
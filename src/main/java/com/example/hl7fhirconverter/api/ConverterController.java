@@ -1,35 +1,183 @@
 package com.example.hl7fhirconverter.api;
 
-import io.github.linuxforhealth.hl7.HL7ToFHIRConverter;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import ca.uhn.fhir.context.FhirContext;
-import com.example.hl7fhirconverter.service.BundleNormalizer;
-import com.example.hl7fhirconverter.service.HL7SimpleData;
+import com.example.hl7fhirconverter.service.BatchConversionEngine;
+import com.example.hl7fhirconverter.service.ConversionAdmission;
+import com.example.hl7fhirconverter.service.ConversionCache;
+import com.example.hl7fhirconverter.service.ConversionPipeline;
+import com.example.hl7fhirconverter.service.DeliveryReceipt;
+import com.example.hl7fhirconverter.service.DuplicateMessageException;
+import com.example.hl7fhirconverter.service.HL7StreamReader;
+import com.example.hl7fhirconverter.service.MessageJournal;
+import com.example.hl7fhirconverter.service.TransactionBundleBuilder;
 
+import jakarta.servlet.http.HttpServletResponse;
 import org.hl7.fhir.r4.model.Bundle;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
 @RestController
 @RequestMapping("/api")
 public class ConverterController {
 
-    private final HL7ToFHIRConverter converter = new HL7ToFHIRConverter();
-    private final FhirContext fhirCtx = FhirContext.forR4();
-    private final BundleNormalizer normalizer = new BundleNormalizer();
+    private static final String MESSAGE = "message";
+    private static final String TRANSACTION = "transaction";
+
+    private final ConversionPipeline pipeline;
+    private final BatchConversionEngine batchEngine;
+    private final ConversionCache cache;
+    private final MessageJournal journal;
+    private final ConversionAdmission admission;
+
+    public ConverterController(ConversionPipeline pipeline, BatchConversionEngine batchEngine, ConversionCache cache,
+                               MessageJournal journal, ConversionAdmission admission) {
+        this.pipeline = pipeline;
+        this.batchEngine = batchEngine;
+        this.cache = cache;
+        this.journal = journal;
+        this.admission = admission;
+    }
 
+    /**
+     * Converts one message and streams the normalized Bundle into the response as it is encoded.
+     * Output is compact JSON unless {@code _pretty=true}. Compact output goes through {@link ConversionCache}
+     * when it is enabled, so a retried message is answered from memory; a miss is still streamed, with a copy
+     * kept for the cache while it stays small, and identical requests arriving meanwhile wait for that copy
+     * instead of converting again. Messages carrying embedded base64 documents are never cached. With the {@link MessageJournal}
+     * enabled the message is on disk before conversion starts, and stays open for replay until the response
+     * has been written. Conversions go through {@link ConversionAdmission}: when too many are already
+     * running and queued, the request is answered at once with 503 and a Retry-After header. Cache hits are
+     * answered before that, so they are never turned away and their latency does not steer the limit.
+     * With {@code bundleType=transaction} the result is a transaction Bundle ({@link TransactionBundleBuilder})
+     * instead of a message Bundle; those are not cached.
+     * A resent message ({@link com.example.hl7fhirconverter.service.MessageDeduplicator}) is answered from the
+     * cache while it is still there, else with 200, {@code X-Duplicate: true} and an informational OperationOutcome.
+     */
     @PostMapping(value = "/convert", consumes = MediaType.TEXT_PLAIN_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> convert(@RequestBody String hl7Message) {
+    public void convert(@RequestBody(required = false) String hl7Message,
+                        @RequestParam(name = "_pretty", defaultValue = "false") boolean pretty,
+                        @RequestParam(name = "bundleType", defaultValue = MESSAGE) String bundleType,
+                        HttpServletResponse response) throws IOException, InterruptedException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
         if (hl7Message == null || hl7Message.isBlank()) {
-            return ResponseEntity.badRequest().body("{\"error\":\"HL7 message is empty\"}");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\":\"HL7 message is empty\"}");
+            return;
+        }
+        if (!validBundleType(bundleType, response)) return;
+        boolean transaction = TRANSACTION.equals(bundleType);
+        // A retry answered from memory costs no conversion: it neither waits for a permit nor steers the limit
+        boolean cacheable = !pretty && !transaction && cache.isEnabled() && !pipeline.hasEmbeddedPayloads(hl7Message);
+        ConversionCache.Flight flight = cacheable ? cache.begin(hl7Message) : null;
+        if (flight != null && !flight.isLeader()) {
+            String cached = flight.await();
+            if (cached != null) {
+                response.getWriter().write(cached);
+                response.flushBuffer();
+                return;
+            }
+            // The identical conversion left nothing to share (too large, failed, duplicate): convert on our own
+            flight = null;
+        }
+        try {
+            ConversionAdmission.Permit permit = admission.acquire(hl7Message.length());
+            if (permit == null) {
+                // Not journaled: the client is told to resend
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", Long.toString(admission.retryAfterSeconds(hl7Message.length())));
+                response.getWriter().write("{\"error\":\"Too many conversions in progress, retry later\"}");
+                return;
+            }
+            boolean released = false;
+            try {
+                long journaled = journal.append(hl7Message);
+                DeliveryReceipt receipt = DeliveryReceipt.NONE;
+                try {
+                    // Convert straight to an in-memory Bundle, normalize, and encode once
+                    Bundle normalized = pipeline.convertIncoming(hl7Message);
+                    receipt = DeliveryReceipt.of(normalized);
+                    if (transaction) normalized = TransactionBundleBuilder.of(normalized);
+                    // Converted: a slow reader on the other end must neither hold the slot nor count as latency
+                    permit.release(true);
+                    released = true;
+                    Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+                    ConversionCache.Capture capture = flight != null ? cache.capture(out) : null;
+                    pipeline.encode(normalized, capture != null ? capture : out, pretty);
+                    out.flush();
+                    // Only a message whose Bundle went out counts as converted: a failed write can be resent
+                    receipt.delivered();
+                    if (capture != null) cache.complete(flight, capture);
+                } catch (DuplicateMessageException e) {
+                    // Converted before and no longer cached: the sender gets an answer, the receiver no second copy
+                    // (not counted as a success: its latency is not a conversion's)
+                    response.setHeader("X-Duplicate", "true");
+                    response.getWriter().write(pipeline.encodeDuplicate(e));
+                } finally {
+                    receipt.abandoned();
+                    // answered, even if with an error: the client knows the outcome, so it is not replayed
+                    journal.done(journaled);
+                }
+            } finally {
+                if (!released) permit.release(false);
+            }
+        } finally {
+            // Whatever happened, requests waiting for this conversion must not wait forever
+            if (flight != null) cache.abandon(flight);
         }
-        String initialJson = converter.convert(hl7Message);
-
-        // Parse, normalize, and re-encode
-        Bundle bundle = (Bundle) fhirCtx.newJsonParser().parseResource(initialJson);
-        HL7SimpleData data = HL7SimpleData.parse(hl7Message);
-        Bundle normalized = normalizer.normalize(bundle, data);
-        String out = fhirCtx.newJsonParser().encodeResourceToString(normalized);
-        return ResponseEntity.ok(out);
     }
-} 
\ No newline at end of file
+
+    /**
+     * Converts a stream of HL7 messages (MLLP-framed or newline-separated) as they are read and writes
+     * one Bundle per line (NDJSON). Messages are converted in parallel; with {@code ordered=true} (the
+     * default) line N of the response corresponds to message N of the request, otherwise lines are
+     * written as soon as each message finishes. A message that fails to convert yields an
+     * OperationOutcome line in its place.
+     * <p>
+     * With {@code bundleType=transaction} each line is a transaction Bundle instead, and {@code merge=N} merges
+     * every N consecutive messages into one transaction, shared resources written once (see
+     * {@link BatchConversionEngine#runTransactions}).
+     */
+    @PostMapping(value = "/convert/batch",
+            consumes = {MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public void convertBatch(InputStream body,
+                             @RequestParam(name = "ordered", defaultValue = "true") boolean ordered,
+                             @RequestParam(name = "bundleType", defaultValue = MESSAGE) String bundleType,
+                             @RequestParam(name = "merge", defaultValue = "1") int merge,
+                             HttpServletResponse response) throws IOException, InterruptedException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        if (!validBundleType(bundleType, response)) return;
+        HL7StreamReader reader = new HL7StreamReader(
+                new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)));
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        BatchConversionEngine.LineSink sink = (index, json) -> {
+            out.write(json);
+            out.write('\n');
+            // push each line to the client as soon as it is ready
+            out.flush();
+        };
+        if (TRANSACTION.equals(bundleType)) {
+            batchEngine.runTransactions(reader, ordered, merge, sink);
+        } else {
+            batchEngine.run(reader, ordered, sink);
+        }
+        out.flush();
+    }
+
+    private static boolean validBundleType(String bundleType, HttpServletResponse response) throws IOException {
+        if (MESSAGE.equals(bundleType) || TRANSACTION.equals(bundleType)) return true;
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.getWriter().write("{\"error\":\"bundleType must be message or transaction\"}");
+        return false;
+    }
+}
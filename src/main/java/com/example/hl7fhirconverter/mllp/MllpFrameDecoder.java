@@ -0,0 +1,83 @@
+package com.example.hl7fhirconverter.mllp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Incremental MLLP frame decoder: {@code 0x0B <payload> 0x1C 0x0D}.
+ * <p>
+ * Feed it whatever bytes the channel produced; it keeps partial frames between calls, so frames may
+ * be split across reads or several may arrive in one read. Bytes outside a frame are ignored.
+ * One decoder per connection.
+ */
+class MllpFrameDecoder {
+
+    static final byte START_BLOCK = 0x0B;
+    static final byte END_BLOCK = 0x1C;
+    static final byte CARRIAGE_RETURN = 0x0D;
+
+    private enum State { OUTSIDE, INSIDE, AFTER_END }
+
+    private final Charset charset;
+    private final int maxFrameBytes;
+    private byte[] frame;
+    private int frameLength;
+    private State state = State.OUTSIDE;
+
+    MllpFrameDecoder(Charset charset, int maxFrameBytes) {
+        this.charset = charset;
+        this.maxFrameBytes = maxFrameBytes;
+        this.frame = new byte[Math.min(8192, maxFrameBytes)];
+    }
+
+    /**
+     * Consumes bytes from {@code in} (between position and limit) until a frame completes.
+     *
+     * @return the decoded payload, or null if {@code in} ran out first
+     * @throws IOException if a frame exceeds the configured maximum size
+     */
+    @SuppressWarnings("fallthrough")
+    String decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            switch (state) {
+                case AFTER_END:
+                    state = State.OUTSIDE;
+                    // the trailing CR is optional in practice; anything else may be the next frame
+                    if (b == CARRIAGE_RETURN) break;
+                    // fall through
+                case OUTSIDE:
+                    if (b == START_BLOCK) {
+                        state = State.INSIDE;
+                        frameLength = 0;
+                    }
+                    break;
+                case INSIDE:
+                    if (b == END_BLOCK) {
+                        state = State.AFTER_END;
+                        return new String(frame, 0, frameLength, charset);
+                    }
+                    if (b == START_BLOCK) {
+                        // sender gave up on the previous frame; start over
+                        frameLength = 0;
+                        break;
+                    }
+                    append(b);
+                    break;
+            }
+        }
+        return null;
+    }
+
+    private void append(byte b) throws IOException {
+        if (frameLength == frame.length) {
+            if (frame.length >= maxFrameBytes) {
+                throw new IOException("MLLP frame exceeds " + maxFrameBytes + " bytes");
+            }
+            frame = Arrays.copyOf(frame, Math.min(frame.length * 2, maxFrameBytes));
+        }
+        frame[frameLength++] = b;
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.hl7fhirconverter.mllp;
+
+import com.example.hl7fhirconverter.service.ConversionPipeline;
+import com.example.hl7fhirconverter.service.DeliveryReceipt;
+import com.example.hl7fhirconverter.service.DuplicateMessageException;
+import com.example.hl7fhirconverter.service.HL7Acknowledgement;
+import com.example.hl7fhirconverter.service.MessageJournal;
+import com.example.hl7fhirconverter.service.PartitionedExecutor;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MLLP (HL7 minimal lower layer protocol) listener that feeds received messages through the same
+ * {@link ConversionPipeline} as the REST API and answers each one with an HL7 ACK: AA once the Bundle
+ * has been built and handed to {@link MllpMessageConvertedEvent} listeners, AE if that failed.
+ * <p>
+ * Conversion and event delivery run in the {@link PartitionedExecutor} lane of the message's patient, so
+ * a patient's events reach listeners in the order they were received, even across connections. With the
+ * {@link MessageJournal} enabled a message is on disk before it is converted and stays open for replay
+ * until the listeners have taken it.
+ * <p>
+ * Each connection is served by its own thread, reading into a direct buffer and decoding frames
+ * incrementally. On Java 21+ those are virtual threads; on older runtimes a cached pool is used.
+ * Enabled with {@code mllp.enabled=true}.
+ */
+@Component
+@ConditionalOnProperty(name = "mllp.enabled", havingValue = "true")
+public class MllpListener implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(MllpListener.class);
+
+    private final ConversionPipeline pipeline;
+    private final PartitionedExecutor lanes;
+    private final MessageJournal journal;
+    private final ApplicationEventPublisher events;
+    private final int port;
+    private final Charset charset;
+    private final int bufferSize;
+    private final int maxMessageBytes;
+
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocketChannel server;
+    private volatile ExecutorService connectionExecutor;
+    private Thread acceptor;
+
+    public MllpListener(ConversionPipeline pipeline,
+                        PartitionedExecutor lanes,
+                        MessageJournal journal,
+                        ApplicationEventPublisher events,
+                        @Value("${mllp.port:2575}") int port,
+                        @Value("${mllp.charset:UTF-8}") String charset,
+                        @Value("${mllp.buffer-size:65536}") int bufferSize,
+                        @Value("${mllp.max-message-bytes:16777216}") int maxMessageBytes) {
+        this.pipeline = pipeline;
+        this.lanes = lanes;
+        this.journal = journal;
+        this.events = events;
+        this.port = port;
+        this.charset = Charset.forName(charset);
+        this.bufferSize = bufferSize;
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    @Override
+    public void start() {
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open MLLP listener on port " + port, e);
+        }
+        connectionExecutor = newConnectionExecutor();
+        acceptor = new Thread(this::acceptLoop, "mllp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("MLLP listener on port {}", port);
+    }
+
+    @Override
+    public void stop() {
+        ServerSocketChannel s = server;
+        server = null;
+        closeQuietly(s);
+        for (SocketChannel ch : connections) closeQuietly(ch);
+        if (connectionExecutor != null) connectionExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return server != null;
+    }
+
+    /** The port actually bound (useful when configured as 0). */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    private void acceptLoop() {
+        while (server != null) {
+            try {
+                SocketChannel ch = server.accept();
+                connections.add(ch);
+                connectionExecutor.execute(() -> serve(ch));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("MLLP accept failed", e);
+            }
+        }
+    }
+
+    private void serve(SocketChannel ch) {
+        ByteBuffer in = ByteBuffer.allocateDirect(bufferSize);
+        MllpFrameDecoder decoder = new MllpFrameDecoder(charset, maxMessageBytes);
+        try (SocketChannel c = ch) {
+            while (c.read(in) != -1) {
+                in.flip();
+                String message;
+                while ((message = decoder.decode(in)) != null) {
+                    writeFrame(c, handle(message));
+                }
+                in.clear();
+            }
+        } catch (ClosedChannelException ignored) {
+            // listener stopping
+        } catch (IOException e) {
+            log.debug("MLLP connection closed: {}", e.getMessage());
+        } finally {
+            connections.remove(ch);
+        }
+    }
+
+    private String handle(String message) {
+        if (message.isBlank() || !message.startsWith("MSH")) {
+            return HL7Acknowledgement.build(message, HL7Acknowledgement.REJECT, "Not an HL7 message");
+        }
+        long journaled = -1;
+        try {
+            journaled = journal.append(message);
+            long sequence = journaled;
+            lanes.submit(PartitionedExecutor.affinityKey(message), () -> {
+                Bundle bundle = pipeline.convertIncoming(message);
+                DeliveryReceipt receipt = DeliveryReceipt.of(bundle);
+                try {
+                    events.publishEvent(new MllpMessageConvertedEvent(this, message, bundle));
+                    journal.done(sequence);
+                    // Not before: if a listener throws, the sender's resend must be converted again
+                    receipt.delivered();
+                } finally {
+                    receipt.abandoned();
+                }
+                return bundle;
+            }).get();
+            return HL7Acknowledgement.build(message, HL7Acknowledgement.ACCEPT, null);
+        } catch (IOException e) {
+            log.warn("MLLP message could not be journaled: {}", e.getMessage());
+            return HL7Acknowledgement.build(message, HL7Acknowledgement.ERROR, "Message could not be stored");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return HL7Acknowledgement.build(message, HL7Acknowledgement.ERROR, "Listener stopping");
+        } catch (ExecutionException | RuntimeException e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof DuplicateMessageException) {
+                // Already converted and delivered: acknowledge so the sender stops resending
+                journal.done(journaled);
+                return HL7Acknowledgement.build(message, HL7Acknowledgement.ACCEPT, cause.getMessage());
+            }
+            log.warn("MLLP message could not be converted: {}", cause.getMessage());
+            // the AE makes the sender retry, so the journal need not
+            journal.done(journaled);
+            return HL7Acknowledgement.build(message, HL7Acknowledgement.ERROR, cause.getMessage());
+        }
+    }
+
+    private void writeFrame(SocketChannel ch, String ack) throws IOException {
+        byte[] payload = ack.getBytes(charset);
+        ByteBuffer out = ByteBuffer.allocateDirect(payload.length + 3);
+        out.put(MllpFrameDecoder.START_BLOCK).put(payload)
+                .put(MllpFrameDecoder.END_BLOCK).put(MllpFrameDecoder.CARRIAGE_RETURN)
+                .flip();
+        while (out.hasRemaining()) ch.write(out);
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            // Java 21+: one virtual thread per connection
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "mllp-conn-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.hl7fhirconverter.mllp;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published for every message received over MLLP that converted successfully, before the ACK is sent.
+ * Downstream delivery hooks in with an {@code @EventListener}; a listener that throws turns the ACK
+ * into an AE so the sender retries.
+ */
+public class MllpMessageConvertedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String hl7Message;
+    private final Bundle bundle;
+
+    public MllpMessageConvertedEvent(Object source, String hl7Message, Bundle bundle) {
+        super(source);
+        this.hl7Message = hl7Message;
+        this.bundle = bundle;
+    }
+
+    public String getHl7Message() {
+        return hl7Message;
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+}
@@ -0,0 +1,304 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Spreads the full per-message pipeline (convert, normalize, encode) over the lanes of a
+ * {@link PartitionedExecutor}, so messages for the same patient are converted in input order.
+ * <p>
+ * The caller's thread reads messages and writes results; only conversion runs in the lanes. At most
+ * {@code queueCapacity} messages per batch are in flight or waiting to be written, so a fast reader
+ * cannot run ahead of the workers (or of a slow client) and fill the heap.
+ */
+@Service
+public class BatchConversionEngine {
+
+    /** Receives encoded results on the thread that called {@link #run}. */
+    public interface LineSink {
+        void accept(int index, String json) throws IOException;
+    }
+
+    /** Receives the results of a {@link Conversion} on the thread that called {@link #run}. */
+    public interface ResultSink<T> {
+        void accept(int index, T result) throws IOException;
+    }
+
+    /** What each lane does with a message; {@link #convert} and {@link #failed} run on lane threads. */
+    public interface Conversion<T> {
+        T convert(int index, String hl7Message);
+
+        /** The result standing in for message {@code index}, which could not be converted. */
+        T failed(int index, String hl7Message, Throwable error);
+
+        /** Called, on any thread, for a result that will not reach the sink because the run was aborted. */
+        default void discard(T result) {
+        }
+    }
+
+    /** An encoded line and the receipt to deliver once it has been written. */
+    private static final class Encoded {
+        final String json;
+        final DeliveryReceipt receipt;
+
+        Encoded(String json, DeliveryReceipt receipt) {
+            this.json = json;
+            this.receipt = receipt;
+        }
+    }
+
+    private static final class Line<T> {
+        final int index;
+        final T result;
+
+        Line(int index, T result) {
+            this.index = index;
+            this.result = result;
+        }
+    }
+
+    private final ConversionPipeline pipeline;
+    private final PartitionedExecutor lanes;
+    private final int queueCapacity;
+
+    public BatchConversionEngine(ConversionPipeline pipeline,
+                                 PartitionedExecutor lanes,
+                                 @Value("${converter.batch.queue-capacity:0}") int queueCapacity) {
+        this.pipeline = pipeline;
+        this.lanes = lanes;
+        this.queueCapacity = queueCapacity > 0 ? queueCapacity : lanes.getLaneCount() * 4;
+    }
+
+    /**
+     * Converts every message from {@code reader}, handing each encoded Bundle (or OperationOutcome for
+     * a failed or duplicate message) to {@code sink}. A message counts as delivered ({@link DeliveryReceipt})
+     * once {@code sink} has returned for its line, so a message whose line could not be written is converted
+     * again when it is resent.
+     *
+     * @param ordered deliver results in input order; otherwise in completion order
+     * @return number of messages read
+     */
+    public int run(HL7StreamReader reader, boolean ordered, LineSink sink) throws IOException, InterruptedException {
+        return run(reader, ordered, new Conversion<Encoded>() {
+            @Override
+            public Encoded convert(int index, String hl7Message) {
+                Bundle bundle = pipeline.convertIncoming(hl7Message);
+                return new Encoded(pipeline.encode(bundle), DeliveryReceipt.of(bundle));
+            }
+
+            @Override
+            public Encoded failed(int index, String hl7Message, Throwable error) {
+                return new Encoded(encodeFailure(index, error), DeliveryReceipt.NONE);
+            }
+
+            @Override
+            public void discard(Encoded line) {
+                line.receipt.abandoned();
+            }
+        }, (index, line) -> write(sink, index, line));
+    }
+
+    /**
+     * Like {@link #run(HL7StreamReader, boolean, LineSink)}, but each line is a transaction Bundle
+     * ({@link TransactionBundleBuilder}). With {@code merge > 1}, every {@code merge} consecutive messages become
+     * one transaction, in input order whatever {@code ordered} says; a failed message still gets its own
+     * OperationOutcome line, and a message with embedded documents its own transaction, each ending the group
+     * before it early so lines stay in input order. The index passed to {@code sink} is that of the last message
+     * in the line.
+     *
+     * @return number of messages read
+     */
+    public int runTransactions(HL7StreamReader reader, boolean ordered, int merge, LineSink sink)
+            throws IOException, InterruptedException {
+        if (merge <= 1) {
+            return run(reader, ordered, new Conversion<Encoded>() {
+                @Override
+                public Encoded convert(int index, String hl7Message) {
+                    Bundle transaction = TransactionBundleBuilder.of(pipeline.convertIncoming(hl7Message));
+                    return new Encoded(pipeline.encode(transaction), DeliveryReceipt.of(transaction));
+                }
+
+                @Override
+                public Encoded failed(int index, String hl7Message, Throwable error) {
+                    return new Encoded(encodeFailure(index, error), DeliveryReceipt.NONE);
+                }
+
+                @Override
+                public void discard(Encoded line) {
+                    line.receipt.abandoned();
+                }
+            }, (index, line) -> write(sink, index, line));
+        }
+        // Merging happens here on the caller's thread, the lanes only convert
+        TransactionBundleBuilder[] group = {new TransactionBundleBuilder()};
+        List<DeliveryReceipt> merged = new ArrayList<>();
+        int[] last = {0};
+        int read;
+        try {
+            read = run(reader, true, new Conversion<Object>() {
+                @Override
+                public Object convert(int index, String hl7Message) {
+                    Bundle message = pipeline.convertIncoming(hl7Message);
+                    if (!TransactionBundleBuilder.hasEmbeddedPayloads(message)) return message;
+                    Bundle transaction = TransactionBundleBuilder.of(message);
+                    return new Encoded(pipeline.encode(transaction), DeliveryReceipt.of(transaction));
+                }
+
+                @Override
+                public Object failed(int index, String hl7Message, Throwable error) {
+                    return new Encoded(encodeFailure(index, error), DeliveryReceipt.NONE);
+                }
+
+                @Override
+                public void discard(Object result) {
+                    if (result instanceof Encoded) ((Encoded) result).receipt.abandoned();
+                    else DeliveryReceipt.of((Bundle) result).abandoned();
+                }
+            }, (index, result) -> {
+                if (result instanceof Encoded) {
+                    // Keep lines in input order: what was merged so far goes out first
+                    if (group[0].size() > 0) {
+                        writeGroup(sink, last[0], group[0], merged);
+                        group[0] = new TransactionBundleBuilder();
+                    }
+                    write(sink, index, (Encoded) result);
+                    return;
+                }
+                Bundle message = (Bundle) result;
+                merged.add(DeliveryReceipt.of(message));
+                group[0].add(message);
+                last[0] = index;
+                if (group[0].size() == merge) {
+                    writeGroup(sink, index, group[0], merged);
+                    group[0] = new TransactionBundleBuilder();
+                }
+            });
+            if (group[0].size() > 0) writeGroup(sink, last[0], group[0], merged);
+        } finally {
+            // Aborted: messages merged into a transaction that was never written
+            for (DeliveryReceipt receipt : merged) receipt.abandoned();
+        }
+        return read;
+    }
+
+    private static void write(LineSink sink, int index, Encoded line) throws IOException {
+        sink.accept(index, line.json);
+        line.receipt.delivered();
+    }
+
+    /** Writes the merged transaction; every message in it has then been delivered. */
+    private void writeGroup(LineSink sink, int index, TransactionBundleBuilder group, List<DeliveryReceipt> receipts)
+            throws IOException {
+        sink.accept(index, pipeline.encode(group.build()));
+        for (DeliveryReceipt receipt : receipts) receipt.delivered();
+        receipts.clear();
+    }
+
+    private String encodeFailure(int index, Throwable error) {
+        if (error instanceof DuplicateMessageException) return pipeline.encodeDuplicate((DuplicateMessageException) error);
+        String reason = error instanceof RuntimeException ? error.getMessage() : error.toString();
+        return pipeline.encodeError("Message " + index + ": " + reason);
+    }
+
+    /**
+     * Runs {@code conversion} on every message from {@code reader} in the lanes, handing each result to
+     * {@code sink}. A message whose conversion throws, or that never ran because the lanes shut down, is
+     * handed over as {@link Conversion#failed}. If {@code reader} or {@code sink} throws, every result not
+     * handed over goes to {@link Conversion#discard} instead, including those still being converted.
+     *
+     * @param ordered deliver results in input order; otherwise in completion order
+     * @return number of messages read
+     */
+    public <T> int run(HL7StreamReader reader, boolean ordered, Conversion<T> conversion, ResultSink<T> sink)
+            throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(queueCapacity);
+        ArrayDeque<CompletableFuture<Line<T>>> inOrder = new ArrayDeque<>();
+        LinkedBlockingQueue<Line<T>> completed = new LinkedBlockingQueue<>();
+        // Unordered: set under the lock on completed once results are no longer taken
+        boolean[] aborted = {false};
+        int submitted = 0;
+        int written = 0;
+
+        try {
+            String hl7Message;
+            while ((hl7Message = reader.next()) != null) {
+                // Full: write something out (blocking if needed) before taking on more work
+                while (!permits.tryAcquire()) {
+                    written += writeNext(ordered, inOrder, completed, conversion, sink, permits, true);
+                }
+                int index = ++submitted;
+                String msg = hl7Message;
+                String affinityKey = PartitionedExecutor.affinityKey(msg);
+                CompletableFuture<Line<T>> f = lanes.submit(affinityKey, () -> convertOne(conversion, index, msg))
+                        .exceptionally(e -> new Line<>(index, conversion.failed(index, msg, e)));
+                if (ordered) {
+                    inOrder.add(f);
+                } else {
+                    f.thenAccept(line -> {
+                        synchronized (completed) {
+                            if (aborted[0]) conversion.discard(line.result);
+                            else completed.add(line);
+                        }
+                    });
+                }
+                // Opportunistically flush whatever is already done
+                while (writeNext(ordered, inOrder, completed, conversion, sink, permits, false) > 0) {
+                    written++;
+                }
+            }
+            while (written < submitted) {
+                written += writeNext(ordered, inOrder, completed, conversion, sink, permits, true);
+            }
+            return submitted;
+        } finally {
+            if (written < submitted) {
+                for (CompletableFuture<Line<T>> f : inOrder) f.thenAccept(line -> conversion.discard(line.result));
+                synchronized (completed) {
+                    aborted[0] = true;
+                    for (Line<T> line : completed) conversion.discard(line.result);
+                    completed.clear();
+                }
+            }
+        }
+    }
+
+    private static <T> int writeNext(boolean ordered, ArrayDeque<CompletableFuture<Line<T>>> inOrder,
+                                     LinkedBlockingQueue<Line<T>> completed, Conversion<T> conversion,
+                                     ResultSink<T> sink, Semaphore permits, boolean block)
+            throws IOException, InterruptedException {
+        Line<T> line;
+        if (ordered) {
+            CompletableFuture<Line<T>> head = inOrder.peek();
+            if (head == null || (!block && !head.isDone())) return 0;
+            line = inOrder.poll().join();
+        } else {
+            line = block ? completed.take() : completed.poll();
+            if (line == null) return 0;
+        }
+        try {
+            sink.accept(line.index, line.result);
+        } catch (IOException | RuntimeException e) {
+            conversion.discard(line.result);
+            throw e;
+        }
+        permits.release();
+        return 1;
+    }
+
+    private static <T> Line<T> convertOne(Conversion<T> conversion, int index, String hl7Message) {
+        try {
+            return new Line<>(index, conversion.convert(index, hl7Message));
+        } catch (RuntimeException e) {
+            return new Line<>(index, conversion.failed(index, hl7Message, e));
+        }
+    }
+}
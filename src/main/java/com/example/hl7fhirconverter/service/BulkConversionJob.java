@@ -0,0 +1,421 @@
+package com.example.hl7fhirconverter.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * One bulk conversion: every message of an HL7 file (MLLP-framed or newline-separated, as for
+ * {@code /api/convert/batch}) converted through the lanes of {@link BatchConversionEngine}, with each resource
+ * of each Bundle appended to the {@link BulkOutputFiles} of its type.
+ * <p>
+ * State lives in the job directory: {@code job.properties} (source, state, times), {@code checkpoint.properties}
+ * (messages done, counters, committed output files) and {@code output/}. Results are written in input order,
+ * so a checkpoint taken after message N covers exactly messages 1..N; a job interrupted by a crash or shutdown
+ * truncates its output back to the last checkpoint and resumes by skipping the first N messages of its source.
+ * Both property files are replaced atomically. Progress getters are safe to call from any thread.
+ */
+public class BulkConversionJob {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkConversionJob.class);
+
+    static final String JOB_FILE = "job.properties";
+    static final String CHECKPOINT_FILE = "checkpoint.properties";
+    static final String OUTPUT_DIR = "output";
+    static final String UPLOAD_FILE = "input.hl7";
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    /** What a lane hands back for one message: its resource lines by type, or an error line. */
+    private static final class Converted {
+        final List<String> keys = new ArrayList<>();
+        final List<String> lines = new ArrayList<>();
+
+        Converted add(String key, String line) {
+            keys.add(key);
+            lines.add(line);
+            return this;
+        }
+    }
+
+    /** Counts bytes taken from the source, for progress and ETA. */
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) bytesRead++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) bytesRead += n;
+            return n;
+        }
+    }
+
+    private final String id;
+    private final Path dir;
+    private final Path source;
+    private final Instant submitted;
+
+    private volatile State state;
+    private volatile Instant finished;
+    private volatile String error;
+    private volatile boolean cancelled;
+    private volatile boolean stopping;
+
+    // Written by the job thread only
+    private volatile long messages;
+    private volatile long failed;
+    private volatile long resources;
+    private volatile long bytesRead;
+    private volatile long totalBytes;
+    /** Processing time of earlier runs, from the checkpoint. */
+    private volatile long previousNanos;
+    private volatile long runStartNanos;
+    private volatile long runStartBytes;
+    private volatile List<BulkOutputFiles.Committed> files = Collections.emptyList();
+
+    private BulkConversionJob(String id, Path dir, Path source, Instant submitted, State state) {
+        this.id = id;
+        this.dir = dir;
+        this.source = source;
+        this.submitted = submitted;
+        this.state = state;
+    }
+
+    /** A new, queued job converting {@code source}; its directory is created. */
+    static BulkConversionJob create(String id, Path dir, Path source) throws IOException {
+        Files.createDirectories(dir);
+        BulkConversionJob job = new BulkConversionJob(id, dir, source, Instant.now(), State.QUEUED);
+        job.saveState();
+        return job;
+    }
+
+    /** The job stored in {@code dir}, with the counters of its last checkpoint. */
+    static BulkConversionJob load(Path dir) throws IOException {
+        Properties p = read(dir.resolve(JOB_FILE));
+        BulkConversionJob job = new BulkConversionJob(dir.getFileName().toString(), dir,
+                Path.of(p.getProperty("source")), Instant.parse(p.getProperty("submitted")),
+                State.valueOf(p.getProperty("state")));
+        String finished = p.getProperty("finished");
+        if (finished != null) job.finished = Instant.parse(finished);
+        job.error = p.getProperty("error");
+        job.loadCheckpoint();
+        return job;
+    }
+
+    /**
+     * Converts the source from the last checkpoint on. Returns when done, failed, cancelled ({@link #cancel}),
+     * or stopped for shutdown ({@link #stop}); a stopped job stays {@code RUNNING} on disk and resumes on
+     * the next start.
+     */
+    void run(BatchConversionEngine engine, ConversionPipeline pipeline, int checkpointMessages,
+             long linesPerFile) {
+        synchronized (this) {
+            if (cancelled || stopping) return;
+            state = State.RUNNING;
+        }
+        try (BulkOutputFiles out = new BulkOutputFiles(dir.resolve(OUTPUT_DIR), linesPerFile)) {
+            saveState();
+            out.restore(files);
+            boolean done = convert(out, engine, pipeline, Math.max(1, checkpointMessages));
+            if (cancelled) return;
+            // Stopped or done, everything written so far is whole messages in input order
+            checkpoint(out);
+            if (!done) {
+                log.info("Bulk job {} stopped after message {}, will resume", id, messages);
+                return;
+            }
+            finish(State.COMPLETED, null);
+            log.info("Bulk job {} completed: {} messages, {} resources, {} failed", id, messages, resources, failed);
+        } catch (IOException | RuntimeException e) {
+            if (cancelled) return;
+            log.warn("Bulk job {} failed after message {}", id, messages, e);
+            finish(State.FAILED, e.toString());
+        }
+    }
+
+    /** @return false if interrupted by {@link #cancel} or {@link #stop} */
+    private boolean convert(BulkOutputFiles out, BatchConversionEngine engine, ConversionPipeline pipeline,
+                            int checkpointMessages) throws IOException {
+        long skip = messages;
+        totalBytes = Files.size(source);
+        bytesRead = 0;
+        try (InputStream in = new CountingInputStream(Files.newInputStream(source));
+             Reader chars = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024)) {
+            HL7StreamReader reader = new HL7StreamReader(chars);
+            for (long i = 0; i < skip; i++) {
+                if (reader.next() == null) break;
+            }
+            runStartNanos = System.nanoTime();
+            runStartBytes = bytesRead;
+            if (skip > 0) log.info("Bulk job {} resuming after message {}", id, skip);
+            engine.run(reader, true, conversion(pipeline, skip), (index, result) -> {
+                if (cancelled || stopping) throw new InterruptedIOException("Bulk job " + id + " interrupted");
+                write(out, result);
+                if (messages % checkpointMessages == 0) checkpoint(out);
+            });
+            return true;
+        } catch (InterruptedIOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private BatchConversionEngine.Conversion<Converted> conversion(ConversionPipeline pipeline, long offset) {
+        return new BatchConversionEngine.Conversion<Converted>() {
+            @Override
+            public Converted convert(int index, String hl7Message) {
+                Converted result = new Converted();
+                try {
+                    pipeline.encodeResources(pipeline.convert(hl7Message), result::add);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return result;
+            }
+
+            @Override
+            public Converted failed(int index, String hl7Message, Throwable e) {
+                String reason = e instanceof RuntimeException ? e.getMessage() : e.toString();
+                String controlId = HL7SimpleData.parse(hl7Message).messageControlId;
+                String diagnostics = "Message " + (offset + index)
+                        + (controlId == null || controlId.isEmpty() ? "" : " (MSH-10 " + controlId + ")")
+                        + ": " + reason;
+                return new Converted().add(BulkOutputFiles.ERRORS, pipeline.encodeError(diagnostics));
+            }
+        };
+    }
+
+    private void write(BulkOutputFiles out, Converted result) throws IOException {
+        int n = result.keys.size();
+        for (int i = 0; i < n; i++) {
+            out.write(result.keys.get(i), result.lines.get(i));
+        }
+        if (n == 1 && BulkOutputFiles.ERRORS.equals(result.keys.get(0))) {
+            failed++;
+        } else {
+            resources += n;
+        }
+        messages++;
+    }
+
+    private void checkpoint(BulkOutputFiles out) throws IOException {
+        List<BulkOutputFiles.Committed> committed = out.commit();
+        Properties p = new Properties();
+        p.setProperty("messages", Long.toString(messages));
+        p.setProperty("failed", Long.toString(failed));
+        p.setProperty("resources", Long.toString(resources));
+        p.setProperty("processingNanos", Long.toString(processingNanos()));
+        for (int i = 0; i < committed.size(); i++) {
+            p.setProperty("file." + i, committed.get(i).format());
+        }
+        write(dir.resolve(CHECKPOINT_FILE), p);
+        files = committed;
+    }
+
+    private void loadCheckpoint() throws IOException {
+        Path path = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) return;
+        Properties p = read(path);
+        messages = Long.parseLong(p.getProperty("messages", "0"));
+        failed = Long.parseLong(p.getProperty("failed", "0"));
+        resources = Long.parseLong(p.getProperty("resources", "0"));
+        previousNanos = Long.parseLong(p.getProperty("processingNanos", "0"));
+        List<BulkOutputFiles.Committed> committed = new ArrayList<>();
+        String entry;
+        while ((entry = p.getProperty("file." + committed.size())) != null) {
+            committed.add(BulkOutputFiles.Committed.parse(entry));
+        }
+        files = committed;
+    }
+
+    private void finish(State state, String error) {
+        this.state = state;
+        this.error = error;
+        this.finished = Instant.now();
+        previousNanos = processingNanos();
+        runStartNanos = 0;
+        try {
+            saveState();
+        } catch (IOException e) {
+            log.warn("Could not record the state of bulk job {}", id, e);
+        }
+    }
+
+    private synchronized void saveState() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("source", source.toString());
+        p.setProperty("submitted", submitted.toString());
+        p.setProperty("state", state.name());
+        if (finished != null) p.setProperty("finished", finished.toString());
+        if (error != null) p.setProperty("error", error);
+        write(dir.resolve(JOB_FILE), p);
+    }
+
+    /**
+     * Asks the job to stop at its next message, or not to start.
+     *
+     * @return true if it was running, in which case it still has its files open
+     */
+    synchronized boolean cancel() {
+        boolean running = state == State.RUNNING;
+        cancelled = true;
+        state = State.CANCELLED;
+        return running;
+    }
+
+    /** Asks the job to stop for shutdown, after committing a checkpoint of what it has written, or not to start. */
+    synchronized void stop() {
+        stopping = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public Instant getSubmitted() {
+        return submitted;
+    }
+
+    /** When the job completed or failed; null before. */
+    public Instant getFinished() {
+        return finished;
+    }
+
+    /** Why the job failed; null unless {@link State#FAILED}. */
+    public String getError() {
+        return error;
+    }
+
+    /** Messages converted (or failed) and written out. */
+    public long getMessages() {
+        return messages;
+    }
+
+    /** Messages that could not be converted, each written as an OperationOutcome line. */
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getResources() {
+        return resources;
+    }
+
+    /** Fraction of the source read, 0..1; 1 once completed. */
+    public double getProgress() {
+        if (state == State.COMPLETED) return 1;
+        long total = totalBytes;
+        return total <= 0 ? 0 : Math.min(1, (double) bytesRead / total);
+    }
+
+    /** Messages per second over the job's processing time, across resumes. */
+    public double getMessagesPerSecond() {
+        long nanos = processingNanos();
+        return nanos <= 0 ? 0 : messages * 1e9 / nanos;
+    }
+
+    /** Estimated seconds to completion from the read rate of the current run; -1 if unknown. */
+    public long getEtaSeconds() {
+        long start = runStartNanos;
+        if (state != State.RUNNING || start == 0) return -1;
+        long read = bytesRead - runStartBytes;
+        long elapsed = System.nanoTime() - start;
+        if (read <= 0 || elapsed <= 0) return -1;
+        return (long) Math.ceil((totalBytes - bytesRead) * (elapsed / 1e9) / read);
+    }
+
+    /** Output files as of the last checkpoint, keyed by name, with the number of lines in each. */
+    public Map<String, Long> getOutputFiles() {
+        Map<String, Long> byName = new LinkedHashMap<>();
+        for (BulkOutputFiles.Committed f : files) byName.put(f.name, f.lines);
+        return byName;
+    }
+
+    /** The resource type in an output file name from {@link #getOutputFiles}; {@code OperationOutcome} for errors. */
+    public static String resourceType(String fileName) {
+        String key = fileName.substring(0, fileName.indexOf('-'));
+        return BulkOutputFiles.ERRORS.equals(key) ? "OperationOutcome" : key;
+    }
+
+    /** True for the error files among {@link #getOutputFiles}. */
+    public static boolean isErrorFile(String fileName) {
+        return fileName.startsWith(BulkOutputFiles.ERRORS + '-');
+    }
+
+    /** The committed output file {@code name}, or null if the job has none by that name. */
+    public Path outputFile(String name) {
+        for (BulkOutputFiles.Committed f : files) {
+            if (f.name.equals(name)) return dir.resolve(OUTPUT_DIR).resolve(name);
+        }
+        return null;
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    private long processingNanos() {
+        long start = runStartNanos;
+        return previousNanos + (start == 0 ? 0 : System.nanoTime() - start);
+    }
+
+    private static Properties read(Path path) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            p.load(in);
+        }
+        return p;
+    }
+
+    private static void write(Path path, Properties p) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            p.store(out, null);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.hl7fhirconverter.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous bulk conversion for backfills too large for one HTTP response: a job converts a local HL7
+ * file, or an upload spooled to disk first, into FHIR Bulk Data style NDJSON files (see
+ * {@link BulkConversionJob}) while the client polls for progress.
+ * <p>
+ * Jobs live under {@code converter.bulk.dir}, one directory each, and run {@code converter.bulk.workers} at a
+ * time (default 1: a job already spreads its messages over all {@link PartitionedExecutor} lanes). Local paths
+ * are only accepted under one of {@code converter.bulk.input-dirs}; with none configured, only uploads are.
+ * On startup, jobs left queued or running by the previous run are resumed from their last checkpoint; on
+ * shutdown, running jobs commit a checkpoint before stopping. Thread-safe.
+ */
+@Service
+public class BulkJobService implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkJobService.class);
+
+    private final BatchConversionEngine engine;
+    private final ConversionPipeline pipeline;
+    private final Path dir;
+    private final List<Path> inputDirs = new ArrayList<>();
+    private final int checkpointMessages;
+    private final long linesPerFile;
+    private final boolean resume;
+    private final ExecutorService workers;
+    private final Map<String, BulkConversionJob> jobs = new ConcurrentHashMap<>();
+
+    public BulkJobService(BatchConversionEngine engine,
+                          ConversionPipeline pipeline,
+                          @Value("${converter.bulk.dir:bulk}") String dir,
+                          @Value("${converter.bulk.input-dirs:}") List<String> inputDirs,
+                          @Value("${converter.bulk.workers:1}") int workers,
+                          @Value("${converter.bulk.checkpoint-messages:10000}") int checkpointMessages,
+                          @Value("${converter.bulk.resources-per-file:100000}") long linesPerFile,
+                          @Value("${converter.bulk.resume:true}") boolean resume) throws IOException {
+        this.engine = engine;
+        this.pipeline = pipeline;
+        this.dir = Paths.get(dir);
+        for (String d : inputDirs) {
+            if (!d.isBlank()) this.inputDirs.add(Paths.get(d.trim()).toAbsolutePath().normalize());
+        }
+        this.checkpointMessages = checkpointMessages;
+        this.linesPerFile = linesPerFile;
+        this.resume = resume;
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread t = new Thread(r, "hl7-bulk-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        load();
+    }
+
+    /** Resumes the jobs the previous run left queued or running. */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!resume) return;
+        jobs.values().stream()
+                .filter(job -> job.getState() == BulkConversionJob.State.QUEUED
+                        || job.getState() == BulkConversionJob.State.RUNNING)
+                .sorted(Comparator.comparing(BulkConversionJob::getSubmitted))
+                .forEach(this::schedule);
+    }
+
+    /**
+     * Queues a job converting the local file {@code path}.
+     *
+     * Both the file and the input directories are compared with symbolic links resolved, so a link inside an
+     * input directory cannot point a job at a file outside them.
+     *
+     * @throws IllegalArgumentException if the file does not exist or is outside {@code converter.bulk.input-dirs}
+     */
+    public BulkConversionJob submit(String path) throws IOException {
+        Path source;
+        try {
+            source = Paths.get(path).toRealPath();
+        } catch (NoSuchFileException e) {
+            // Do not tell whether files outside the input directories exist
+            Path lexical = Paths.get(path).toAbsolutePath().normalize();
+            throw new IllegalArgumentException(inputDirs.stream().anyMatch(lexical::startsWith)
+                    ? "No such file: " + path : "Path is not under converter.bulk.input-dirs: " + path);
+        }
+        if (!underInputDir(source)) {
+            throw new IllegalArgumentException("Path is not under converter.bulk.input-dirs: " + path);
+        }
+        if (!Files.isRegularFile(source)) {
+            throw new IllegalArgumentException("No such file: " + path);
+        }
+        String id = newId();
+        return schedule(BulkConversionJob.create(id, dir.resolve(id), source));
+    }
+
+    private boolean underInputDir(Path realPath) throws IOException {
+        for (Path dir : inputDirs) {
+            // resolved on every call: a directory may be created, or its link repointed, after startup
+            if (!Files.isDirectory(dir)) continue;
+            if (realPath.startsWith(dir.toRealPath())) return true;
+        }
+        return false;
+    }
+
+    /** Spools {@code upload} into a new job directory and queues a job converting it. */
+    public BulkConversionJob submit(InputStream upload) throws IOException {
+        String id = newId();
+        Path jobDir = dir.resolve(id);
+        Files.createDirectories(jobDir);
+        Path source = jobDir.resolve(BulkConversionJob.UPLOAD_FILE).toAbsolutePath();
+        try {
+            Files.copy(upload, source, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            FileSystemUtils.deleteRecursively(jobDir);
+            throw e;
+        }
+        return schedule(BulkConversionJob.create(id, jobDir, source));
+    }
+
+    /** @return the job, or null if there is none with that id */
+    public BulkConversionJob get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancels job {@code id} and deletes its directory, output included; a running job stops at its next message.
+     *
+     * @return false if there is no such job
+     */
+    public boolean cancel(String id) throws IOException {
+        BulkConversionJob job = jobs.remove(id);
+        if (job == null) return false;
+        // A running job's thread still has files open; it deletes the directory once it has stopped
+        if (!job.cancel()) FileSystemUtils.deleteRecursively(job.getDir());
+        return true;
+    }
+
+    /** Lets running jobs commit a checkpoint and stop; queued ones stay queued on disk for the next start. */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (BulkConversionJob job : jobs.values()) job.stop();
+        // Not interrupted: that would close the FileChannels they are writing
+        workers.shutdown();
+        if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Bulk jobs still running at shutdown; they resume from their last checkpoint");
+        }
+    }
+
+    private BulkConversionJob schedule(BulkConversionJob job) {
+        jobs.put(job.getId(), job);
+        workers.execute(() -> {
+            job.run(engine, pipeline, checkpointMessages, linesPerFile);
+            if (job.isCancelled()) {
+                try {
+                    FileSystemUtils.deleteRecursively(job.getDir());
+                } catch (IOException e) {
+                    log.warn("Could not delete the directory of cancelled bulk job {}", job.getId(), e);
+                }
+            }
+        });
+        return job;
+    }
+
+    private void load() throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path jobDir : ds) {
+                if (!Files.exists(jobDir.resolve(BulkConversionJob.JOB_FILE))) continue;
+                try {
+                    BulkConversionJob job = BulkConversionJob.load(jobDir);
+                    jobs.put(job.getId(), job);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Skipping unreadable bulk job in {}", jobDir, e);
+                }
+            }
+        }
+        if (!jobs.isEmpty()) log.info("Found {} bulk jobs in {}", jobs.size(), dir.toAbsolutePath());
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString();
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.hl7fhirconverter.service;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The output directory of a bulk job: one series of gzip-compressed NDJSON files per key (a FHIR resource
+ * type, or {@link #ERRORS}), named {@code <key>-<n>.ndjson.gz} and rolled every {@code linesPerFile} lines.
+ * <p>
+ * {@link #commit} ends the gzip member each open file is writing, forces it to disk and returns the committed
+ * length of every file. Writing resumes in a new member appended to the same file; concatenated members are a
+ * valid gzip stream ({@code zcat}, {@code GZIPInputStream}), so a checkpoint does not cost a file per key.
+ * {@link #restore} truncates the files back to such a commit and deletes any started after it. Not
+ * thread-safe: only the job's thread writes.
+ */
+final class BulkOutputFiles implements Closeable {
+
+    /** Key of the OperationOutcome lines for messages that could not be converted. */
+    static final String ERRORS = "error";
+
+    private static final String SUFFIX = ".ndjson.gz";
+
+    /** A file as of the last {@link #commit}. */
+    static final class Committed {
+        final String name;
+        final String key;
+        final long lines;
+        final long length;
+
+        Committed(String name, String key, long lines, long length) {
+            this.name = name;
+            this.key = key;
+            this.lines = lines;
+            this.length = length;
+        }
+
+        /** {@code name|key|lines|length}, as stored in the job's checkpoint. */
+        String format() {
+            return name + '|' + key + '|' + lines + '|' + length;
+        }
+
+        static Committed parse(String s) {
+            String[] f = s.split("\\|");
+            if (f.length != 4) throw new IllegalArgumentException("Bad output file entry: " + s);
+            return new Committed(f[0], f[1], Long.parseLong(f[2]), Long.parseLong(f[3]));
+        }
+    }
+
+    /** Keeps the gzip member's finish() from closing the file underneath it. */
+    private static final class Unclosable extends FilterOutputStream {
+        Unclosable(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static final class Output {
+        final String name;
+        final String key;
+        final FileChannel channel;
+        long lines;
+        GZIPOutputStream member;
+        Writer writer;
+
+        Output(String name, String key, FileChannel channel, long lines) {
+            this.name = name;
+            this.key = key;
+            this.channel = channel;
+            this.lines = lines;
+        }
+
+        Writer writer() throws IOException {
+            if (writer == null) {
+                member = new GZIPOutputStream(new Unclosable(Channels.newOutputStream(channel)), 64 * 1024);
+                writer = new BufferedWriter(new OutputStreamWriter(member, StandardCharsets.UTF_8), 64 * 1024);
+            }
+            return writer;
+        }
+
+        /** Ends the current member, if any, and forces the file; @return its length */
+        long endMember() throws IOException {
+            if (writer != null) {
+                writer.flush();
+                member.finish();
+                writer = null;
+                member = null;
+            }
+            channel.force(false);
+            return channel.size();
+        }
+    }
+
+    private final Path dir;
+    private final long linesPerFile;
+    /** Every file of the job, in creation order; open ones also in {@link #current}. */
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Committed> committed = new HashMap<>();
+    private final Map<String, Output> current = new HashMap<>();
+    private final Map<String, Integer> fileCounts = new HashMap<>();
+
+    BulkOutputFiles(Path dir, long linesPerFile) throws IOException {
+        this.dir = dir;
+        this.linesPerFile = Math.max(1, linesPerFile);
+        Files.createDirectories(dir);
+    }
+
+    /** Appends {@code line} (one JSON resource, no line break) to the current file for {@code key}. */
+    void write(String key, String line) throws IOException {
+        Output out = current.get(key);
+        if (out != null && out.lines >= linesPerFile) {
+            endFile(out);
+            out = null;
+        }
+        if (out == null) out = newFile(key);
+        Writer w = out.writer();
+        w.write(line);
+        w.write('\n');
+        out.lines++;
+    }
+
+    /** Makes everything written so far durable; @return every file with its committed lines and length */
+    List<Committed> commit() throws IOException {
+        for (Output out : current.values()) {
+            committed.put(out.name, new Committed(out.name, out.key, out.lines, out.endMember()));
+        }
+        List<Committed> all = new ArrayList<>(names.size());
+        for (String name : names) all.add(committed.get(name));
+        return all;
+    }
+
+    /**
+     * Resets the directory to a previous {@link #commit}: files not in it are deleted, the others truncated to
+     * their committed length, and the last file of each key that still has room is reopened for writing.
+     */
+    void restore(List<Committed> files) throws IOException {
+        close();
+        names.clear();
+        committed.clear();
+        current.clear();
+        fileCounts.clear();
+        Set<String> keep = new HashSet<>();
+        for (Committed f : files) keep.add(f.name);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                if (!keep.contains(p.getFileName().toString())) Files.delete(p);
+            }
+        }
+        for (Committed f : files) {
+            names.add(f.name);
+            committed.put(f.name, f);
+            fileCounts.merge(f.key, 1, Integer::sum);
+            FileChannel channel = FileChannel.open(dir.resolve(f.name), StandardOpenOption.WRITE);
+            channel.truncate(f.length);
+            channel.position(f.length);
+            Output previous = current.put(f.key, new Output(f.name, f.key, channel, f.lines));
+            if (previous != null) previous.channel.close();
+        }
+    }
+
+    Path path(String name) {
+        return dir.resolve(name);
+    }
+
+    private Output newFile(String key) throws IOException {
+        int n = fileCounts.merge(key, 1, Integer::sum);
+        String name = key + '-' + n + SUFFIX;
+        FileChannel channel = FileChannel.open(dir.resolve(name),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Output out = new Output(name, key, channel, 0);
+        names.add(name);
+        current.put(key, out);
+        return out;
+    }
+
+    private void endFile(Output out) throws IOException {
+        committed.put(out.name, new Committed(out.name, out.key, out.lines, out.endMember()));
+        out.channel.close();
+        current.remove(out.key);
+    }
+
+    /** Closes the open files without committing; what was written since the last commit may be incomplete. */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Output out : current.values()) {
+            try {
+                out.channel.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
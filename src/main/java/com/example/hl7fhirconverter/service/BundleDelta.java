@@ -0,0 +1,154 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a normalized Bundle with what was last converted for the same patient ({@link PatientStateStore})
+ * and, for update events, leaves out the resources that did not change.
+ * <p>
+ * A resource is identified by its patient (PID-3; Patient only) or patient and visit (PV1-19; everything
+ * else), its type, and its MR identifier, else its first identifier with system and value, plus its position
+ * among the resources of that type sharing it. It is compared by a digest of its JSON without its id and with references
+ * to other entries replaced by their identity, so the per-message ids of a re-sent A08 do not count as a
+ * change. Every delivered message updates the state ({@link DeliveryReceipt}); only update events are reduced:
+ * <ul>
+ *   <li>the MessageHeader and every changed or new resource stay</li>
+ *   <li>a reference to a left-out resource becomes a logical reference ({@code type} + {@code identifier}),
+ *       or, for a resource without identifiers, keeps that resource in the Bundle</li>
+ *   <li>the Bundle is tagged {@code delta} ({@link #TAG_SYSTEM}) so receivers can tell it from a full one</li>
+ * </ul>
+ * Messages without a patient or visit number are neither stored nor reduced.
+ */
+final class BundleDelta {
+
+    static final String TAG_SYSTEM = "urn:hl7-fhir-converter:output";
+    static final String TAG_DELTA = "delta";
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+    private static final FhirTerser TERSER = CTX.newTerser();
+    private static final String MR = "MR";
+
+    private BundleDelta() {
+    }
+
+    /**
+     * Compares {@code bundle} with {@code store} and reduces it to its changes if it is an update event;
+     * {@code receipt} stores its digests once it has been delivered.
+     */
+    static void apply(Bundle bundle, HL7SimpleData data, PatientStateStore store, DeliveryReceipt receipt) {
+        String patient = PartitionedExecutor.affinityKey(data);
+        if (patient == null) return;
+        String visit = patient + '|' + (data.visitNumber == null ? "" : data.visitNumber);
+
+        // Identity of every entry, by fullUrl and Type/id, for the references
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        String[] slots = new String[entries.size()];
+        Map<String, Integer> byFullUrl = new HashMap<>();
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (int i = 0; i < slots.length; i++) {
+            Resource resource = entries.get(i).getResource();
+            if (resource == null) continue;
+            String type = resource.fhirType();
+            Identifier id = identity(resource);
+            String slot = id != null ? type + '|' + id.getSystem() + '|' + id.getValue() : type;
+            // Resources sharing an identifier (OBX segments of one OBR, for one) are told apart by position
+            int n = ordinals.merge(slot, 1, Integer::sum);
+            slots[i] = id != null && n == 1 ? slot : slot + '#' + n;
+            if (entries.get(i).hasFullUrl()) byFullUrl.put(entries.get(i).getFullUrl(), i);
+            if (resource.hasIdElement()) byFullUrl.put(type + '/' + resource.getIdElement().getIdPart(), i);
+        }
+
+        IParser parser = CTX.newJsonParser().setOmitResourceId(true);
+        long[] keys = new long[slots.length];
+        long[] digests = new long[slots.length];
+        int[] entryOf = new int[slots.length];
+        int compared = 0;
+        for (int i = 0; i < slots.length; i++) {
+            Resource resource = entries.get(i).getResource();
+            if (resource == null || resource.getResourceType() == ResourceType.MessageHeader) continue;
+            String scope = resource.getResourceType() == ResourceType.Patient ? patient : visit;
+            String json = parser.encodeResourceToString(resource);
+            for (Map.Entry<String, Integer> e : byFullUrl.entrySet()) {
+                if (json.contains(e.getKey())) json = json.replace(e.getKey(), slots[e.getValue()]);
+            }
+            keys[compared] = ConversionCache.ContentKey.hash64(scope + '|' + slots[i]);
+            digests[compared] = ConversionCache.ContentKey.hash64(json);
+            entryOf[compared++] = i;
+        }
+        keys = Arrays.copyOf(keys, compared);
+        digests = Arrays.copyOf(digests, compared);
+        boolean[] same = store.compare(keys, digests);
+        receipt.commitState(store, keys, digests);
+        if (!store.isDeltaEvent(data.messageType)) return;
+
+        boolean[] unchanged = new boolean[slots.length];
+        int dropped = 0;
+        for (int j = 0; j < compared; j++) {
+            if (!same[j]) continue;
+            unchanged[entryOf[j]] = true;
+            dropped++;
+        }
+
+        // Left-out resources without an identifier that a kept one refers to must stay after all
+        boolean grew = dropped > 0;
+        while (grew) {
+            grew = false;
+            for (int i = 0; i < slots.length; i++) {
+                if (unchanged[i] || entries.get(i).getResource() == null) continue;
+                for (Reference ref : TERSER.getAllPopulatedChildElementsOfType(entries.get(i).getResource(), Reference.class)) {
+                    Integer target = byFullUrl.get(ref.getReference());
+                    if (target != null && unchanged[target] && identity(entries.get(target).getResource()) == null) {
+                        unchanged[target] = false;
+                        dropped--;
+                        grew = true;
+                    }
+                }
+            }
+        }
+        if (dropped > 0) {
+            for (int i = 0; i < slots.length; i++) {
+                if (unchanged[i] || entries.get(i).getResource() == null) continue;
+                for (Reference ref : TERSER.getAllPopulatedChildElementsOfType(entries.get(i).getResource(), Reference.class)) {
+                    Integer target = byFullUrl.get(ref.getReference());
+                    if (target == null || !unchanged[target]) continue;
+                    Resource resource = entries.get(target).getResource();
+                    ref.setReference(null);
+                    ref.setType(resource.fhirType());
+                    ref.setIdentifier(identity(resource).copy());
+                }
+            }
+            int i = 0;
+            for (Iterator<Bundle.BundleEntryComponent> it = entries.iterator(); it.hasNext(); i++) {
+                it.next();
+                if (unchanged[i]) it.remove();
+            }
+        }
+        store.count(slots.length - dropped, dropped);
+        bundle.getMeta().addTag(TAG_SYSTEM, TAG_DELTA, "Changed resources only");
+    }
+
+    /** The MR identifier, else the first with system and value; null if there is none. */
+    private static Identifier identity(Resource resource) {
+        if (CTX.getResourceDefinition(resource).getChildByName("identifier") == null) return null;
+        Identifier first = null;
+        for (Identifier id : TERSER.getValues(resource, "identifier", Identifier.class)) {
+            if (!id.hasSystem() || !id.hasValue()) continue;
+            if (id.getType().getCoding().stream().anyMatch(c -> MR.equals(c.getCode()))) return id;
+            if (first == null) first = id;
+        }
+        return first;
+    }
+}
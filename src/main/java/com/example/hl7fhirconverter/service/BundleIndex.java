@@ -0,0 +1,153 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup view over a Bundle for the duration of one {@link BundleNormalizer#normalize} call: entries by
+ * resource type (in bundle order) and by business identifier, so each step does a map lookup instead
+ * of walking {@code getEntry()} again.
+ * <p>
+ * Built once from the bundle; resources must then be added through {@link #add}/{@link #addFirst}, and
+ * identifier changes bracketed by {@link #unindexIdentifiers}/{@link #indexIdentifiers}, for the index
+ * to stay in step with the bundle. Not thread-safe (one per normalize call).
+ */
+final class BundleIndex {
+
+    private static final int IDENTIFIER_HASH = "identifier".hashCode();
+
+    private final Bundle bundle;
+    private final Map<ResourceType, List<Resource>> byType = new EnumMap<>(ResourceType.class);
+    /** type/system|value, for identifiers with a system */
+    private final Map<String, List<Resource>> bySystemValue = new HashMap<>();
+    /** type/value, regardless of system */
+    private final Map<String, List<Resource>> byValue = new HashMap<>();
+
+    BundleIndex(Bundle bundle) {
+        this.bundle = bundle;
+        for (Bundle.BundleEntryComponent e : bundle.getEntry()) {
+            Resource r = e.getResource();
+            if (r == null) continue;
+            byType.computeIfAbsent(r.getResourceType(), t -> new ArrayList<>()).add(r);
+            indexIdentifiers(r);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends Resource> List<T> ofType(ResourceType type) {
+        List<Resource> list = byType.get(type);
+        return list == null ? Collections.emptyList() : (List<T>) Collections.unmodifiableList(list);
+    }
+
+    /** First resource of {@code type} in bundle order, or null. */
+    @SuppressWarnings("unchecked")
+    <T extends Resource> T first(ResourceType type) {
+        List<Resource> list = byType.get(type);
+        return list == null || list.isEmpty() ? null : (T) list.get(0);
+    }
+
+    boolean has(ResourceType type) {
+        return first(type) != null;
+    }
+
+    /**
+     * First resource of {@code type} carrying the identifier, or null.
+     *
+     * @param system identifier system, or null to match the value under any system
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Resource> T findByIdentifier(ResourceType type, String system, String value) {
+        if (value == null) return null;
+        List<Resource> list = system == null
+                ? byValue.get(valueKey(type, value))
+                : bySystemValue.get(systemValueKey(type, system, value));
+        return list == null || list.isEmpty() ? null : (T) list.get(0);
+    }
+
+    /** Appends {@code r} to the bundle with a {@code urn:uuid:} fullUrl built from its id. */
+    Bundle.BundleEntryComponent add(Resource r) {
+        Bundle.BundleEntryComponent e = bundle.addEntry()
+                .setFullUrl("urn:uuid:" + r.getIdElement().getIdPart())
+                .setResource(r);
+        byType.computeIfAbsent(r.getResourceType(), t -> new ArrayList<>()).add(r);
+        indexIdentifiers(r);
+        return e;
+    }
+
+    /** As {@link #add}, but as the first entry of the bundle. */
+    Bundle.BundleEntryComponent addFirst(Resource r) {
+        Bundle.BundleEntryComponent e = new Bundle.BundleEntryComponent()
+                .setFullUrl("urn:uuid:" + r.getIdElement().getIdPart())
+                .setResource(r);
+        bundle.getEntry().add(0, e);
+        byType.computeIfAbsent(r.getResourceType(), t -> new ArrayList<>()).add(0, r);
+        indexIdentifiers(r);
+        return e;
+    }
+
+    /** Drops {@code r} from the identifier lookups; call before changing its identifiers. */
+    void unindexIdentifiers(Resource r) {
+        for (Identifier id : identifiers(r)) {
+            if (!id.hasValue()) continue;
+            remove(byValue, valueKey(r.getResourceType(), id.getValue()), r);
+            if (id.hasSystem()) {
+                remove(bySystemValue, systemValueKey(r.getResourceType(), id.getSystem(), id.getValue()), r);
+            }
+        }
+    }
+
+    /** Adds {@code r} to the identifier lookups under its current identifiers. */
+    void indexIdentifiers(Resource r) {
+        for (Identifier id : identifiers(r)) {
+            if (!id.hasValue()) continue;
+            byValue.computeIfAbsent(valueKey(r.getResourceType(), id.getValue()), k -> new ArrayList<>(1)).add(r);
+            if (id.hasSystem()) {
+                bySystemValue.computeIfAbsent(systemValueKey(r.getResourceType(), id.getSystem(), id.getValue()),
+                        k -> new ArrayList<>(1)).add(r);
+            }
+        }
+    }
+
+    /** The {@code identifier} element(s) of any resource type; empty for types without one. */
+    static List<Identifier> identifiers(Resource r) {
+        // Generated switch on the property hash; null for resource types without an identifier element
+        Base[] values = r.getProperty(IDENTIFIER_HASH, "identifier", false);
+        if (values == null || values.length == 0) return Collections.emptyList();
+        List<Identifier> ids = new ArrayList<>(values.length);
+        for (Base b : values) {
+            if (b instanceof Identifier) ids.add((Identifier) b);
+        }
+        return ids;
+    }
+
+    private static void remove(Map<String, List<Resource>> map, String key, Resource r) {
+        List<Resource> list = map.get(key);
+        if (list == null) return;
+        // identity, not equalsDeep: two Practitioners with the same content are still two entries
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == r) {
+                list.remove(i);
+                break;
+            }
+        }
+        if (list.isEmpty()) map.remove(key);
+    }
+
+    private static String valueKey(ResourceType type, String value) {
+        return type.name() + '/' + value;
+    }
+
+    private static String systemValueKey(ResourceType type, String system, String value) {
+        return type.name() + '/' + system + '|' + value;
+    }
+}
@@ -1,23 +1,70 @@
 package com.example.hl7fhirconverter.service;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.InstantType;
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeParseException;
-import java.util.Iterator;
-import java.util.UUID;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Minimal post-processing to make the LinuxForHealth HL7→FHIR output pass a strict validator.
  * The rules implemented here are ONLY the ones highlighted by the user feedback.
+ * Per-entry fixes are {@link NormalizationRule}s run in a single pass at the end of {@link #normalize}.
+ * Site details (identifier systems, assigner, placeholders, fixed codings) come from the sending facility's
+ * {@link NormalizationProfile}.
+ * Stateless (all work happens on the Bundle passed in), so one instance can be shared across threads.
  */
 public class BundleNormalizer {
 
+    private static final FhirTerser TERSER = FhirContext.forR4Cached().newTerser();
+    /** PID-16 code system, the source side of the marital-status map */
+    private static final String V2_MARITAL_STATUS = "http://terminology.hl7.org/CodeSystem/v2-0002";
+
+    private final NormalizationRuleEngine rules;
+    private final ReferenceDataCache referenceData;
+    private final TerminologyMaps.Table encounterClass;
+    private final TerminologyMaps.Table maritalStatus;
+    private final NormalizationProfiles profiles;
+
+    /** Built-in rules, code mappings and profile only, no reference-data cache. */
+    public BundleNormalizer() {
+        this(Collections.emptyList(), new ReferenceDataCache(), TerminologyMaps.defaults(),
+                NormalizationProfiles.defaults());
+    }
+
+    /** Built-in rules followed by {@code extraRules}. */
+    public BundleNormalizer(List<? extends NormalizationRule> extraRules, ReferenceDataCache referenceData,
+                            TerminologyMaps terminology, NormalizationProfiles profiles) {
+        List<NormalizationRule> all = new ArrayList<>(DefaultNormalizationRules.all(terminology, profiles));
+        all.addAll(extraRules);
+        this.rules = new NormalizationRuleEngine(all);
+        this.referenceData = referenceData;
+        this.encounterClass = terminology.get(TerminologyMaps.ENCOUNTER_CLASS);
+        this.maritalStatus = terminology.get(TerminologyMaps.MARITAL_STATUS);
+        this.profiles = profiles;
+    }
+
+    public NormalizationRuleEngine getRuleEngine() {
+        return rules;
+    }
+
     public Bundle normalize(Bundle bundle, HL7SimpleData data) {
+        return normalize(bundle, data, DeliveryReceipt.NONE);
+    }
+
+    /**
+     * {@link #normalize(Bundle, HL7SimpleData)} for an incoming message whose Bundle will be confirmed through
+     * {@code receipt}; only such Bundles leave out reference data already sent ({@link ReferenceDataCache}).
+     */
+    Bundle normalize(Bundle bundle, HL7SimpleData data, DeliveryReceipt receipt) {
         if (bundle == null) return null;
 
         // Ensure bundle type message and prepend MessageHeader
@@ -26,36 +73,40 @@ public class BundleNormalizer {
         }
 
         // Add Bundle timestamp if missing
-        if (!bundle.hasTimestamp() && data != null && data.messageDateTime != null && data.messageDateTime.length()>=14) {
-            try {
-                java.util.Date ts = new java.text.SimpleDateFormat("yyyyMMddHHmmss").parse(data.messageDateTime);
-                bundle.setTimestamp(ts);
-            } catch(Exception ignored){}
+        if (!bundle.hasTimestamp() && data != null) {
+            InstantType ts = HL7DateTime.parseInstant(data.messageDateTime);
+            if (ts != null) bundle.setTimestampElement(ts);
+        }
+        // The converter stamps meta.lastUpdated with the wall clock; take it from the message like the timestamp
+        if (bundle.hasTimestamp()) {
+            bundle.getMeta().setLastUpdatedElement(bundle.getTimestampElement().copy());
+        } else {
+            bundle.getMeta().setLastUpdatedElement(null);
         }
 
         // Bundle meta profile
         bundle.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-bundle");
 
+        // One pass over the entries; every lookup and addition below goes through the index
+        BundleIndex index = new BundleIndex(bundle);
+        NormalizationProfile profile = profiles.select(data);
+
+        // Stable ids derived from MSH-10, also for the resources the converter templates gave random ids
+        ResourceIdGenerator ids = new ResourceIdGenerator(data);
+        rekeyConverterIds(bundle, ids);
+
         Bundle.BundleEntryComponent headerReference = null;
         if (data != null && data.eventCode != null) {
             // create MessageHeader if not present
-            boolean hasHeader = bundle.getEntry().stream()
-                    .anyMatch(e -> e.getResource() instanceof org.hl7.fhir.r4.model.MessageHeader);
-            if (!hasHeader) {
+            if (!index.has(ResourceType.MessageHeader)) {
                 org.hl7.fhir.r4.model.MessageHeader mh = new org.hl7.fhir.r4.model.MessageHeader();
-                mh.setId(IdType.newRandomUuid());
+                mh.setId(ids.nextUrn("MessageHeader", null));
                 Coding ev = new Coding();
                 ev.setSystem("http://hl7.org/fhir/message-events");
                 ev.setCode(data.eventCode != null ? data.eventCode.replace('^','_') : "ADT_A04");
                 mh.setEvent(ev);
 
-                // Timestamp
-                if (data.messageDateTime != null && data.messageDateTime.length() >= 14) {
-                    try {
-                        java.util.Date dt = new java.text.SimpleDateFormat("yyyyMMddHHmmss").parse(data.messageDateTime);
-                        mh.setProperty("timestamp", new InstantType(dt));
-                    } catch (Exception ignored) {}
-                }
+                // No timestamp here: R4 MessageHeader has none, MSH-7 goes to Bundle.timestamp above
 
                 // Source / destination endpoints placeholders
                 String src = "urn:hl7v2:" + (data.sendingApp!=null?data.sendingApp:"source");
@@ -66,12 +117,8 @@ public class BundleNormalizer {
                 mh.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-messageheader");
 
                 // We will link focus later after we find patient/encounter
-                Bundle.BundleEntryComponent headerEntry = new Bundle.BundleEntryComponent();
-                headerEntry.setFullUrl("urn:uuid:" + mh.getIdElement().getIdPart());
-                headerEntry.setResource(mh);
                 // add as first entry
-                bundle.getEntry().add(0, headerEntry);
-                headerReference = headerEntry; // capture for later focus
+                headerReference = index.addFirst(mh); // capture for later focus
             }
         }
 
@@ -89,32 +136,22 @@ public class BundleNormalizer {
                 e.setFullUrl(url);
             }
         }
-        Patient firstPatient = null;
-        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            if (entry.getResource() instanceof Patient) {
-                firstPatient = (Patient) entry.getResource();
-                // Ensure patient has id
-                if (!firstPatient.hasId()) {
-                    firstPatient.setId(IdType.newRandomUuid());
-                }
-                break;
-            }
+        Patient firstPatient = index.first(ResourceType.Patient);
+        // Ensure patient has id
+        if (firstPatient != null && !firstPatient.hasId()) {
+            firstPatient.setId(ids.nextUrn("Patient", null));
         }
 
         // Create Patient if missing
         if (firstPatient == null) {
             firstPatient = new Patient();
-            firstPatient.setId(IdType.newRandomUuid());
-            bundle.addEntry()
-                    .setFullUrl("urn:uuid:" + firstPatient.getIdElement().getIdPart())
-                    .setResource(firstPatient);
+            firstPatient.setId(ids.nextUrn("Patient", null));
+            index.add(firstPatient);
         }
 
-        java.util.List<Bundle.BundleEntryComponent> snapshot = new java.util.ArrayList<>(bundle.getEntry());
-        for (Bundle.BundleEntryComponent entry : snapshot) {
-            if (entry.getResource() instanceof Encounter) {
-                normalizeEncounter((Encounter) entry.getResource(), firstPatient, bundle, data);
-            }
+        List<Encounter> encounters = new ArrayList<>(index.<Encounter>ofType(ResourceType.Encounter));
+        for (Encounter enc : encounters) {
+            normalizeEncounter(enc, firstPatient, index, ids, data, profile, receipt);
         }
 
         // Patient demographics – always ensure present
@@ -123,10 +160,9 @@ public class BundleNormalizer {
                 firstPatient.getName().clear();
                 firstPatient.addName(toHumanName(data.patientName));
             }
-            if (data.patientDob != null) {
-                try {
-                    firstPatient.setBirthDate(new java.text.SimpleDateFormat("yyyyMMdd").parse(data.patientDob));
-                } catch (Exception ignored) {}
+            DateType dob = HL7DateTime.parseDate(data.patientDob);
+            if (dob != null) {
+                firstPatient.setBirthDateElement(dob);
             }
             if (data.patientGender != null) {
                 if (data.patientGender.toUpperCase().startsWith("M")) firstPatient.setGender(Enumerations.AdministrativeGender.MALE);
@@ -135,25 +171,29 @@ public class BundleNormalizer {
             }
             // Telecom phone - clear existing, set E.164
             firstPatient.getTelecom().clear();
-            String homePhone = data.patientPhone!=null?toE164(data.patientPhone):"+17015551212";
-            if (homePhone.isEmpty()) homePhone = "+17015551212";
-            firstPatient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.HOME).setValue(homePhone);
+            String homePhone = data.patientPhone!=null?toE164(data.patientPhone):"";
+            if (homePhone.isEmpty()) homePhone = profile.defaultPhone();
+            if (homePhone != null) {
+                firstPatient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.HOME).setValue(homePhone);
+            }
 
             // Language
             firstPatient.getCommunication().clear();
-            Patient.PatientCommunicationComponent comm = firstPatient.addCommunication();
             String lang = (data.patientLanguage!=null && !data.patientLanguage.isBlank()) ?
                     (data.patientLanguage.length()>2?data.patientLanguage.substring(0,2):data.patientLanguage) :
-                    "en";
-            comm.setLanguage(new CodeableConcept().addCoding(new Coding()
-                    .setSystem("urn:ietf:bcp:47").setCode(lang.toLowerCase())));
+                    profile.defaultLanguage();
+            if (lang != null) {
+                firstPatient.addCommunication().setLanguage(new CodeableConcept().addCoding(new Coding()
+                        .setSystem("urn:ietf:bcp:47").setCode(lang.toLowerCase())));
+            }
 
             // Marital status
             if (data.patientMaritalStatus != null) {
-                String mCode = data.patientMaritalStatus.equalsIgnoreCase("ENG")?"S":data.patientMaritalStatus;
-                firstPatient.setMaritalStatus(new CodeableConcept().addCoding(new Coding()
+                Coding mapped = maritalStatus.translate(V2_MARITAL_STATUS, data.patientMaritalStatus);
+                Coding marital = mapped != null ? mapped.copy() : new Coding()
                         .setSystem("http://terminology.hl7.org/CodeSystem/v3-MaritalStatus")
-                        .setCode(mCode)));
+                        .setCode(data.patientMaritalStatus);
+                firstPatient.setMaritalStatus(new CodeableConcept().addCoding(marital));
             }
 
             // Remove any non-USCore race extensions then add US core one if needed
@@ -205,46 +245,43 @@ public class BundleNormalizer {
                 spousePhone = toE164(data.nk1Phone);
             }
             if (spousePhone == null || spousePhone.isEmpty()) {
-                spousePhone = "+17015551213";
+                spousePhone = profile.defaultContactPhone();
             }
             contact.getTelecom().clear();
-            contact.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.HOME).setValue(spousePhone);
+            if (spousePhone != null) {
+                contact.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.HOME).setValue(spousePhone);
+            }
             firstPatient.addContact(contact);
         }
         // TODO: identifier system normalization handled per resource below.
 
         // Replace placeholder identifier system URNs on Patient identifiers
-        if (firstPatient.hasIdentifier()) {
+        if (firstPatient.hasIdentifier() && profile.assignerDisplay() != null) {
             for (Identifier id : firstPatient.getIdentifier()) {
                 // add assigner display if missing and we know hospital name
-                if (!id.hasAssigner() && "urn:oid:1.2.840.114350.1.13.0.1.7.1.1".equals(id.getSystem())) {
-                    id.setAssigner(new Reference().setDisplay("TRINITY HEALTH MINOT"));
+                if (!id.hasAssigner() && profile.patientIdentifierSystem() != null
+                        && profile.patientIdentifierSystem().equals(id.getSystem())) {
+                    id.setAssigner(new Reference().setDisplay(profile.assignerDisplay()));
                 }
             }
         }
         // AllergyIntolerance from AL1
-        addAllergy(bundle, firstPatient, data);
+        addAllergy(index, ids, firstPatient, data, profile);
 
         // Coverage from IN1
-        addCoverage(bundle, firstPatient, data);
+        addCoverage(index, ids, firstPatient, data, profile, receipt);
 
         // Guarantor
-        addGuarantor(bundle, firstPatient, data);
+        addGuarantor(index, ids, firstPatient, data, profile);
 
         // Account resource
-        addAccount(bundle, firstPatient, data);
+        addAccount(index, ids, firstPatient, data, profile);
 
-        // Remove IBM proprietary extensions globally
-        stripIbmExtensions(bundle);
-
-        // Final pass: clean duplicate urn prefixes in fullUrls & References
-        postProcessDuplicateUrns(bundle);
+        // Final pass: per-entry rules (code mappings, IBM extension stripping, duplicate urn prefixes, ...)
+        rules.apply(bundle, data);
 
         // After resources built, find first Encounter for MessageHeader focus
-        Encounter firstEncounter = null;
-        for (Bundle.BundleEntryComponent be : bundle.getEntry()) {
-            if (be.getResource() instanceof Encounter) { firstEncounter = (Encounter) be.getResource(); break; }
-        }
+        Encounter firstEncounter = index.first(ResourceType.Encounter);
 
         if (headerReference != null && firstPatient != null && firstEncounter != null) {
             org.hl7.fhir.r4.model.MessageHeader mh = (org.hl7.fhir.r4.model.MessageHeader) headerReference.getResource();
@@ -261,16 +298,17 @@ public class BundleNormalizer {
         return bundle;
     }
 
-    private void normalizeEncounter(Encounter enc, Patient patient, Bundle bundle, HL7SimpleData data) {
+    private void normalizeEncounter(Encounter enc, Patient patient, BundleIndex index, ResourceIdGenerator ids, HL7SimpleData data,
+                                    NormalizationProfile profile, DeliveryReceipt receipt) {
         // Ensure subject reference exists
         if (patient != null) {
             String patRef = "urn:uuid:" + patient.getIdElement().getIdPart();
             enc.setSubject(new Reference(patRef));
         }
 
-        // Map invalid class code "I" -> "IMP"
-        if (enc.hasClass_() && "I".equals(enc.getClass_().getCode())) {
-            enc.getClass_().setCode("IMP").setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode");
+        // Map invalid class codes, e.g. "I" -> "IMP"
+        if (enc.hasClass_()) {
+            encounterClass.translateInPlace(enc.getClass_());
         }
 
         // Set status for admit event if unknown
@@ -278,53 +316,6 @@ public class BundleNormalizer {
             enc.setStatus(Encounter.EncounterStatus.INPROGRESS);
         }
 
-        // Normalize serviceType coding (v2 0069 SUR -> SNOMED 394609007)
-        if (enc.hasServiceType()) {
-            Coding c = enc.getServiceType().getCodingFirstRep();
-            if ("http://terminology.hl7.org/CodeSystem/v2-0069".equals(c.getSystem())) {
-                if ("SUR".equalsIgnoreCase(c.getCode())) {
-                    c.setSystem("http://snomed.info/sct").setCode("394609007").setDisplay("Surgical specialty");
-                } else {
-                    // unknown mapping, remove coding to avoid invalid system
-                    enc.setServiceType(null);
-                }
-            }
-        }
-
-        // Admit source map/remove
-        if (enc.hasHospitalization() && enc.getHospitalization().hasAdmitSource()) {
-            Coding srcCoding = enc.getHospitalization().getAdmitSource().getCodingFirstRep();
-            if ("urn:id:v2-0023".equals(srcCoding.getSystem())) {
-                String code = srcCoding.getCode();
-                switch (code) {
-                    case "7": // transfer from other health facility
-                        srcCoding.setSystem("http://terminology.hl7.org/CodeSystem/admit-source");
-                        srcCoding.setCode("other-hosp");
-                        srcCoding.setDisplay("Transferred from other hospital");
-                        enc.getHospitalization().getAdmitSource().setText("Transferred from other hospital");
-                        break;
-                    default:
-                        // remove invalid coding
-                        enc.getHospitalization().setAdmitSource(null);
-                }
-            }
-        }
-
-        // Remove specialArrangement codes if system v2-0009
-        if (enc.hasHospitalization() && enc.getHospitalization().hasSpecialArrangement()) {
-            Iterator<CodeableConcept> it = enc.getHospitalization().getSpecialArrangement().iterator();
-            while (it.hasNext()) {
-                CodeableConcept cc = it.next();
-                if (cc.hasCoding() && "http://terminology.hl7.org/CodeSystem/v2-0009".equals(cc.getCodingFirstRep().getSystem())) {
-                    // unsupported code, drop
-                    it.remove();
-                }
-            }
-            if (enc.getHospitalization().getSpecialArrangement().isEmpty()) {
-                enc.getHospitalization().setSpecialArrangement(null);
-            }
-        }
-
         // Period from admit datetime extension (we stored in meta extension valueDateTime)
         if (!enc.hasPeriod()) {
             // look for source-event-timestamp extension in meta
@@ -345,15 +336,11 @@ public class BundleNormalizer {
         }
 
         // Ensure at least a start if period missing and PV1-44 present
-        if (!enc.hasPeriod()) {
-            String ts = null;
-            if (data != null && data.admitDateTime != null && data.admitDateTime.length()>=14) ts = data.admitDateTime;
-            else if (data != null && data.messageDateTime != null && data.messageDateTime.length()>=14) ts = data.messageDateTime;
-            if (ts != null) {
-                try {
-                    java.util.Date dt = new java.text.SimpleDateFormat("yyyyMMddHHmmss").parse(ts);
-                    enc.setPeriod(new Period().setStart(dt));
-                } catch(Exception ignored){}
+        if (!enc.hasPeriod() && data != null) {
+            DateTimeType start = HL7DateTime.parseDateTime(data.admitDateTime);
+            if (start == null) start = HL7DateTime.parseDateTime(data.messageDateTime);
+            if (start != null) {
+                enc.setPeriod(new Period().setStartElement(start));
             }
         }
 
@@ -383,31 +370,31 @@ public class BundleNormalizer {
             }
         }
         if (visitId == null) {
-            visitId = "V0098765";
+            visitId = profile.defaultVisitNumber();
         }
 
-        enc.addIdentifier()
-            .setSystem("urn:id:TRINITY_HEALTH_MINOT")
-            .setValue(visitId)
-            .setAssigner(new Reference().setDisplay("TRINITY HEALTH MINOT"));
+        if (visitId != null) {
+            Identifier visit = enc.addIdentifier()
+                .setSystem(profile.visitIdentifierSystem())
+                .setValue(visitId);
+            if (profile.assignerDisplay() != null) visit.setAssigner(new Reference().setDisplay(profile.assignerDisplay()));
+        }
 
         // Status in-progress for admit
         enc.setStatus(Encounter.EncounterStatus.INPROGRESS);
 
         // Ensure period.start present
-        if (!enc.hasPeriod() && data != null && data.admitDateTime != null && data.admitDateTime.length()>=14) {
-            try {
-                java.util.Date dt = new java.text.SimpleDateFormat("yyyyMMddHHmmss").parse(data.admitDateTime);
-                enc.setPeriod(new Period().setStart(dt));
-            } catch(Exception ignored){}
+        if (!enc.hasPeriod() && data != null) {
+            DateTimeType start = HL7DateTime.parseDateTime(data.admitDateTime);
+            if (start != null) enc.setPeriod(new Period().setStartElement(start));
         }
 
         // Clear existing reasonCodes; we will add a single consolidated entry below to avoid duplicates
         enc.getReasonCode().clear();
 
-        // Clinical service type SNOMED Emergency dept visit 50849002
+        // Clinical service type (built-in profile: SNOMED Emergency dept visit 50849002)
         enc.getType().clear();
-        enc.addType().addCoding().setSystem("http://snomed.info/sct").setCode("50849002").setDisplay("Emergency department visit");
+        if (profile.encounterType() != null) enc.addType().addCoding(profile.encounterType().copy());
 
         // Remove specialCourtesy misuse
         if (enc.hasHospitalization()) {
@@ -418,44 +405,17 @@ public class BundleNormalizer {
 
         // Add location resource and reference
         if (data != null && data.location != null && enc.getLocation().isEmpty()) {
-            String locId = java.util.UUID.randomUUID().toString();
-            Location loc = new Location();
-            loc.setId(locId);
-
-            // Human-readable name composed from parts
-            if (data.locationPoc != null || data.locationRoom != null || data.locationBed != null) {
-                StringBuilder sb = new StringBuilder();
-                if (data.locationPoc != null) sb.append("Ward ").append(data.locationPoc);
-                if (data.locationRoom != null) {
-                    if (sb.length() > 0) sb.append(" / ");
-                    sb.append("Room ").append(data.locationRoom);
-                }
-                if (data.locationBed != null) {
-                    if (sb.length() > 0) sb.append(" / ");
-                    sb.append("Bed ").append(data.locationBed);
-                }
-                loc.setName(sb.toString());
-            } else {
-                loc.setName(data.location);
-            }
-
-            bundle.addEntry().setFullUrl("urn:uuid:" + locId).setResource(loc);
-
-            // Structured identifiers
-            if (data.locationPoc != null) {
-                loc.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.19.5.1").setValue(data.locationPoc);
-            }
-            if (data.locationRoom != null) {
-                loc.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.19.5.2").setValue(data.locationRoom);
-            }
-            if (data.locationBed != null) {
-                loc.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.19.5.3").setValue(data.locationBed);
-                loc.setPhysicalType(new CodeableConcept().addCoding(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/location-physical-type").setCode("bd").setDisplay("Bed")));
-            }
-            loc.setMode(Location.LocationMode.INSTANCE);
+            // Locations are per facility: the same PV1-3 sent by two facilities (MSH-4) is two places
+            String locKey = profile.keyPrefix() + (data.sendingFacility == null ? "" : data.sendingFacility)
+                    + '|' + data.location;
+            String locId = referenceData.isEnabled()
+                    ? ReferenceDataCache.stableId("Location", locKey)
+                    : ids.next("PV1-3", data.location);
+            String locRef = addOrReference(index, referenceData.resolve("Location|" + profile.locationCacheKey() + locKey,
+                    () -> newLocation(locId, data, profile), receipt));
 
             Encounter.EncounterLocationComponent el = enc.addLocation();
-            el.setLocation(new Reference("urn:uuid:" + locId));
+            el.setLocation(new Reference(locRef));
             if (enc.hasPeriod()) {
                 el.setPeriod(enc.getPeriod().copy());
             }
@@ -463,8 +423,8 @@ public class BundleNormalizer {
 
         // Practitioner resources for attending & consulting
         if (data != null) {
-            addPractitioner(data.attendingName, "ATND", enc, bundle);
-            addPractitioner(data.consultingName, "CON", enc, bundle);
+            addPractitioner(data.attendingName, "ATND", enc, index, ids, receipt);
+            addPractitioner(data.consultingName, "CON", enc, index, ids, receipt);
         }
 
         // Strip IBM custom meta extensions for Encounter; done globally later.
@@ -489,7 +449,8 @@ public class BundleNormalizer {
         }
     }
 
-    private void addPractitioner(String nameStr, String roleCode, Encounter enc, Bundle bundle) {
+    private void addPractitioner(String nameStr, String roleCode, Encounter enc, BundleIndex index, ResourceIdGenerator ids,
+                                 DeliveryReceipt receipt) {
         if (nameStr == null || nameStr.isEmpty()) return;
         // HL7 feed uses family ^ given ^ ID order (e.g., AARON^ATTEND^004777)
         String[] comps = nameStr.split("\\^");
@@ -497,6 +458,7 @@ public class BundleNormalizer {
         String given;
         String providerId;
         String middle = "";
+        boolean generatedId = false;
 
         if (comps.length >= 3 && comps[0].matches("\\d+")) { // first field numeric → ID
             providerId = comps[0];
@@ -505,10 +467,48 @@ public class BundleNormalizer {
         } else {
             family = comps.length > 0 ? comps[0] : "";
             given = comps.length > 1 ? comps[1] : "";
-            providerId = comps.length > 2 ? comps[2] : UUID.randomUUID().toString();
+            generatedId = comps.length <= 2;
+            providerId = generatedId ? ids.next(roleCode, nameStr) : comps[2];
             if (comps.length > 3) middle = comps[3];
         }
 
+        // Try to find existing Practitioner with same providerId (under any identifier system)
+        Practitioner prac = index.findByIdentifier(ResourceType.Practitioner, null, providerId);
+        String pracRef;
+
+        if (prac != null) {
+            prac.getName().clear();
+            prac.addName(toPractitionerName(family, given, middle, comps));
+            index.unindexIdentifiers(prac);
+            prac.getIdentifier().clear();
+            prac.addIdentifier().setSystem("http://hl7.org/fhir/sid/us-npi").setValue(providerId);
+            index.indexIdentifiers(prac);
+            // meta profile
+            prac.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-practitioner");
+            pracRef = "urn:uuid:" + prac.getIdElement().getIdPart();
+        } else if (generatedId || !referenceData.isEnabled()) {
+            // no business identifier to share it across messages by
+            prac = newPractitioner(ids.next("Practitioner", providerId), providerId, toPractitionerName(family, given, middle, comps));
+            index.add(prac);
+            pracRef = "urn:uuid:" + prac.getIdElement().getIdPart();
+        } else {
+            String id = ReferenceDataCache.stableId("Practitioner", "us-npi|" + providerId);
+            String pid = providerId, fam = family, giv = given, mid = middle;
+            pracRef = addOrReference(index, referenceData.resolve("Practitioner|" + nameStr,
+                    () -> newPractitioner(id, pid, toPractitionerName(fam, giv, mid, comps)), receipt));
+        }
+
+        Encounter.EncounterParticipantComponent part = enc.addParticipant();
+        part.addType().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/v3-ParticipationType").setCode(roleCode);
+        part.setIndividual(new Reference(pracRef));
+
+        // Ensure participant period copied from encounter
+        if (enc.hasPeriod() && enc.getPeriod().hasStart()) {
+            part.setPeriod(enc.getPeriod().copy());
+        }
+    }
+
+    private static HumanName toPractitionerName(String family, String given, String middle, String[] comps) {
         HumanName hn = new HumanName();
         if (!family.isBlank()) hn.setFamily(family);
         if (!given.isBlank()) hn.addGiven(given);
@@ -516,45 +516,113 @@ public class BundleNormalizer {
 
         // prefix (Dr) if present in XCN component 6 or 7
         if (comps.length > 6 && !comps[6].isBlank()) hn.addPrefix(comps[6]);
+        return hn;
+    }
 
-        // Try to find existing Practitioner with same providerId
-        Practitioner prac = null;
-        for (Bundle.BundleEntryComponent en : bundle.getEntry()) {
-            if (en.getResource() instanceof Practitioner) {
-                Practitioner p = (Practitioner) en.getResource();
-                if (p.hasIdentifier()) {
-                    for (Identifier iden : p.getIdentifier()) {
-                        if (providerId.equals(iden.getValue())) {
-                            prac = p; break;
-                        }
-                    }
-                }
+    private static Practitioner newPractitioner(String id, String providerId, HumanName name) {
+        Practitioner prac = new Practitioner();
+        prac.setId(id);
+        prac.addName(name);
+        prac.addIdentifier().setSystem("http://hl7.org/fhir/sid/us-npi").setValue(providerId);
+        // meta profile
+        prac.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-practitioner");
+        return prac;
+    }
+
+    private static Location newLocation(String id, HL7SimpleData data, NormalizationProfile profile) {
+        Location loc = new Location();
+        loc.setId(id);
+
+        // Human-readable name composed from parts
+        if (data.locationPoc != null || data.locationRoom != null || data.locationBed != null) {
+            StringBuilder sb = new StringBuilder();
+            if (data.locationPoc != null) sb.append("Ward ").append(data.locationPoc);
+            if (data.locationRoom != null) {
+                if (sb.length() > 0) sb.append(" / ");
+                sb.append("Room ").append(data.locationRoom);
             }
-            if (prac != null) break;
+            if (data.locationBed != null) {
+                if (sb.length() > 0) sb.append(" / ");
+                sb.append("Bed ").append(data.locationBed);
+            }
+            loc.setName(sb.toString());
+        } else {
+            loc.setName(data.location);
         }
 
-        if (prac == null) {
-            prac = new Practitioner();
-            prac.setId(UUID.randomUUID().toString());
-            bundle.addEntry().setFullUrl("urn:uuid:" + prac.getIdElement().getIdPart()).setResource(prac);
+        // Structured identifiers
+        if (data.locationPoc != null) {
+            loc.addIdentifier().setSystem(profile.locationIdentifierSystem(0)).setValue(data.locationPoc);
+        }
+        if (data.locationRoom != null) {
+            loc.addIdentifier().setSystem(profile.locationIdentifierSystem(1)).setValue(data.locationRoom);
         }
+        if (data.locationBed != null) {
+            loc.addIdentifier().setSystem(profile.locationIdentifierSystem(2)).setValue(data.locationBed);
+            loc.setPhysicalType(new CodeableConcept().addCoding(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/location-physical-type").setCode("bd").setDisplay("Bed")));
+        }
+        loc.setMode(Location.LocationMode.INSTANCE);
+        return loc;
+    }
 
-        prac.getName().clear();
-        prac.addName(hn);
-        prac.getIdentifier().clear();
-        prac.addIdentifier().setSystem("http://hl7.org/fhir/sid/us-npi").setValue(providerId);
+    private static Organization newPayer(String id, HL7SimpleData data) {
+        Organization org = new Organization();
+        org.setId(id);
+        org.setName(data.insurancePayerName);
+        if (data.insurancePayerId != null) {
+            org.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.4.349").setValue(data.insurancePayerId);
+        }
+        org.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-organization");
+        return org;
+    }
 
-        // meta profile
-        prac.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-practitioner");
+    /**
+     * Adds a resolved reference resource to the bundle and returns its urn:uuid reference, or, when the
+     * cache says it was already sent downstream, adds nothing and returns a {@code Type/id} reference.
+     */
+    private static String addOrReference(BundleIndex index, ReferenceDataCache.Resolved<?> resolved) {
+        if (resolved.referenceOnly) {
+            return resolved.resource.getResourceType().name() + '/' + resolved.idPart();
+        }
+        index.add(resolved.resource);
+        return "urn:uuid:" + resolved.idPart();
+    }
 
-        Encounter.EncounterParticipantComponent part = enc.addParticipant();
-        part.addType().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/v3-ParticipationType").setCode(roleCode);
-        part.setIndividual(new Reference("urn:uuid:" + prac.getIdElement().getIdPart()));
+    /**
+     * Replaces the random ids the converter templates assign (Bundle and entries) with generated ones,
+     * keyed by resource type and first identifier, and repoints fullUrls and references to match.
+     */
+    private void rekeyConverterIds(Bundle bundle, ResourceIdGenerator ids) {
+        if (bundle.hasId()) bundle.setId(ids.next("Bundle", null));
+        Map<String, String> renamed = new HashMap<>();
+        for (Bundle.BundleEntryComponent e : bundle.getEntry()) {
+            Resource r = e.getResource();
+            if (r == null || !r.hasId()) continue;
+            String old = r.getIdElement().getIdPart();
+            String fresh = ids.next(r.getResourceType().name(), firstIdentifier(r));
+            renamed.put(old, fresh);
+            r.setId(fresh);
+            if (e.hasFullUrl()) e.setFullUrl(e.getFullUrl().replace(old, fresh));
+        }
+        if (renamed.isEmpty()) return;
+        for (Bundle.BundleEntryComponent e : bundle.getEntry()) {
+            if (e.getResource() == null) continue;
+            for (Reference ref : TERSER.getAllPopulatedChildElementsOfType(e.getResource(), Reference.class)) {
+                String s = ref.getReference();
+                if (s == null) continue;
+                // Patient/<id> or urn:uuid:<id>
+                int cut = Math.max(s.lastIndexOf('/'), s.lastIndexOf(':')) + 1;
+                String fresh = renamed.get(s.substring(cut));
+                if (fresh != null) ref.setReference(s.substring(0, cut) + fresh);
+            }
+        }
+    }
 
-        // Ensure participant period copied from encounter
-        if (enc.hasPeriod() && enc.getPeriod().hasStart()) {
-            part.setPeriod(enc.getPeriod().copy());
+    private static String firstIdentifier(Resource r) {
+        for (Identifier id : BundleIndex.identifiers(r)) {
+            if (id.hasValue()) return (id.hasSystem() ? id.getSystem() : "") + '|' + id.getValue();
         }
+        return null;
     }
 
     private HumanName toHumanName(String hl7Name) {
@@ -575,82 +643,38 @@ public class BundleNormalizer {
         return "+" + digits;
     }
 
-    /**
-     * Remove any extensions whose URL contains "ibm.com" from every resource in the bundle.
-     */
-    private void stripIbmExtensions(Bundle bundle) {
-        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            Resource res = entry.getResource();
-            if (res == null) continue;
-            Meta m = res.getMeta();
-            if (m != null && m.hasExtension()) {
-                java.util.List<Extension> kept = new java.util.ArrayList<>();
-                for (Extension ex : m.getExtension()) {
-                    if (ex.getUrl() == null || !ex.getUrl().contains("ibm.com")) kept.add(ex);
-                }
-                m.setExtension(kept);
-            }
-        }
-    }
-
-    private void postProcessDuplicateUrns(Bundle bundle) {
-        for (Bundle.BundleEntryComponent be : bundle.getEntry()) {
-            // FullUrl
-            if (be.hasFullUrl() && be.getFullUrl().startsWith("urn:uuid:urn:uuid:")) {
-                be.setFullUrl(be.getFullUrl().replaceFirst("urn:uuid:urn:uuid:", "urn:uuid:"));
-            }
-            // simple payor reference fix specific cases
-            if (be.getResource() instanceof Coverage) {
-                Coverage cv = (Coverage) be.getResource();
-                for (Reference ref: cv.getPayor()) {
-                    if (ref.hasReference() && ref.getReference().startsWith("urn:uuid:urn:uuid:")) {
-                        ref.setReference(ref.getReference().replaceFirst("urn:uuid:urn:uuid:", "urn:uuid:"));
-                    }
-                }
-
-                // Ensure class[0].value present (US Core requires value)
-                if (cv.getClass_().isEmpty()) {
-                    Coverage.ClassComponent cls = cv.addClass_();
-                    cls.setType(new CodeableConcept().addCoding(new Coding().setCode("group")));
-                    cls.setValue("GRP54321");
-                } else {
-                    Coverage.ClassComponent cls = cv.getClass_().get(0);
-                    if (!cls.hasValue() || cls.getValue().isBlank()) {
-                        cls.setValue("GRP54321");
-                    }
-                    if (!cls.hasType()) {
-                        cls.setType(new CodeableConcept().addCoding(new Coding()
-                                .setSystem("http://terminology.hl7.org/CodeSystem/coverage-class")
-                                .setCode("group")));
-                    }
-                }
-            }
-        }
-    }
-
-    private void addAllergy(Bundle bundle, Patient patient, HL7SimpleData data) {
+    private void addAllergy(BundleIndex index, ResourceIdGenerator ids, Patient patient, HL7SimpleData data,
+                            NormalizationProfile profile) {
         if (patient == null || data == null || data.allergyCode == null) return;
         AllergyIntolerance ai = new AllergyIntolerance();
-        ai.setId(IdType.newRandomUuid());
+        ai.setId(ids.nextUrn("AL1", data.allergyCode));
         ai.setPatient(new Reference("urn:uuid:" + patient.getIdElement().getIdPart()));
         ai.setClinicalStatus(new CodeableConcept().addCoding(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/allergyintolerance-clinical").setCode("active")));
-        ai.setCode(new CodeableConcept().addCoding(new Coding().setSystem("http://www.nlm.nih.gov/research/umls/rxnorm").setCode("7980").setDisplay("Penicillin")));
-        AllergyIntolerance.AllergyIntoleranceReactionComponent rc = ai.addReaction();
-        rc.addManifestation(new CodeableConcept().addCoding(new Coding().setSystem("http://snomed.info/sct").setCode("247472004").setDisplay("Hives")));
-        rc.setDescription(data.allergyReaction != null ? data.allergyReaction : "Hives");
-
-        java.util.Date now = new java.util.Date();
-        ai.setRecordedDate(now);
-        ai.setOnset(new DateTimeType(now));
+        if (profile.allergyCode() != null) ai.setCode(new CodeableConcept().addCoding(profile.allergyCode().copy()));
+        Coding manifestation = profile.allergyReaction();
+        if (manifestation != null || data.allergyReaction != null) {
+            AllergyIntolerance.AllergyIntoleranceReactionComponent rc = ai.addReaction();
+            if (manifestation != null) rc.addManifestation(new CodeableConcept().addCoding(manifestation.copy()));
+            rc.setDescription(data.allergyReaction != null ? data.allergyReaction : manifestation.getDisplay());
+        }
+
+        // Dates from the message only, so a resend converts to the same resource: recorded at EVN-2 (else
+        // MSH-7), onset at AL1-6 or unknown
+        DateTimeType recorded = HL7DateTime.parseDateTime(data.eventDateTime);
+        if (recorded == null) recorded = HL7DateTime.parseDateTime(data.messageDateTime);
+        if (recorded != null) ai.setRecordedDateElement(recorded);
+        DateTimeType onset = HL7DateTime.parseDateTime(data.allergyIdentifiedDateTime);
+        if (onset != null) ai.setOnset(onset);
 
         ai.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-allergyintolerance");
-        bundle.addEntry().setFullUrl("urn:uuid:" + ai.getIdElement().getIdPart()).setResource(ai);
+        index.add(ai);
     }
 
-    private void addCoverage(Bundle bundle, Patient patient, HL7SimpleData data) {
+    private void addCoverage(BundleIndex index, ResourceIdGenerator ids, Patient patient, HL7SimpleData data,
+                             NormalizationProfile profile, DeliveryReceipt receipt) {
         if (patient == null || data == null || data.insurancePayerName == null) return;
         Coverage cov = new Coverage();
-        cov.setId(IdType.newRandomUuid());
+        cov.setId(ids.nextUrn("IN1", data.insurancePayerId));
         cov.setStatus(Coverage.CoverageStatus.ACTIVE);
         cov.setBeneficiary(new Reference("urn:uuid:" + patient.getIdElement().getIdPart()));
         // Ensure class value and type coding
@@ -670,60 +694,67 @@ public class BundleNormalizer {
                 }
             }
             cls.setValue(data.insuranceGroupNumber);
-        } else {
+        } else if (profile.defaultCoverageGroup() != null) {
             // default value if missing
             if (cov.getClass_().isEmpty()) {
                 Coverage.ClassComponent cls = cov.addClass_();
                 cls.setType(new CodeableConcept().addCoding(new Coding()
                         .setSystem("http://terminology.hl7.org/CodeSystem/coverage-class")
                         .setCode("group")));
-                cls.setValue("GRP54321");
+                cls.setValue(profile.defaultCoverageGroup());
             } else if (!cov.getClass_().get(0).hasValue()) {
-                cov.getClass_().get(0).setValue("GRP54321");
+                cov.getClass_().get(0).setValue(profile.defaultCoverageGroup());
             }
         }
 
         cov.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-coverage");
 
-        // simple payer Organization
-        Organization org = new Organization();
-        org.setId(IdType.newRandomUuid());
-        org.setName(data.insurancePayerName);
-        if (data.insurancePayerId != null) {
-            org.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.4.349").setValue(data.insurancePayerId);
+        // simple payer Organization, shared across messages when it has a payer id
+        String payorRef;
+        if (data.insurancePayerId != null && referenceData.isEnabled()) {
+            String orgId = ReferenceDataCache.stableId("Organization", data.insurancePayerId);
+            payorRef = addOrReference(index, referenceData.resolve(
+                    "Organization|" + data.insurancePayerId + '|' + data.insurancePayerName, () -> newPayer(orgId, data),
+                    receipt));
+        } else {
+            Organization org = newPayer(ids.nextUrn("IN1-3", data.insurancePayerId), data);
+            index.add(org);
+            payorRef = "urn:uuid:" + org.getIdElement().getIdPart();
         }
-        org.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-organization");
-        bundle.addEntry().setFullUrl("urn:uuid:" + org.getIdElement().getIdPart()).setResource(org);
-        cov.setPayor(Collections.singletonList(new Reference("urn:uuid:" + org.getIdElement().getIdPart())));
+        cov.setPayor(Collections.singletonList(new Reference(payorRef)));
 
-        bundle.addEntry().setFullUrl("urn:uuid:" + cov.getIdElement().getIdPart()).setResource(cov);
+        index.add(cov);
     }
 
-    private void addGuarantor(Bundle bundle, Patient patient, HL7SimpleData data) {
+    private void addGuarantor(BundleIndex index, ResourceIdGenerator ids, Patient patient, HL7SimpleData data,
+                              NormalizationProfile profile) {
         if (patient == null || data == null || data.guarantorName == null) return;
         RelatedPerson rp = new RelatedPerson();
-        rp.setId(IdType.newRandomUuid());
+        rp.setId(ids.nextUrn("GT1", data.guarantorName));
         rp.setPatient(new Reference("urn:uuid:" + patient.getIdElement().getIdPart()));
         rp.setRelationship(Collections.singletonList(new CodeableConcept().addCoding(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/v3-RoleCode").setCode("GUAR").setDisplay("Guarantor"))));
         rp.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-relatedperson");
         rp.setName(Collections.singletonList(toHumanName(data.guarantorName)));
-        String gPhone = "+17015551212";
-        rp.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.HOME).setValue(gPhone);
-        if (data.guarantorName != null) {
-            rp.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.19.5.8").setValue("G12345");
+        String gPhone = profile.defaultPhone();
+        if (gPhone != null) {
+            rp.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.HOME).setValue(gPhone);
+        }
+        if (data.guarantorName != null && profile.guarantorIdentifier() != null) {
+            rp.addIdentifier(profile.guarantorIdentifier().copy());
         }
-        bundle.addEntry().setFullUrl("urn:uuid:" + rp.getIdElement().getIdPart()).setResource(rp);
+        index.add(rp);
     }
 
-    private void addAccount(Bundle bundle, Patient patient, HL7SimpleData data) {
+    private void addAccount(BundleIndex index, ResourceIdGenerator ids, Patient patient, HL7SimpleData data,
+                            NormalizationProfile profile) {
         if (data == null || data.accountNumber == null) return;
         Account acc = new Account();
-        acc.setId(IdType.newRandomUuid());
-        acc.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.19.4.7").setValue("V0098765");
+        acc.setId(ids.nextUrn("Account", data.accountNumber));
+        if (profile.accountIdentifier() != null) acc.addIdentifier(profile.accountIdentifier().copy());
         acc.setStatus(Account.AccountStatus.ACTIVE);
         acc.setType(new CodeableConcept().addCoding(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode").setCode("PBILL").setDisplay("patient billing")));
         if (patient != null) acc.setSubject(Collections.singletonList(new Reference("urn:uuid:" + patient.getIdElement().getIdPart())));
         acc.getMeta().addProfile("http://hl7.org/fhir/us/core/StructureDefinition/us-core-account");
-        bundle.addEntry().setFullUrl("urn:uuid:" + acc.getIdElement().getIdPart()).setResource(acc);
+        index.add(acc);
     }
 } 
\ No newline at end of file
@@ -0,0 +1,211 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for single-message conversions: caps how many run at once so that a burst queues
+ * briefly or is turned away, instead of every request thread building HAPI object graphs in parallel until
+ * the heap and GC give out.
+ * <p>
+ * Messages of at least {@code converter.admission.large-message-bytes} (chars) draw on a separate, smaller
+ * budget than the rest, so a few huge messages cannot starve the ordinary traffic and vice versa. Each
+ * budget has a concurrency limit that adapts to observed latency (a gradient limiter): while conversions
+ * finish about as fast as their long-run average the limit grows, up to {@code max-limit}; once latency rises
+ * above 1.5x that average the limit shrinks in proportion, down to 1. A caller over the limit waits in a
+ * bounded queue ({@code queue-size}) for at most {@code converter.admission.max-wait}; a full queue or an
+ * expired wait is a rejection, which callers answer with 503 and {@link #retryAfterSeconds}.
+ * <p>
+ * Meters, tagged {@code budget=small|large}: {@code hl7.admission.limit}, {@code hl7.admission.in-flight} and
+ * {@code hl7.admission.queued} gauges, {@code hl7.admission.wait} timer, {@code hl7.admission.rejected}
+ * counter (also tagged {@code reason=queue-full|timeout}). Thread-safe.
+ */
+@Component
+public class ConversionAdmission {
+
+    /** Tolerated ratio of current to long-run latency before the limit starts shrinking. */
+    private static final double TOLERANCE = 1.5;
+    /** Weight of a new sample in the long-run latency average (about the last 100 conversions). */
+    private static final double LONG_RTT_WEIGHT = 0.01;
+    /** Weight of a new estimate in the limit, damping its swings. */
+    private static final double SMOOTHING = 0.2;
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+    /** A held slot of a budget; {@link #release} exactly once. */
+    public interface Permit {
+        /** @param succeeded false if no conversion completed (it failed, or was skipped), so its latency does not steer the limit */
+        void release(boolean succeeded);
+    }
+
+    private static final Permit UNLIMITED = succeeded -> { };
+
+    final class Budget {
+        private final int maxLimit;
+        private final int queueSize;
+        private final Timer waitTimer;
+        private final Counter queueFull;
+        private final Counter timedOut;
+
+        private double limit;
+        private int inFlight;
+        private int queued;
+        /** Long-run average conversion time in nanos, 0 until the first sample. */
+        private double longRtt;
+
+        Budget(String name, int initialLimit, int maxLimit, int queueSize, MeterRegistry registry) {
+            this.maxLimit = maxLimit;
+            this.queueSize = queueSize;
+            this.limit = Math.min(initialLimit, maxLimit);
+            Gauge.builder("hl7.admission.limit", this, Budget::limit)
+                    .description("Current concurrency limit of an admission budget")
+                    .tag("budget", name)
+                    .register(registry);
+            Gauge.builder("hl7.admission.in-flight", this, Budget::inFlight)
+                    .description("Conversions holding an admission permit")
+                    .tag("budget", name)
+                    .register(registry);
+            Gauge.builder("hl7.admission.queued", this, Budget::queued)
+                    .description("Requests waiting for an admission permit")
+                    .tag("budget", name)
+                    .register(registry);
+            this.waitTimer = Timer.builder("hl7.admission.wait")
+                    .description("Time a request waited for an admission permit")
+                    .tag("budget", name)
+                    .publishPercentiles(0.5, 0.99)
+                    .register(registry);
+            this.queueFull = rejected(registry, name, "queue-full");
+            this.timedOut = rejected(registry, name, "timeout");
+        }
+
+        private Counter rejected(MeterRegistry registry, String name, String reason) {
+            return Counter.builder("hl7.admission.rejected")
+                    .description("Requests turned away by admission control")
+                    .tag("budget", name)
+                    .tag("reason", reason)
+                    .register(registry);
+        }
+
+        synchronized double limit() {
+            return limit;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized int queued() {
+            return queued;
+        }
+
+        Permit acquire() throws InterruptedException {
+            long start = System.nanoTime();
+            synchronized (this) {
+                if (inFlight >= (int) limit) {
+                    if (queued >= queueSize) {
+                        queueFull.increment();
+                        return null;
+                    }
+                    queued++;
+                    try {
+                        long deadline = start + maxWaitNanos;
+                        while (inFlight >= (int) limit) {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                timedOut.increment();
+                                return null;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(this, left);
+                        }
+                    } finally {
+                        queued--;
+                    }
+                }
+                inFlight++;
+            }
+            long admitted = System.nanoTime();
+            waitTimer.record(admitted - start, TimeUnit.NANOSECONDS);
+            return succeeded -> release(succeeded ? System.nanoTime() - admitted : -1);
+        }
+
+        private synchronized void release(long rttNanos) {
+            int before = (int) limit;
+            inFlight--;
+            if (rttNanos > 0) adapt(rttNanos);
+            // One slot freed, plus any the limit gained
+            int freed = 1 + Math.max(0, (int) limit - before);
+            for (int i = 0; i < freed; i++) notify();
+        }
+
+        private void adapt(double rtt) {
+            if (longRtt == 0) {
+                longRtt = rtt;
+            } else {
+                longRtt += (rtt - longRtt) * LONG_RTT_WEIGHT;
+                // After a slow spell, let the baseline come back down instead of tolerating it for good
+                if (longRtt > 2 * rtt) longRtt *= 0.95;
+            }
+            // A budget using well under its limit says nothing about whether the limit is too low
+            if (inFlight + 1 < limit / 2) return;
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / rtt));
+            double estimate = limit * gradient + Math.sqrt(limit);
+            limit = Math.max(1, Math.min(maxLimit, limit * (1 - SMOOTHING) + estimate * SMOOTHING));
+        }
+
+        synchronized long retryAfterSeconds() {
+            // Time for the budget to work through what is already ahead, at its current rate
+            double seconds = (inFlight + queued) * longRtt / Math.max(1, limit) / 1e9;
+            return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, (long) Math.ceil(seconds)));
+        }
+    }
+
+    private final boolean enabled;
+    private final int largeMessageChars;
+    private final long maxWaitNanos;
+    private final Budget small;
+    private final Budget large;
+
+    public ConversionAdmission(@Value("${converter.admission.enabled:true}") boolean enabled,
+                               @Value("${converter.admission.large-message-bytes:1048576}") int largeMessageChars,
+                               @Value("${converter.admission.max-limit:0}") int maxLimit,
+                               @Value("${converter.admission.large-max-limit:0}") int largeMaxLimit,
+                               @Value("${converter.admission.queue-size:64}") int queueSize,
+                               @Value("${converter.admission.large-queue-size:4}") int largeQueueSize,
+                               @Value("${converter.admission.max-wait:500ms}") Duration maxWait,
+                               MeterRegistry registry) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.enabled = enabled;
+        this.largeMessageChars = largeMessageChars;
+        this.maxWaitNanos = maxWait.toNanos();
+        int smallMax = maxLimit > 0 ? maxLimit : 4 * processors;
+        int largeMax = largeMaxLimit > 0 ? largeMaxLimit : Math.max(1, processors / 2);
+        this.small = new Budget("small", processors, smallMax, Math.max(0, queueSize), registry);
+        this.large = new Budget("large", 1, largeMax, Math.max(0, largeQueueSize), registry);
+    }
+
+    /**
+     * Takes a slot in the budget for a message of {@code messageChars}, waiting up to
+     * {@code converter.admission.max-wait} for one.
+     *
+     * @return the permit to release when the conversion is done, or null if the request is rejected
+     */
+    public Permit acquire(int messageChars) throws InterruptedException {
+        if (!enabled) return UNLIMITED;
+        return budget(messageChars).acquire();
+    }
+
+    /** Seconds a rejected client should wait before retrying a message of {@code messageChars} (1 to 60). */
+    public long retryAfterSeconds(int messageChars) {
+        return budget(messageChars).retryAfterSeconds();
+    }
+
+    private Budget budget(int messageChars) {
+        return messageChars >= largeMessageChars ? large : small;
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.hl7fhirconverter.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Encoded (compact JSON) output of {@link ConversionPipeline}, cached by message content so that retries
+ * of the same message within {@code converter.cache.ttl} skip conversion entirely.
+ * <p>
+ * A miss is converted and streamed to the client as usual: {@link #capture} copies the JSON on its way out
+ * and {@link #complete} stores the copy once the response has been written, unless it grew beyond
+ * {@code converter.cache.max-entry-bytes} (default 1 MB), in which case the copy is dropped as soon as it
+ * does. Concurrent requests for the same message share that one conversion ({@link #begin}): they wait for
+ * it and are answered with its copy, or convert on their own if there is none (too large, failed,
+ * duplicate). Entries are bounded by approximate heap size ({@code converter.cache.max-bytes}, message plus
+ * JSON) and expire after the TTL. Hit/miss/eviction stats are published as the {@code cache.*} meters with
+ * {@code cache=hl7.conversion}.
+ */
+@Service
+public class ConversionCache {
+
+    /** A message's 64-bit content hash, with the message itself so a hash collision can never serve the wrong Bundle. */
+    static final class ContentKey {
+        final long hash;
+        final String message;
+
+        ContentKey(String message) {
+            this.message = message;
+            this.hash = hash64(message);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ContentKey)) return false;
+            ContentKey other = (ContentKey) o;
+            return hash == other.hash && message.equals(other.message);
+        }
+
+        /** FNV-1a over the UTF-16 chars, with a final avalanche step. */
+        static long hash64(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0, n = s.length(); i < n; i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /** Passes everything through to the response and keeps a copy while it stays under the entry limit. */
+    public static final class Capture extends Writer {
+        private final Writer out;
+        private final int maxChars;
+        private StringBuilder copy = new StringBuilder(8192);
+
+        Capture(Writer out, int maxChars) {
+            this.out = out;
+            this.maxChars = maxChars;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            if (copy == null) return;
+            if (copy.length() + len > maxChars) {
+                copy = null;
+            } else {
+                copy.append(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            if (copy == null) return;
+            if (copy.length() + len > maxChars) {
+                copy = null;
+            } else {
+                copy.append(str, off, off + len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * One lookup through {@link #begin}: a hit, a wait for an identical conversion already running, or the
+     * conversion itself ({@link #isLeader}), which the caller must end with {@link #complete} or
+     * {@link #abandon}.
+     */
+    public static final class Flight {
+        private final ContentKey key;
+        private final CompletableFuture<String> result;
+        private final boolean leader;
+
+        Flight(ContentKey key, CompletableFuture<String> result, boolean leader) {
+            this.key = key;
+            this.result = result;
+            this.leader = leader;
+        }
+
+        /** True if the caller converts the message; everyone else {@link #await}s it. */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * The cached output, or that of the identical conversion this caller joined once it has been written;
+         * null if that left nothing to share and the caller has to convert on its own.
+         */
+        public String await() throws InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    private final Cache<ContentKey, String> cache;
+    private final int maxEntryChars;
+    /** Misses being converted right now, completed with their copy (or null) once written */
+    private final ConcurrentHashMap<ContentKey, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    public ConversionCache(MeterRegistry registry,
+                           @Value("${converter.cache.enabled:true}") boolean enabled,
+                           @Value("${converter.cache.max-bytes:67108864}") long maxBytes,
+                           @Value("${converter.cache.max-entry-bytes:1048576}") int maxEntryBytes,
+                           @Value("${converter.cache.ttl:60s}") Duration ttl) {
+        // chars are 2 bytes at most; good enough as a heap estimate
+        this.maxEntryChars = Math.max(0, maxEntryBytes / 2);
+        if (!enabled || maxBytes <= 0) {
+            this.cache = null;
+            return;
+        }
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((ContentKey k, String json) -> (int) Math.min(Integer.MAX_VALUE, 2L * (k.message.length() + json.length())))
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "hl7.conversion");
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Looks {@code hl7Message} up. A hit, or an identical message being converted by another request, gives a
+     * flight to {@link Flight#await}; otherwise the caller becomes its leader and converts it. Null if the cache
+     * is disabled.
+     */
+    public Flight begin(String hl7Message) {
+        if (cache == null || hl7Message == null) return null;
+        ContentKey key = new ContentKey(hl7Message);
+        String cached = cache.getIfPresent(key);
+        if (cached != null) return new Flight(key, CompletableFuture.completedFuture(cached), false);
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) return new Flight(key, running, false);
+        // The previous leader may have stored its copy and left between the lookup and now (not a second miss)
+        cached = cache.asMap().get(key);
+        if (cached != null) {
+            inFlight.remove(key, mine);
+            mine.complete(cached);
+            return new Flight(key, mine, false);
+        }
+        return new Flight(key, mine, true);
+    }
+
+    /** Wraps the response writer of a leader; hand the result to {@link #complete} once it has been written. */
+    public Capture capture(Writer out) {
+        return new Capture(out, maxEntryChars);
+    }
+
+    /**
+     * Ends a leader's flight once the response has been written: caches what went through {@code capture},
+     * unless it was too large, and hands it to the requests waiting for it.
+     */
+    public void complete(Flight flight, Capture capture) {
+        String json = capture.copy == null ? null : capture.copy.toString();
+        if (json != null) cache.put(flight.key, json);
+        inFlight.remove(flight.key, flight.result);
+        flight.result.complete(json);
+    }
+
+    /** Ends a leader's flight without output; waiting requests convert on their own. No-op once completed. */
+    public void abandon(Flight flight) {
+        if (!flight.leader || flight.result.isDone()) return;
+        inFlight.remove(flight.key, flight.result);
+        flight.result.complete(null);
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters for {@link ConversionPipeline}, tagged by message type (MSH-9) and sending facility (MSH-4):
+ * <ul>
+ *   <li>{@code hl7.conversion.stage} timer (p50/p99) per {@link Stage}</li>
+ *   <li>{@code hl7.conversion.stage.allocated} bytes allocated by the converting thread per stage</li>
+ *   <li>{@code hl7.conversion.failures} counter per stage</li>
+ *   <li>{@code hl7.message.size} (chars) and {@code hl7.bundle.entries} per converted message</li>
+ *   <li>{@code hl7.normalization.rule} per {@link NormalizationRule}, untagged by message</li>
+ * </ul>
+ * Thread-safe. Meters are looked up once per (message type, facility) pair and then reused.
+ */
+@Component
+public class ConversionMetrics {
+
+    /** Pipeline stages, in the order they run. */
+    public enum Stage {
+        /** {@link HL7SimpleData#parse} */
+        SEGMENT_PARSE("segment-parse"),
+        /** HAPI v2 parse of the raw message */
+        HL7_PARSE("hl7-parse"),
+        /** LinuxForHealth template engine building the Bundle */
+        TRANSFORM("transform"),
+        /** {@link BundleNormalizer#normalize} */
+        NORMALIZE("normalize"),
+        /** FHIR JSON encoding of the normalized Bundle */
+        ENCODE("encode");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    static final String STAGE_TIMER = "hl7.conversion.stage";
+    static final String TAG_EVENT = "eventCode";
+    static final String TAG_FACILITY = "sendingFacility";
+
+    private static final String UNKNOWN = "unknown";
+    private static final int MAX_CACHED_TAG_PAIRS = 1024;
+    /** Bundle user-data key under which {@link ConversionPipeline} keeps a message's meters for its encode stage. */
+    static final String USER_DATA_KEY = ConversionMetrics.class.getName();
+
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCountingThreadBean();
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, Meters> metersByTags = new ConcurrentHashMap<>();
+
+    public ConversionMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Caps the number of distinct {@code sendingFacility} values across the {@code hl7.} meters; further
+     * facilities are not recorded, so a misbehaving sender cannot blow up the number of time series.
+     */
+    public static MeterFilter facilityTagLimit(int maxFacilities) {
+        return MeterFilter.maximumAllowableTags("hl7.", TAG_FACILITY, maxFacilities, MeterFilter.deny());
+    }
+
+    /**
+     * Caps the number of distinct {@code eventCode} values across the {@code hl7.} meters; MSH-9 is free text
+     * to a sender, so further codes are not recorded either.
+     */
+    public static MeterFilter eventTagLimit(int maxEventCodes) {
+        return MeterFilter.maximumAllowableTags("hl7.", TAG_EVENT, maxEventCodes, MeterFilter.deny());
+    }
+
+    /** Publishes the per-rule counters of {@code engine} as {@code hl7.normalization.rule} function timers. */
+    public void bindRuleStats(NormalizationRuleEngine engine) {
+        for (NormalizationRuleEngine.RuleStats stats : engine.stats()) {
+            FunctionTimer.builder("hl7.normalization.rule", stats,
+                            NormalizationRuleEngine.RuleStats::getInvocations,
+                            st -> st.getTotalTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                    .description("Time spent in one normalization rule")
+                    .tag("rule", stats.getRule())
+                    .register(registry);
+        }
+    }
+
+    /** Starts timing a message of {@code messageLength} chars; the first stage starts now. */
+    public Recorder start(int messageLength) {
+        return new Recorder(messageLength);
+    }
+
+    Meters meters(String eventCode, String sendingFacility) {
+        String event = eventCode == null || eventCode.isBlank() ? UNKNOWN : eventCode;
+        String facility = sendingFacility == null || sendingFacility.isBlank() ? UNKNOWN : sendingFacility;
+        String key = event + '\u0000' + facility;
+        Meters m = metersByTags.get(key);
+        if (m == null) {
+            m = new Meters(event, facility);
+            if (metersByTags.size() < MAX_CACHED_TAG_PAIRS) {
+                Meters prev = metersByTags.putIfAbsent(key, m);
+                if (prev != null) m = prev;
+            }
+        }
+        return m;
+    }
+
+    /** The meters of one (message type, facility) pair. */
+    final class Meters {
+        final Timer[] stageTimers = new Timer[Stage.values().length];
+        final DistributionSummary[] stageAllocations = new DistributionSummary[Stage.values().length];
+        final Counter[] stageFailures = new Counter[Stage.values().length];
+        final DistributionSummary messageSize;
+        final DistributionSummary bundleEntries;
+
+        Meters(String event, String facility) {
+            for (Stage s : Stage.values()) {
+                stageTimers[s.ordinal()] = Timer.builder(STAGE_TIMER)
+                        .description("Time spent in one stage of HL7 v2 -> FHIR conversion")
+                        .tags("stage", s.tag, TAG_EVENT, event, TAG_FACILITY, facility)
+                        .publishPercentiles(0.5, 0.99)
+                        .register(registry);
+                stageAllocations[s.ordinal()] = DistributionSummary.builder("hl7.conversion.stage.allocated")
+                        .description("Heap allocated by the converting thread in one stage")
+                        .baseUnit("bytes")
+                        .tags("stage", s.tag, TAG_EVENT, event, TAG_FACILITY, facility)
+                        .register(registry);
+                stageFailures[s.ordinal()] = Counter.builder("hl7.conversion.failures")
+                        .description("Messages that failed in this stage")
+                        .tags("stage", s.tag, TAG_EVENT, event, TAG_FACILITY, facility)
+                        .register(registry);
+            }
+            messageSize = DistributionSummary.builder("hl7.message.size")
+                    .description("Size of the raw HL7 message")
+                    .baseUnit("chars")
+                    .tags(TAG_EVENT, event, TAG_FACILITY, facility)
+                    .register(registry);
+            bundleEntries = DistributionSummary.builder("hl7.bundle.entries")
+                    .description("Entries in the normalized Bundle")
+                    .tags(TAG_EVENT, event, TAG_FACILITY, facility)
+                    .register(registry);
+        }
+
+        /** Times {@code stage} from {@code startNanos} (and allocations from {@code startAllocated}) to now. */
+        void record(Stage stage, long startNanos, long startAllocated) {
+            stageTimers[stage.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            if (startAllocated >= 0) {
+                stageAllocations[stage.ordinal()].record(allocatedBytes() - startAllocated);
+            }
+        }
+    }
+
+    /** Per-message stopwatch: each {@link #lap} closes the current stage and starts the next. Not thread-safe. */
+    public final class Recorder {
+        private final int messageLength;
+        private Meters meters;
+        private long stageStart = System.nanoTime();
+        private long stageAllocated = allocatedBytes();
+
+        Recorder(int messageLength) {
+            this.messageLength = messageLength;
+        }
+
+        /** Sets the tags; must be called before the first {@link #lap}. */
+        public Recorder tag(String eventCode, String sendingFacility) {
+            meters = meters(eventCode, sendingFacility);
+            return this;
+        }
+
+        public void lap(Stage finished) {
+            meters.record(finished, stageStart, stageAllocated);
+            stageStart = System.nanoTime();
+            stageAllocated = allocatedBytes();
+        }
+
+        /** Counts a failure in {@code stage} (untagged if it happened before {@link #tag}). */
+        public void failed(Stage stage) {
+            (meters != null ? meters : meters(null, null)).stageFailures[stage.ordinal()].increment();
+        }
+
+        /** Records message size and entry count, and hands the meters to the encode stage via the Bundle. */
+        public void completed(Bundle bundle) {
+            meters.messageSize.record(messageLength);
+            meters.bundleEntries.record(bundle.getEntry().size());
+            bundle.setUserData(USER_DATA_KEY, meters);
+        }
+    }
+
+    /** Bytes allocated so far by the current thread, or -1 where the JVM cannot tell. */
+    static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCountingThreadBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+                if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) return sun;
+            }
+        } catch (LinkageError | UnsupportedOperationException ignored) {
+            // not a HotSpot-compatible JVM
+        }
+        return null;
+    }
+}
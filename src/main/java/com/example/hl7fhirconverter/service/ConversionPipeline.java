@@ -0,0 +1,249 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.model.Message;
+import com.example.hl7fhirconverter.service.ConversionMetrics.Stage;
+import io.micrometer.core.instrument.Metrics;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.stream.Collectors;
+
+/**
+ * The HL7 v2 -> normalized FHIR Bundle pipeline shared by every entry point
+ * (single-message REST, batch NDJSON, ...).
+ * Thread-safe: the converter and normalizer hold no per-message state and HAPI parsers are created per call.
+ */
+@Service
+public class ConversionPipeline {
+
+    private final HL7BundleConverter converter = new HL7BundleConverter();
+    private final FhirContext fhirCtx = FhirContext.forR4();
+    private final BundleNormalizer normalizer;
+    private final ConversionMetrics metrics;
+    private final boolean payloadsByReference;
+    private final PatientStateStore patientState;
+    private final MessageDeduplicator deduplicator;
+
+    /** Built-in normalization rules only; metrics go to Micrometer's global registry. */
+    public ConversionPipeline() {
+        this.normalizer = new BundleNormalizer();
+        this.metrics = new ConversionMetrics(Metrics.globalRegistry);
+        this.payloadsByReference = true;
+        this.patientState = new PatientStateStore();
+        this.deduplicator = new MessageDeduplicator();
+    }
+
+    /**
+     * Built-in normalization rules plus any {@link NormalizationRule} beans, in {@code @Order}; reference
+     * resources (providers, payers, locations) shared across messages through {@code referenceData}; code
+     * mappings from {@code terminology}; site details from the sending facility's profile in {@code profiles}. With {@code converter.payloads.enabled} (the default), base64 OBX-5
+     * ED documents are attached to the Bundle by reference ({@link EmbeddedPayloads}); otherwise they are
+     * dropped by the converter templates, as before. {@code patientState} and {@code deduplicator} back {@link #convertIncoming}.
+     */
+    @Autowired
+    public ConversionPipeline(ObjectProvider<NormalizationRule> extraRules, ConversionMetrics metrics,
+                              ReferenceDataCache referenceData, TerminologyMaps terminology,
+                              NormalizationProfiles profiles, PatientStateStore patientState, MessageDeduplicator deduplicator,
+                              @Value("${converter.payloads.enabled:true}") boolean payloadsByReference) {
+        this.normalizer = new BundleNormalizer(extraRules.orderedStream().collect(Collectors.toList()), referenceData,
+                terminology, profiles);
+        this.metrics = metrics;
+        this.payloadsByReference = payloadsByReference;
+        this.patientState = patientState;
+        this.deduplicator = deduplicator;
+        metrics.bindRuleStats(normalizer.getRuleEngine());
+    }
+
+    public NormalizationRuleEngine getRuleEngine() {
+        return normalizer.getRuleEngine();
+    }
+
+    /** LinuxForHealth conversion followed by {@link BundleNormalizer#normalize}, timed per stage. */
+    public Bundle convert(String hl7Message) {
+        return convert(hl7Message, metrics, false);
+    }
+
+    /**
+     * {@link #convert(String)} for a message just received (REST, MLLP). With {@code converter.dedup.enabled},
+     * a message already converted and delivered before is not converted again ({@link MessageDeduplicator});
+     * the caller calls {@link DeliveryReceipt#delivered} on the Bundle's {@link DeliveryReceipt#of receipt} once
+     * it has been delivered, and only then is the message remembered. With
+     * {@code converter.state.enabled}, an update event (A08, A31) is reduced to the resources that changed since
+     * the patient's last delivered message ({@link BundleDelta}), and the patient state store is updated on
+     * delivery. A Bundle that will not be delivered after all must be given up with
+     * {@link DeliveryReceipt#abandoned}.
+     * Backfills and replays, which may see a message twice on purpose, use {@link #convert(String)} and always
+     * get the full Bundle.
+     *
+     * @throws DuplicateMessageException if the message is a duplicate
+     */
+    public Bundle convertIncoming(String hl7Message) {
+        return convert(hl7Message, metrics, true);
+    }
+
+    /** {@link #convert(String)} with the stage timings (including a later encode) going to {@code metrics}. */
+    Bundle convert(String hl7Message, ConversionMetrics metrics) {
+        return convert(hl7Message, metrics, false);
+    }
+
+    private Bundle convert(String hl7Message, ConversionMetrics metrics, boolean incoming) {
+        ConversionMetrics.Recorder rec = metrics.start(hl7Message == null ? 0 : hl7Message.length());
+        Stage stage = Stage.SEGMENT_PARSE;
+        DeliveryReceipt receipt = incoming ? new DeliveryReceipt() : DeliveryReceipt.NONE;
+        try {
+            // Cheap segment scan first: it yields the message type / facility the other stages are tagged with
+            HL7SimpleData data = HL7SimpleData.parse(hl7Message);
+            rec.tag(data.eventCode, data.sendingFacility).lap(stage);
+            if (incoming) deduplicator.checkNew(data, hl7Message, receipt);
+
+            // Embedded documents bypass HAPI and the templates; they are attached after normalizing
+            EmbeddedPayloads payloads = payloadsByReference ? data.payloads : EmbeddedPayloads.NONE;
+
+            stage = Stage.HL7_PARSE;
+            Message message = converter.parse(payloads.strippedMessage(hl7Message));
+            rec.lap(stage);
+
+            stage = Stage.TRANSFORM;
+            Bundle bundle = converter.convert(message);
+            rec.lap(stage);
+
+            stage = Stage.NORMALIZE;
+            Bundle normalized = normalizer.normalize(bundle, data, receipt);
+            payloads.attach(normalized, data);
+            if (incoming && patientState.isEnabled()) BundleDelta.apply(normalized, data, patientState, receipt);
+            rec.lap(stage);
+
+            rec.completed(normalized);
+            if (incoming) receipt.attachTo(normalized);
+            return normalized;
+        } catch (DuplicateMessageException e) {
+            // Not a failure: the sender resent something already converted
+            throw e;
+        } catch (RuntimeException e) {
+            receipt.abandoned();
+            rec.failed(stage);
+            throw e;
+        }
+    }
+
+    /**
+     * True if {@link #convert} would attach base64 documents from {@code hl7Message} by reference, in which
+     * case {@link #encode(Bundle, Writer, boolean)} streams them without ever building the JSON as a String.
+     */
+    public boolean hasEmbeddedPayloads(String hl7Message) {
+        return payloadsByReference && EmbeddedPayloads.present(hl7Message);
+    }
+
+    public String encode(Bundle bundle) {
+        long start = System.nanoTime();
+        long allocated = ConversionMetrics.allocatedBytes();
+        String json;
+        if (bundle.getUserData(EmbeddedPayloads.USER_DATA_KEY) == null) {
+            json = fhirCtx.newJsonParser().encodeResourceToString(bundle);
+        } else {
+            java.io.StringWriter sw = new java.io.StringWriter();
+            try {
+                EmbeddedPayloads.encode(fhirCtx.newJsonParser(), bundle, sw);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            json = sw.toString();
+        }
+        recordEncode(bundle, start, allocated);
+        return json;
+    }
+
+    /** Encodes on a single line (no pretty-printing), suitable for NDJSON. */
+    public void encode(Bundle bundle, Writer out) throws IOException {
+        encode(bundle, out, false);
+    }
+
+    /**
+     * Streams the JSON straight into {@code out}; the encoded Bundle never exists as one String.
+     * The encode timer therefore includes any time spent blocked writing to {@code out}.
+     */
+    public void encode(Bundle bundle, Writer out, boolean prettyPrint) throws IOException {
+        long start = System.nanoTime();
+        long allocated = ConversionMetrics.allocatedBytes();
+        EmbeddedPayloads.encode(fhirCtx.newJsonParser().setPrettyPrint(prettyPrint), bundle, out);
+        recordEncode(bundle, start, allocated);
+    }
+
+    /**
+     * Encodes the resource of each entry on a single line, as in FHIR Bulk Data NDJSON files, and hands it to
+     * {@code sink} with its resource type. Timed as one encode of the Bundle.
+     */
+    public void encodeResources(Bundle bundle, ResourceSink sink) throws IOException {
+        long start = System.nanoTime();
+        long allocated = ConversionMetrics.allocatedBytes();
+        IParser parser = fhirCtx.newJsonParser();
+        java.io.StringWriter sw = new java.io.StringWriter();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) continue;
+            sw.getBuffer().setLength(0);
+            EmbeddedPayloads.encode(parser, bundle, resource, sw);
+            sink.accept(resource.fhirType(), sw.toString());
+        }
+        recordEncode(bundle, start, allocated);
+    }
+
+    /** Receives the lines written by {@link #encodeResources}. */
+    public interface ResourceSink {
+        void accept(String resourceType, String json) throws IOException;
+    }
+
+    private static void recordEncode(Bundle bundle, long startNanos, long startAllocated) {
+        // Only Bundles that came out of convert() carry their meters
+        Object meters = bundle.getUserData(ConversionMetrics.USER_DATA_KEY);
+        if (meters instanceof ConversionMetrics.Meters) {
+            ((ConversionMetrics.Meters) meters).record(Stage.ENCODE, startNanos, startAllocated);
+        }
+    }
+
+    public String encodeError(String diagnostics) {
+        java.io.StringWriter sw = new java.io.StringWriter();
+        try {
+            encodeError(diagnostics, sw);
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    /** OperationOutcome describing a message that could not be converted. */
+    public void encodeError(String diagnostics, Writer out) throws IOException {
+        encodeOutcome(OperationOutcome.IssueSeverity.ERROR, OperationOutcome.IssueType.PROCESSING, diagnostics, out);
+    }
+
+    /** OperationOutcome (severity information, code duplicate) standing in for a message not converted again. */
+    public String encodeDuplicate(DuplicateMessageException duplicate) {
+        java.io.StringWriter sw = new java.io.StringWriter();
+        try {
+            encodeOutcome(OperationOutcome.IssueSeverity.INFORMATION, OperationOutcome.IssueType.DUPLICATE,
+                    duplicate.getMessage(), sw);
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    private void encodeOutcome(OperationOutcome.IssueSeverity severity, OperationOutcome.IssueType code,
+                               String diagnostics, Writer out) throws IOException {
+        OperationOutcome oo = new OperationOutcome();
+        oo.addIssue()
+                .setSeverity(severity)
+                .setCode(code)
+                .setDiagnostics(diagnostics);
+        fhirCtx.newJsonParser().encodeResourceToWriter(oo, out);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The built-in per-entry fixes that used to be inline passes in {@link BundleNormalizer}.
+ */
+final class DefaultNormalizationRules {
+
+    private DefaultNormalizationRules() {}
+
+    /**
+     * In the order they run on each entry; code mappings come from {@code terminology}, site defaults from the
+     * sending facility's profile in {@code profiles}.
+     */
+    static List<NormalizationRule> all(TerminologyMaps terminology, NormalizationProfiles profiles) {
+        return Arrays.asList(
+                new EncounterServiceTypeRule(terminology.get(TerminologyMaps.SERVICE_TYPE)),
+                new EncounterAdmitSourceRule(terminology.get(TerminologyMaps.ADMIT_SOURCE)),
+                new EncounterSpecialArrangementRule(),
+                new StripIbmExtensionsRule(),
+                new DuplicateUrnPrefixRule(),
+                new CoveragePayorAndClassRule(profiles));
+    }
+
+    private static final String DUPLICATE_URN = "urn:uuid:urn:uuid:";
+
+    /** Normalize serviceType coding via the service-type map (v2 0069 SUR -> SNOMED 394609007). */
+    static final class EncounterServiceTypeRule implements NormalizationRule {
+        private final TerminologyMaps.Table map;
+
+        EncounterServiceTypeRule(TerminologyMaps.Table map) {
+            this.map = map;
+        }
+
+        @Override
+        public Set<ResourceType> resourceTypes() {
+            return EnumSet.of(ResourceType.Encounter);
+        }
+
+        @Override
+        public void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data) {
+            Encounter enc = (Encounter) entry.getResource();
+            if (!enc.hasServiceType()) return;
+            Coding c = enc.getServiceType().getCodingFirstRep();
+            if (map.hasSource(c.getSystem()) && !map.translateInPlace(c)) {
+                // unknown mapping, remove coding to avoid invalid system
+                enc.setServiceType(null);
+            }
+        }
+    }
+
+    /** Admit source map/remove via the admit-source map (v2 0023). */
+    static final class EncounterAdmitSourceRule implements NormalizationRule {
+        private final TerminologyMaps.Table map;
+
+        EncounterAdmitSourceRule(TerminologyMaps.Table map) {
+            this.map = map;
+        }
+
+        @Override
+        public Set<ResourceType> resourceTypes() {
+            return EnumSet.of(ResourceType.Encounter);
+        }
+
+        @Override
+        public void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data) {
+            Encounter enc = (Encounter) entry.getResource();
+            if (!enc.hasHospitalization() || !enc.getHospitalization().hasAdmitSource()) return;
+            Coding srcCoding = enc.getHospitalization().getAdmitSource().getCodingFirstRep();
+            if (!map.hasSource(srcCoding.getSystem())) return;
+            if (map.translateInPlace(srcCoding)) {
+                enc.getHospitalization().getAdmitSource().setText(srcCoding.getDisplay());
+            } else {
+                // remove invalid coding
+                enc.getHospitalization().setAdmitSource(null);
+            }
+        }
+    }
+
+    /** Remove specialArrangement codes if system v2-0009. */
+    static final class EncounterSpecialArrangementRule implements NormalizationRule {
+        @Override
+        public Set<ResourceType> resourceTypes() {
+            return EnumSet.of(ResourceType.Encounter);
+        }
+
+        @Override
+        public void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data) {
+            Encounter enc = (Encounter) entry.getResource();
+            if (!enc.hasHospitalization() || !enc.getHospitalization().hasSpecialArrangement()) return;
+            Iterator<CodeableConcept> it = enc.getHospitalization().getSpecialArrangement().iterator();
+            while (it.hasNext()) {
+                CodeableConcept cc = it.next();
+                if (cc.hasCoding() && "http://terminology.hl7.org/CodeSystem/v2-0009".equals(cc.getCodingFirstRep().getSystem())) {
+                    // unsupported code, drop
+                    it.remove();
+                }
+            }
+            if (enc.getHospitalization().getSpecialArrangement().isEmpty()) {
+                enc.getHospitalization().setSpecialArrangement(null);
+            }
+        }
+    }
+
+    /** Remove any meta extensions whose URL contains "ibm.com". */
+    static final class StripIbmExtensionsRule implements NormalizationRule {
+        @Override
+        public Set<ResourceType> resourceTypes() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data) {
+            Resource res = entry.getResource();
+            if (res == null) return;
+            Meta m = res.getMeta();
+            if (m != null && m.hasExtension()) {
+                m.getExtension().removeIf(ex -> ex.getUrl() != null && ex.getUrl().contains("ibm.com"));
+            }
+        }
+    }
+
+    /** Clean duplicate urn prefixes in fullUrls. */
+    static final class DuplicateUrnPrefixRule implements NormalizationRule {
+        @Override
+        public Set<ResourceType> resourceTypes() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data) {
+            if (entry.hasFullUrl() && entry.getFullUrl().startsWith(DUPLICATE_URN)) {
+                entry.setFullUrl(entry.getFullUrl().substring(9));
+            }
+        }
+    }
+
+    /**
+     * Payor reference prefix fix, and class[0] typed as a coverage-class group with a value (US Core requires
+     * one), the profile's {@code default-coverage-group} if the message has none. A profile without a default
+     * group leaves a Coverage without class as it is.
+     */
+    static final class CoveragePayorAndClassRule implements NormalizationRule {
+        private final NormalizationProfiles profiles;
+
+        CoveragePayorAndClassRule(NormalizationProfiles profiles) {
+            this.profiles = profiles;
+        }
+
+        @Override
+        public Set<ResourceType> resourceTypes() {
+            return EnumSet.of(ResourceType.Coverage);
+        }
+
+        @Override
+        public void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data) {
+            Coverage cv = (Coverage) entry.getResource();
+            for (Reference ref : cv.getPayor()) {
+                if (ref.hasReference() && ref.getReference().startsWith(DUPLICATE_URN)) {
+                    ref.setReference(ref.getReference().substring(9));
+                }
+            }
+
+            String group = profiles.select(data).defaultCoverageGroup();
+            if (cv.getClass_().isEmpty()) {
+                if (group == null) return;
+                cv.addClass_().setType(groupType()).setValue(group);
+            } else {
+                Coverage.ClassComponent cls = cv.getClass_().get(0);
+                if ((!cls.hasValue() || cls.getValue().isBlank()) && group != null) {
+                    cls.setValue(group);
+                }
+                if (!cls.hasType()) {
+                    cls.setType(groupType());
+                }
+            }
+        }
+
+        private static CodeableConcept groupType() {
+            return new CodeableConcept().addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/coverage-class")
+                    .setCode("group"));
+        }
+    }
+}
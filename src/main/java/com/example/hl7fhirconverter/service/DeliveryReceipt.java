@@ -0,0 +1,88 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What {@link ConversionPipeline#convertIncoming} holds back until its Bundle has actually reached the
+ * receiver: the {@link MessageDeduplicator} records the message, the {@link PatientStateStore} the digests
+ * of its resources, and the {@link ReferenceDataCache} the reference resources it carried, only then. A
+ * message whose delivery failed (a listener threw, the response or NDJSON line could not be written) is
+ * therefore converted again when the sender resends it instead of being answered as a duplicate, and the next
+ * update event is compared with what the receiver actually has.
+ * <p>
+ * Entry points take the receipt from the Bundle with {@link #of} and call {@link #delivered} once the output
+ * is out: after the response or NDJSON line has been written, or after the MLLP event listeners returned.
+ * A Bundle that will not go out must be given up with {@link #abandoned}, or its patient's resources count as
+ * changed from then on. Until delivery a resend is not recognized, so two copies of a message received at the
+ * same time may both be converted and delivered.
+ * <p>
+ * Filled in on the thread that converts the message, before the Bundle is handed on; {@link #delivered} and
+ * {@link #abandoned} may then be called from any thread, and more than once: only the first call counts.
+ */
+public final class DeliveryReceipt {
+
+    static final String USER_DATA_KEY = DeliveryReceipt.class.getName();
+
+    /** Nothing to record: Bundles from {@link ConversionPipeline#convert(String)}, failures, duplicates. */
+    public static final DeliveryReceipt NONE = new DeliveryReceipt();
+
+    private MessageDeduplicator deduplicator;
+    private long messageKey;
+    private long messageContent;
+    private PatientStateStore patientState;
+    private long[] stateKeys;
+    private long[] stateDigests;
+    private List<Runnable> actions;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    DeliveryReceipt() {
+    }
+
+    /** The receipt of a Bundle returned by {@link ConversionPipeline#convertIncoming}, else {@link #NONE}. */
+    public static DeliveryReceipt of(Bundle bundle) {
+        Object receipt = bundle.getUserData(USER_DATA_KEY);
+        return receipt instanceof DeliveryReceipt ? (DeliveryReceipt) receipt : NONE;
+    }
+
+    void attachTo(Bundle bundle) {
+        bundle.setUserData(USER_DATA_KEY, this);
+    }
+
+    /** On delivery, {@code deduplicator} records the message identified by {@code key} and {@code content}. */
+    void recordMessage(MessageDeduplicator deduplicator, long key, long content) {
+        this.deduplicator = deduplicator;
+        this.messageKey = key;
+        this.messageContent = content;
+    }
+
+    /** On delivery, {@code store} stores {@code digests}, which it has {@link PatientStateStore#compare compared}. */
+    void commitState(PatientStateStore store, long[] keys, long[] digests) {
+        this.patientState = store;
+        this.stateKeys = keys;
+        this.stateDigests = digests;
+    }
+
+    /** Runs {@code action} on delivery. */
+    void onDelivery(Runnable action) {
+        if (actions == null) actions = new ArrayList<>();
+        actions.add(action);
+    }
+
+    /** The Bundle has been delivered: the message now counts as converted, its resources as the patient's. */
+    public void delivered() {
+        if (!settled.compareAndSet(false, true)) return;
+        if (deduplicator != null) deduplicator.record(messageKey, messageContent, System.currentTimeMillis());
+        if (patientState != null) patientState.commit(stateKeys, stateDigests);
+        if (actions != null) actions.forEach(Runnable::run);
+    }
+
+    /** The Bundle will not be delivered: nothing is recorded. No-op once {@link #delivered}. */
+    public void abandoned() {
+        if (!settled.compareAndSet(false, true)) return;
+        if (patientState != null) patientState.release(stateKeys);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.hl7fhirconverter.service;
+
+/**
+ * Thrown by {@link ConversionPipeline#convertIncoming} instead of converting a message that
+ * {@link MessageDeduplicator} has seen before. Entry points answer it as accepted, not as a failure.
+ */
+public class DuplicateMessageException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String controlId;
+    private final boolean probable;
+
+    DuplicateMessageException(String controlId, boolean probable) {
+        super((probable ? "Probable duplicate" : "Duplicate") + " of message "
+                + (controlId == null ? "(no MSH-10)" : controlId) + ", not converted again");
+        this.controlId = controlId;
+        this.probable = probable;
+    }
+
+    /** MSH-10 of the message, or null if it has none. */
+    public String getControlId() {
+        return controlId;
+    }
+
+    /** True if only the long-horizon filter matched (see {@code converter.dedup.drop-probable}). */
+    public boolean isProbable() {
+        return probable;
+    }
+}
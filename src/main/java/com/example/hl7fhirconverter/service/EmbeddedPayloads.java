@@ -0,0 +1,457 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Base64 documents carried as OBX-5 ED values ({@code app^type^subtype^Base64^data}), handled by reference
+ * instead of by value.
+ * <p>
+ * {@link HL7SimpleData#parse} finds them (see {@link #read}) in its single tokenizer pass and records each as
+ * an offset range into the original message String, which stays the only copy of the data: the HAPI parse
+ * and the LinuxForHealth templates get the message with those data components emptied (the templates have
+ * no mapping for ED values, so this loses nothing), and {@link #attach} adds an Attachment per payload to the normalized
+ * Bundle, in the DiagnosticReport.presentedForm of the payload's OBR group or else a new DocumentReference.
+ * <p>
+ * The Attachment's data reads as a 16-character token while the Bundle is encoded; {@link #encode} wraps the
+ * output Writer and replaces each token with the base64 text copied from the message in fixed-size chunks.
+ * A payload is thus never decoded, re-encoded or held as a String or byte[] of its own on its way through
+ * the pipeline, however large it is. Code that reads {@code Attachment.getData()} in-process still gets the
+ * decoded bytes, decoded on that call. Immutable and thread-safe.
+ */
+final class EmbeddedPayloads {
+
+    /** Bundle user-data key under which {@link #attach} leaves the payloads for {@link #encode}. */
+    static final String USER_DATA_KEY = EmbeddedPayloads.class.getName();
+
+    private static final int NONCE_BYTES = 9;
+    /** Token = base64(nonce + 24-bit payload index): a fixed 12-char prefix and 4 index chars. */
+    private static final String TOKEN_PREFIX;
+    private static final int PREFIX_LENGTH = NONCE_BYTES / 3 * 4;
+    private static final int TOKEN_LENGTH = PREFIX_LENGTH + 4;
+    private static final byte[] NONCE = new byte[NONCE_BYTES];
+
+    static {
+        // Random per process, so a token cannot collide with base64 a sender put anywhere else in the message
+        new SecureRandom().nextBytes(NONCE);
+        TOKEN_PREFIX = Base64.getEncoder().encodeToString(NONCE);
+    }
+
+    private static final int COPY_CHUNK = 8192;
+    private static final byte[] NO_BYTES = new byte[0];
+    /** Base64 alphabet value by char, -1 for chars outside it. */
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+    /** Set while {@link #encode} runs on this thread. */
+    private static final ThreadLocal<Boolean> ENCODING = new ThreadLocal<>();
+
+    static final EmbeddedPayloads NONE = new EmbeddedPayloads(null, Collections.emptyList(), 0);
+
+    /** One OBX-5 ED value: where its data sits in the source message, and what describes it. */
+    static final class Payload {
+        final String source;
+        final int start;
+        final int end;
+        final int obrIndex;
+        final String contentType;
+        final String title;
+
+        Payload(String source, int start, int end, int obrIndex, String contentType, String title) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.obrIndex = obrIndex;
+            this.contentType = contentType;
+            this.title = title;
+        }
+
+        /** Size of the decoded data, from the base64 length and padding. */
+        long decodedSize() {
+            long size = (end - start) / 4L * 3;
+            if (source.charAt(end - 1) == '=') size--;
+            if (source.charAt(end - 2) == '=') size--;
+            return size;
+        }
+    }
+
+    /**
+     * Attachment data standing in for a payload: encodes as the payload's token, decodes from the source
+     * message on demand. {@code copy()} (used by {@code Bundle.copy()}) yields an ordinary, materialized value.
+     */
+    private static final class PayloadData extends Base64BinaryType {
+        private static final long serialVersionUID = 1L;
+
+        private final Payload payload;
+        private final String token;
+
+        PayloadData(Payload payload, String token) {
+            this.payload = payload;
+            this.token = token;
+        }
+
+        @Override
+        public String getValueAsString() {
+            return token;
+        }
+
+        @Override
+        public byte[] getValue() {
+            // The JSON encoder asks for the value only to check its type; it writes getValueAsString()
+            if (ENCODING.get() != null) return NO_BYTES;
+            return Base64.getDecoder().decode(payload.source.substring(payload.start, payload.end));
+        }
+
+        @Override
+        public boolean hasValue() {
+            return true;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public Base64BinaryType copy() {
+            Base64BinaryType copy = new Base64BinaryType(getValue());
+            copyValues(copy);
+            return copy;
+        }
+    }
+
+    private final String source;
+    private final List<Payload> payloads;
+    private final int obrGroups;
+
+    /**
+     * @param payloads  found by {@link #read} in {@code source}, in message order
+     * @param obrGroups number of OBR segments in {@code source}
+     */
+    EmbeddedPayloads(String source, List<Payload> payloads, int obrGroups) {
+        this.source = source;
+        this.payloads = Collections.unmodifiableList(payloads);
+        this.obrGroups = obrGroups;
+    }
+
+    /**
+     * The payload in the OBX segment {@code t} is positioned on, or null if OBX-5 is not an ED value with
+     * strictly base64 data (alphabet, length a multiple of 4, at most two trailing {@code =}).
+     *
+     * @param obrIndex zero-based position of the enclosing OBR segment, -1 if none
+     */
+    static Payload read(HL7Tokenizer t, String hl7Message, int obrIndex) {
+        if (!t.fieldIs(2, "ED") || t.fieldCount() <= 5) return null;
+        // ED: source application ^ type of data ^ data subtype ^ encoding ^ data
+        if (t.splitComponents(5) < 5) return null;
+        int encStart = t.componentStart(3);
+        if (t.componentEnd(3) - encStart != 6 || !hl7Message.regionMatches(true, encStart, "Base64", 0, 6)) return null;
+        int start = t.componentStart(4);
+        int end = t.componentEnd(4);
+        if (!isBase64(hl7Message, start, end)) return null;
+        String contentType = contentType(t.component(1), t.component(2));
+        // OBX-3 text, else its code
+        String title = null;
+        int titleComps = t.splitComponents(3);
+        if (titleComps > 1 && t.componentEnd(1) > t.componentStart(1)) {
+            title = t.component(1);
+        } else if (titleComps > 0 && t.componentEnd(0) > t.componentStart(0)) {
+            title = t.component(0);
+        }
+        return new Payload(hl7Message, start, end, obrIndex, contentType, title);
+    }
+
+    /** True if {@code hl7Message} has at least one payload {@link #read} would accept. */
+    static boolean present(String hl7Message) {
+        if (hl7Message == null) return false;
+        HL7Tokenizer t = new HL7Tokenizer(hl7Message);
+        while (t.nextSegment()) {
+            if (t.segmentIs("OBX") && read(t, hl7Message, -1) != null) return true;
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return payloads.isEmpty();
+    }
+
+    /** The source message with every payload's data component emptied, or {@code hl7Message} if there are none. */
+    String strippedMessage(String hl7Message) {
+        if (payloads.isEmpty()) return hl7Message;
+        int removed = 0;
+        for (Payload p : payloads) removed += p.end - p.start;
+        StringBuilder sb = new StringBuilder(source.length() - removed);
+        int from = 0;
+        for (Payload p : payloads) {
+            sb.append(source, from, p.start);
+            from = p.end;
+        }
+        return sb.append(source, from, source.length()).toString();
+    }
+
+    /**
+     * Adds an Attachment per payload to {@code bundle}: to the presentedForm of the DiagnosticReport of the
+     * payload's OBR group, or else to a new DocumentReference for the patient. Reports are matched to OBR
+     * groups by position, so only while the Bundle holds one report per OBR segment; an OBX outside any OBR
+     * group, or in a message whose groups did not all become reports, gets a DocumentReference.
+     */
+    void attach(Bundle bundle, HL7SimpleData data) {
+        if (payloads.isEmpty()) return;
+        BundleIndex index = new BundleIndex(bundle);
+        List<DiagnosticReport> reports = index.ofType(ResourceType.DiagnosticReport);
+        Patient patient = index.first(ResourceType.Patient);
+        Encounter encounter = index.first(ResourceType.Encounter);
+        ResourceIdGenerator ids = new ResourceIdGenerator(data);
+        for (int i = 0; i < payloads.size(); i++) {
+            Payload p = payloads.get(i);
+            Attachment attachment = new Attachment()
+                    .setContentType(p.contentType)
+                    .setTitle(p.title);
+            attachment.setDataElement(new PayloadData(p, token(i)));
+            long size = p.decodedSize();
+            if (size <= Integer.MAX_VALUE) attachment.setSize((int) size);
+
+            if (p.obrIndex >= 0 && reports.size() == obrGroups) {
+                reports.get(p.obrIndex).addPresentedForm(attachment);
+                continue;
+            }
+            DocumentReference doc = new DocumentReference();
+            doc.setId(ids.next("OBX-5", Integer.toString(i)));
+            doc.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+            if (p.title != null) doc.setType(new CodeableConcept().setText(p.title));
+            if (patient != null) doc.setSubject(reference(patient));
+            if (encounter != null) doc.getContext().addEncounter(reference(encounter));
+            doc.addContent().setAttachment(attachment);
+            index.add(doc);
+        }
+        bundle.setUserData(USER_DATA_KEY, this);
+    }
+
+    /**
+     * Encodes {@code bundle} into {@code out} with {@code parser}. If the bundle carries payloads, the output
+     * goes through a Writer that passes everything on to {@code out} except payload tokens, which it replaces
+     * with the payload's base64 text.
+     */
+    static void encode(IParser parser, Bundle bundle, Writer out) throws IOException {
+        encode(parser, bundle, bundle, out);
+    }
+
+    /** {@link #encode(IParser, Bundle, Writer)} for {@code resource}, one of {@code bundle}'s entries. */
+    static void encode(IParser parser, Bundle bundle, Resource resource, Writer out) throws IOException {
+        Object payloads = bundle.getUserData(USER_DATA_KEY);
+        if (!(payloads instanceof EmbeddedPayloads)) {
+            parser.encodeResourceToWriter(resource, out);
+            return;
+        }
+        ENCODING.set(Boolean.TRUE);
+        try {
+            parser.encodeResourceToWriter(resource, new SplicingWriter(out, (EmbeddedPayloads) payloads));
+        } finally {
+            ENCODING.remove();
+        }
+    }
+
+    private static Reference reference(Resource r) {
+        return new Reference("urn:uuid:" + r.getIdElement().getIdPart());
+    }
+
+    private static String token(int index) {
+        byte[] b = new byte[NONCE_BYTES + 3];
+        System.arraycopy(NONCE, 0, b, 0, NONCE_BYTES);
+        b[NONCE_BYTES] = (byte) (index >>> 16);
+        b[NONCE_BYTES + 1] = (byte) (index >>> 8);
+        b[NONCE_BYTES + 2] = (byte) index;
+        return Base64.getEncoder().encodeToString(b);
+    }
+
+    /** MIME type for ED type of data (HL7 table 0191) and subtype (table 0291), application/octet-stream if unknown. */
+    static String contentType(String typeOfData, String subtype) {
+        if (subtype != null && !subtype.isEmpty()) {
+            if (subtype.indexOf('/') > 0) return subtype.toLowerCase(Locale.ROOT);
+            switch (subtype.toUpperCase(Locale.ROOT)) {
+                case "PDF":
+                    return "application/pdf";
+                case "RTF":
+                    return "application/rtf";
+                case "XML":
+                    return "application/xml";
+                case "HTML":
+                    return "text/html";
+                case "JPEG":
+                case "JPG":
+                    return "image/jpeg";
+                case "PNG":
+                    return "image/png";
+                case "GIF":
+                    return "image/gif";
+                case "TIFF":
+                case "TIF":
+                    return "image/tiff";
+                case "DICOM":
+                    return "application/dicom";
+                default:
+                    break;
+            }
+        }
+        if ("TEXT".equalsIgnoreCase(typeOfData)) return "text/plain";
+        return "application/octet-stream";
+    }
+
+    private static boolean isBase64(String s, int start, int end) {
+        int len = end - start;
+        if (len == 0 || (len & 3) != 0) return false;
+        int padding = 0;
+        if (s.charAt(end - 1) == '=') padding++;
+        if (padding == 1 && s.charAt(end - 2) == '=') padding++;
+        for (int i = start, n = end - padding; i < n; i++) {
+            if (base64Value(s.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    private static int base64Value(char c) {
+        return c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+    }
+
+    /**
+     * Pass-through Writer that recognizes payload tokens across write calls. Chars that might start a token
+     * are held back (at most {@link #TOKEN_LENGTH}) until the token completes or stops matching.
+     */
+    static final class SplicingWriter extends Writer {
+        private final Writer out;
+        private final EmbeddedPayloads payloads;
+        private final char[] pending = new char[TOKEN_LENGTH];
+        private int matched;
+        private char[] chunk;
+
+        SplicingWriter(Writer out, EmbeddedPayloads payloads) {
+            this.out = out;
+            this.payloads = payloads;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (matched == 0 && c != TOKEN_PREFIX.charAt(0)) {
+                out.write(c);
+            } else {
+                accept((char) c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int run = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = cbuf[i];
+                if (matched == 0) {
+                    if (c != TOKEN_PREFIX.charAt(0)) continue;
+                    out.write(cbuf, run, i - run);
+                }
+                run = i + 1;
+                accept(c);
+            }
+            if (run < end) out.write(cbuf, run, end - run);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int run = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = str.charAt(i);
+                if (matched == 0) {
+                    if (c != TOKEN_PREFIX.charAt(0)) continue;
+                    out.write(str, run, i - run);
+                }
+                run = i + 1;
+                accept(c);
+            }
+            if (run < end) out.write(str, run, end - run);
+        }
+
+        private void accept(char c) throws IOException {
+            pending[matched++] = c;
+            if (!partialToken(0, matched)) {
+                mismatch();
+            } else if (matched == TOKEN_LENGTH) {
+                int index = (base64Value(pending[PREFIX_LENGTH]) << 18) | (base64Value(pending[PREFIX_LENGTH + 1]) << 12)
+                        | (base64Value(pending[PREFIX_LENGTH + 2]) << 6) | base64Value(pending[PREFIX_LENGTH + 3]);
+                if (index < payloads.payloads.size()) {
+                    matched = 0;
+                    writePayload(payloads.payloads.get(index));
+                } else {
+                    mismatch();
+                }
+            }
+        }
+
+        /** Emits held-back chars up to the next position from which they could still begin a token. */
+        private void mismatch() throws IOException {
+            int n = matched;
+            int from = 1;
+            out.write(pending[0]);
+            while (from < n && !partialToken(from, n)) {
+                out.write(pending[from++]);
+            }
+            System.arraycopy(pending, from, pending, 0, n - from);
+            matched = n - from;
+        }
+
+        private boolean partialToken(int from, int to) {
+            for (int i = from; i < to; i++) {
+                int pos = i - from;
+                char c = pending[i];
+                if (pos < PREFIX_LENGTH ? c != TOKEN_PREFIX.charAt(pos) : base64Value(c) < 0) return false;
+            }
+            return true;
+        }
+
+        private void writePayload(Payload p) throws IOException {
+            // In chunks: Writer.write(String, off, len) may copy the whole range into a new char[]
+            if (chunk == null) chunk = new char[COPY_CHUNK];
+            for (int from = p.start; from < p.end; from += COPY_CHUNK) {
+                int to = Math.min(p.end, from + COPY_CHUNK);
+                p.source.getChars(from, to, chunk, 0);
+                out.write(chunk, 0, to - from);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (matched > 0) {
+                out.write(pending, 0, matched);
+                matched = 0;
+            }
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.hl7fhirconverter.service;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds original-mode HL7 v2 acknowledgements (MSH + MSA) for a received message.
+ */
+public final class HL7Acknowledgement {
+
+    /** MSA-1 acknowledgement codes. */
+    public static final String ACCEPT = "AA";
+    public static final String ERROR = "AE";
+    public static final String REJECT = "AR";
+
+    private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final AtomicLong CONTROL_IDS = new AtomicLong(System.currentTimeMillis());
+
+    private HL7Acknowledgement() {}
+
+    /**
+     * The ACK is written with the received message's own delimiters (MSH-1, MSH-2), so the fields it echoes
+     * back stay well-formed; without a readable MSH it uses {@code |^~\&}.
+     *
+     * @param message the received message (only its MSH segment is read)
+     * @param code    {@link #ACCEPT}, {@link #ERROR} or {@link #REJECT}
+     * @param text    optional MSA-3 text, e.g. the conversion error
+     */
+    public static String build(String message, String code, String text) {
+        String sendingApp = "", sendingFacility = "", receivingApp = "", receivingFacility = "";
+        String trigger = "", controlId = "", processingId = "P", version = "2.5.1";
+        char fieldSep = '|';
+        String encoding = "^~\\&";
+
+        HL7Tokenizer t = new HL7Tokenizer(message == null ? "" : message);
+        while (t.nextSegment()) {
+            if (!t.segmentIs("MSH")) continue;
+            fieldSep = t.fieldSeparator();
+            if (t.field(1) != null && !t.field(1).isEmpty()) encoding = t.field(1);
+            sendingApp = orEmpty(t.field(2));
+            sendingFacility = orEmpty(t.field(3));
+            receivingApp = orEmpty(t.field(4));
+            receivingFacility = orEmpty(t.field(5));
+            if (t.splitComponents(8) > 1) trigger = t.component(1);
+            controlId = orEmpty(t.field(9));
+            if (t.field(10) != null) processingId = t.field(10);
+            if (t.field(11) != null) version = t.field(11);
+            break;
+        }
+        char componentSep = encoding.charAt(0);
+
+        StringBuilder sb = new StringBuilder(160);
+        // Sender and receiver swap places in the reply
+        sb.append("MSH").append(fieldSep).append(encoding)
+                .append(fieldSep).append(receivingApp).append(fieldSep).append(receivingFacility)
+                .append(fieldSep).append(sendingApp).append(fieldSep).append(sendingFacility)
+                .append(fieldSep).append(LocalDateTime.now().format(TS))
+                .append(fieldSep).append(fieldSep).append("ACK").append(componentSep).append(trigger)
+                .append(componentSep).append("ACK")
+                .append(fieldSep).append(CONTROL_IDS.incrementAndGet())
+                .append(fieldSep).append(processingId).append(fieldSep).append(version).append('\r');
+        sb.append("MSA").append(fieldSep).append(code).append(fieldSep).append(controlId);
+        if (text != null && !text.isEmpty()) {
+            sb.append(fieldSep).append(stripDelimiters(text, fieldSep, encoding));
+        }
+        sb.append('\r');
+        return sb.toString();
+    }
+
+    private static String orEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static String stripDelimiters(String text, char fieldSep, String encoding) {
+        StringBuilder sb = new StringBuilder(Math.min(text.length(), 80));
+        for (int i = 0; i < text.length() && sb.length() < 80; i++) {
+            char c = text.charAt(i);
+            sb.append(c == fieldSep || encoding.indexOf(c) >= 0 || c == '\r' || c == '\n' ? ' ' : c);
+        }
+        return sb.toString();
+    }
+}
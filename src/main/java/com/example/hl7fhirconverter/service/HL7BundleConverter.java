@@ -0,0 +1,94 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.util.Hl7InputStreamMessageStringIterator;
+import io.github.linuxforhealth.core.terminology.TerminologyLookup;
+import io.github.linuxforhealth.core.terminology.UrlLookup;
+import io.github.linuxforhealth.fhir.FHIRContext;
+import io.github.linuxforhealth.hl7.message.HL7MessageData;
+import io.github.linuxforhealth.hl7.message.HL7MessageEngine;
+import io.github.linuxforhealth.hl7.message.HL7MessageModel;
+import io.github.linuxforhealth.hl7.parsing.HL7DataExtractor;
+import io.github.linuxforhealth.hl7.parsing.HL7HapiParser;
+import io.github.linuxforhealth.hl7.resource.ResourceReader;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drives the LinuxForHealth message templates directly and returns the R4 {@link Bundle} they build.
+ * {@code HL7ToFHIRConverter.convert} encodes that same Bundle to a JSON string, which we used to parse
+ * straight back into HAPI objects for {@link BundleNormalizer}; going through the engine skips that
+ * encode/parse round trip entirely.
+ * <p>
+ * Thread-safe: the template map is read-only after construction, and the engine, HAPI v2 parser
+ * and FHIR JSON parser are created per call.
+ */
+public class HL7BundleConverter {
+
+    private final Map<String, HL7MessageModel> messageTemplates;
+
+    public HL7BundleConverter() {
+        try {
+            messageTemplates = Map.copyOf(ResourceReader.getInstance().getMessageTemplates());
+            TerminologyLookup.init();
+            UrlLookup.init();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Failure to initialize the templates for the converter.", e);
+        }
+    }
+
+    /**
+     * Same contract as {@code HL7ToFHIRConverter.convert(String)} (collection Bundle, no validation)
+     * but hands back the in-memory Bundle instead of its JSON encoding.
+     */
+    public Bundle convert(String hl7MessageData) {
+        return convert(parse(hl7MessageData));
+    }
+
+    /** HAPI v2 parse, the first half of {@link #convert(String)}. */
+    public Message parse(String hl7MessageData) {
+        if (hl7MessageData == null || hl7MessageData.isBlank()) {
+            throw new IllegalArgumentException("Input HL7 message cannot be blank");
+        }
+        return parseHl7Message(hl7MessageData);
+    }
+
+    /** Runs the message template for {@code hl7message}'s type, the second half of {@link #convert(String)}. */
+    public Bundle convert(Message hl7message) {
+        String messageType = HL7DataExtractor.getMessageType(hl7message);
+        HL7MessageModel hl7MessageTemplateModel = messageTemplates.get(messageType);
+        if (hl7MessageTemplateModel == null) {
+            throw new UnsupportedOperationException("Message type not yet supported " + messageType);
+        }
+        HL7MessageEngine engine = new HL7MessageEngine(new FHIRContext(false, false), Bundle.BundleType.COLLECTION);
+        HL7MessageData dataSource = new HL7MessageData(new HL7DataExtractor(hl7message));
+        return engine.transform(dataSource, hl7MessageTemplateModel.getResources(), new HashMap<>());
+    }
+
+    private static Message parseHl7Message(String data) {
+        HL7HapiParser hparser = null;
+        try {
+            // The iterator normalises segment separators (LF / CRLF -> CR) exactly like the upstream converter.
+            Hl7InputStreamMessageStringIterator iterator =
+                    new Hl7InputStreamMessageStringIterator(new StringReader(data));
+            if (!iterator.hasNext()) {
+                throw new IllegalArgumentException("Parsed HL7 message was null.");
+            }
+            hparser = new HL7HapiParser();
+            return hparser.getParser().parse(iterator.next());
+        } catch (HL7Exception e) {
+            throw new IllegalArgumentException("Error during parsing of the HL7 message", e);
+        } finally {
+            if (hparser != null) {
+                try {
+                    hparser.getContext().close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Parser for HL7 v2 DTM ({@code YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ]}) and DT ({@code YYYY[MM[DD]]})
+ * values, producing FHIR primitives with the precision the sender actually gave.
+ * <p>
+ * Digits are read straight from the char sequence and the epoch time is computed arithmetically, so no
+ * formatter, Calendar or substring is created; the only allocations are the returned value itself. Parsing
+ * stops at a component separator, so a TS field ({@code DTM^degree-of-precision}) can be passed as is.
+ * A value without an offset is taken to be in the JVM's default time zone, as before. FHIR times carry
+ * seconds, so hour and minute precision are widened to seconds (zero-filled). Stateless and thread-safe.
+ */
+final class HL7DateTime {
+
+    private HL7DateTime() {}
+
+    private static final int DATE = 0;
+    private static final int DATE_TIME = 1;
+    private static final int INSTANT = 2;
+
+    /** Captured once: {@link TimeZone#getDefault()} returns a fresh clone on every call. */
+    private static final TimeZone DEFAULT_ZONE = TimeZone.getDefault();
+
+    private static final int MAX_OFFSET_MINUTES = 18 * 60;
+    /** Fixed-offset zones by offset minutes + {@link #MAX_OFFSET_MINUTES}, created on first use. */
+    private static final AtomicReferenceArray<TimeZone> OFFSET_ZONES = new AtomicReferenceArray<>(2 * MAX_OFFSET_MINUTES + 1);
+
+    private static final long MILLIS_PER_MINUTE = 60_000L;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    /** DTM as a FHIR dateTime, or null if {@code value} is blank or not a valid DTM. */
+    static DateTimeType parseDateTime(CharSequence value) {
+        return (DateTimeType) parse(value, DATE_TIME);
+    }
+
+    /** DTM as a FHIR instant (at least second precision; missing time parts are zero), or null if invalid. */
+    static InstantType parseInstant(CharSequence value) {
+        return (InstantType) parse(value, INSTANT);
+    }
+
+    /**
+     * DT, or the date part of a DTM, as a FHIR date with the sender's year, month and day (at most day
+     * precision, whatever time and offset follow), or null if invalid.
+     */
+    static DateType parseDate(CharSequence value) {
+        return (DateType) parse(value, DATE);
+    }
+
+    private static BaseDateTimeType parse(CharSequence s, int kind) {
+        if (s == null) return null;
+        int pos = 0;
+        int end = s.length();
+        while (pos < end && s.charAt(pos) == ' ') pos++;
+        for (int i = pos; i < end; i++) {
+            if (s.charAt(i) == '^') {
+                end = i;
+                break;
+            }
+        }
+        while (end > pos && s.charAt(end - 1) == ' ') end--;
+
+        int digits = 0;
+        while (pos + digits < end && isDigit(s.charAt(pos + digits))) digits++;
+        if (digits < 4 || digits > 14 || (digits & 1) != 0) return null;
+
+        int year = number(s, pos, 4);
+        int month = digits >= 6 ? number(s, pos + 4, 2) : 1;
+        int day = digits >= 8 ? number(s, pos + 6, 2) : 1;
+        int hour = digits >= 10 ? number(s, pos + 8, 2) : 0;
+        int minute = digits >= 12 ? number(s, pos + 10, 2) : 0;
+        int second = digits >= 14 ? number(s, pos + 12, 2) : 0;
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59) {
+            return null;
+        }
+        pos += digits;
+
+        int millis = 0;
+        boolean fraction = false;
+        if (pos < end && s.charAt(pos) == '.') {
+            if (digits != 14) return null;
+            int n = 0;
+            pos++;
+            while (pos + n < end && isDigit(s.charAt(pos + n))) n++;
+            if (n < 1 || n > 4) return null;
+            int f = number(s, pos, n);
+            millis = n == 1 ? f * 100 : n == 2 ? f * 10 : n == 3 ? f : f / 10;
+            fraction = true;
+            pos += n;
+        }
+
+        TimeZone zone = null;
+        int offsetMinutes = 0;
+        if (pos < end && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+            if (end - pos != 5 || !isDigit(s.charAt(pos + 1)) || !isDigit(s.charAt(pos + 2))
+                    || !isDigit(s.charAt(pos + 3)) || !isDigit(s.charAt(pos + 4))) {
+                return null;
+            }
+            int oh = number(s, pos + 1, 2);
+            int om = number(s, pos + 3, 2);
+            if (om > 59) return null;
+            offsetMinutes = (s.charAt(pos) == '-' ? -1 : 1) * (oh * 60 + om);
+            if (Math.abs(offsetMinutes) > MAX_OFFSET_MINUTES) return null;
+            zone = offsetZone(offsetMinutes);
+            pos = end;
+        }
+        if (pos != end) return null;
+
+        if (kind == DATE) {
+            // A date is civil: a time or offset sent with it (a DOB as DTM) is dropped, never applied
+            DateType date = new DateType(year, month - 1, day);
+            date.setPrecision(precision(Math.min(digits, 8), false));
+            return date;
+        }
+
+        long local = daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+        long utc;
+        if (zone != null) {
+            utc = local - offsetMinutes * MILLIS_PER_MINUTE;
+        } else {
+            zone = DEFAULT_ZONE;
+            // offset in effect at (approximately) that local time; exact except within a DST transition
+            utc = local - DEFAULT_ZONE.getOffset(local - DEFAULT_ZONE.getRawOffset());
+        }
+        Date date = new Date(utc);
+
+        if (kind == INSTANT) {
+            return new InstantType(date, fraction ? TemporalPrecisionEnum.MILLI : TemporalPrecisionEnum.SECOND, zone);
+        }
+        return new DateTimeType(date, precision(digits, fraction), zone);
+    }
+
+    private static TemporalPrecisionEnum precision(int digits, boolean fraction) {
+        if (fraction) return TemporalPrecisionEnum.MILLI;
+        switch (digits) {
+            case 4:
+                return TemporalPrecisionEnum.YEAR;
+            case 6:
+                return TemporalPrecisionEnum.MONTH;
+            case 8:
+                return TemporalPrecisionEnum.DAY;
+            default:
+                return TemporalPrecisionEnum.SECOND;
+        }
+    }
+
+    private static TimeZone offsetZone(int offsetMinutes) {
+        int slot = offsetMinutes + MAX_OFFSET_MINUTES;
+        TimeZone z = OFFSET_ZONES.get(slot);
+        if (z == null) {
+            z = TimeZone.getTimeZone(ZoneOffset.ofTotalSeconds(offsetMinutes * 60));
+            OFFSET_ZONES.compareAndSet(slot, null, z);
+        }
+        return z;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** {@code len} decimal digits at {@code from}; the caller has checked they are digits. */
+    private static int number(CharSequence s, int from, int len) {
+        int v = 0;
+        for (int i = from; i < from + len; i++) {
+            v = v * 10 + (s.charAt(i) - '0');
+        }
+        return v;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /** Days since 1970-01-01 of a proleptic Gregorian date (H. Hinnant's days_from_civil). */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146_097 + doe - 719_468;
+    }
+}
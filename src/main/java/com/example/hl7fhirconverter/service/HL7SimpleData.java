@@ -1,7 +1,5 @@
 package com.example.hl7fhirconverter.service;
 
-import java.util.Optional;
-
 public class HL7SimpleData {
     public String location;
     public String attendingName;
@@ -16,14 +14,20 @@ public class HL7SimpleData {
     // MSH fields
     public String messageDateTime; // YYYYMMDDHHMMSS
     public String eventCode; // e.g., ADT^A04
+    public String messageType; // MSH-9.1^MSH-9.2 without the structure (MSH-9.3), e.g., ADT^A08
+    public String messageControlId; // MSH-10
     public String sendingApp;
     public String sendingFacility;
     public String receivingApp;
     public String receivingFacility;
 
+    // EVN-2 recorded date/time
+    public String eventDateTime;
+
     // Admission date/time from PV1-44 (format YYYYMMDDHHMMSS or similar)
     public String admitDateTime;
 
+    public String patientId; // PID-3 first repetition
     public String patientDob;
     public String patientGender;
     public String patientName;
@@ -44,6 +48,7 @@ public class HL7SimpleData {
     // Allergy
     public String allergyCode;
     public String allergyReaction;
+    public String allergyIdentifiedDateTime; // AL1-6
 
     // Insurance IN1
     public String insurancePayerId;
@@ -57,86 +62,104 @@ public class HL7SimpleData {
     // Account
     public String accountNumber;
 
+    // Base64 OBX-5 ED values, by offset into the parsed message
+    EmbeddedPayloads payloads = EmbeddedPayloads.NONE;
+
     public static HL7SimpleData parse(String hl7) {
         HL7SimpleData d = new HL7SimpleData();
         if (hl7 == null) return d;
-        // HL7 segments may be separated by CR (\r), LF (\n), or CRLF
-        String[] lines = hl7.split("\r?\n|\r");
-        for (String line : lines) {
-            if (line.startsWith("MSH")) {
-                String[] fields = line.split("\\|");
-                if (fields.length > 2) d.sendingApp = fields[2];
-                if (fields.length > 3) d.sendingFacility = fields[3];
-                if (fields.length > 4) d.receivingApp = fields[4];
-                if (fields.length > 5) d.receivingFacility = fields[5];
-                if (fields.length > 6) d.messageDateTime = fields[6];
-                if (fields.length > 8) d.eventCode = fields[8];
-            } else if (line.startsWith("PV1")) {
-                String[] fields = line.split("\\|"); // pipe
-                if (fields.length > 3) {
-                    d.location = fields[3];
-                    String[] locComps = fields[3].split("\\^");
-                    if (locComps.length > 0) d.locationPoc = locComps[0];
-                    if (locComps.length > 1) d.locationRoom = locComps[1];
-                    if (locComps.length > 2) d.locationBed = locComps[2];
+        // Single pass over the message; field indexes below match the old line.split("\\|") arrays
+        HL7Tokenizer t = new HL7Tokenizer(hl7);
+        java.util.List<EmbeddedPayloads.Payload> payloads = null;
+        int obrCount = 0;
+        while (t.nextSegment()) {
+            int n = t.fieldCount();
+            if (t.segmentIs("MSH")) {
+                if (n > 2) d.sendingApp = t.field(2);
+                if (n > 3) d.sendingFacility = t.field(3);
+                if (n > 4) d.receivingApp = t.field(4);
+                if (n > 5) d.receivingFacility = t.field(5);
+                if (n > 6) d.messageDateTime = t.field(6);
+                if (n > 8) {
+                    d.eventCode = t.field(8);
+                    int typeComps = t.splitComponents(8);
+                    if (typeComps > 1) d.messageType = t.component(0) + '^' + t.component(1);
+                    else if (typeComps > 0) d.messageType = t.component(0);
                 }
-                if (fields.length > 4) d.admissionType = fields[4]; // PV1-4 Admission type
-                // PV1-19 Visit Number (index 19 since fields[0] is segment ID)
-                if (fields.length > 19) {
-                    d.visitNumber = fields[19];
+                if (n > 9) d.messageControlId = t.field(9);
+            } else if (t.segmentIs("EVN")) {
+                if (n > 2) d.eventDateTime = t.field(2); // EVN-2 Recorded date/time
+            } else if (t.segmentIs("PV1")) {
+                if (n > 3) {
+                    d.location = t.field(3);
+                    int locComps = t.splitComponents(3);
+                    if (locComps > 0) d.locationPoc = t.component(0);
+                    if (locComps > 1) d.locationRoom = t.component(1);
+                    if (locComps > 2) d.locationBed = t.component(2);
                 }
-                if (fields.length > 18) d.accountNumber = fields[18]; // PV1-18 account number
-                if (fields.length > 7) d.attendingName = fields[7];
-                if (fields.length > 9) d.consultingName = fields[9];
+                if (n > 4) d.admissionType = t.field(4); // PV1-4 Admission type
+                // PV1-19 Visit Number (index 19 since field 0 is segment ID)
+                if (n > 19) {
+                    d.visitNumber = t.field(19);
+                }
+                if (n > 18) d.accountNumber = t.field(18); // PV1-18 account number
+                if (n > 7) d.attendingName = t.field(7);
+                if (n > 9) d.consultingName = t.field(9);
                 // PV1-44 Admission date/time
-                if (fields.length > 44) {
-                    d.admitDateTime = fields[44];
+                if (n > 44) {
+                    d.admitDateTime = t.field(44);
                 }
-            } else if (line.startsWith("NK1")) {
-                String[] fields = line.split("\\|");
-                if (fields.length > 2) d.nk1Name = fields[2];
-                if (fields.length > 3) d.nk1RelationshipCode = fields[3];
+            } else if (t.segmentIs("NK1")) {
+                if (n > 2) d.nk1Name = t.field(2);
+                if (n > 3) d.nk1RelationshipCode = t.field(3);
                 // NK1-5 is phone number according to v2.x definition
-                if (fields.length > 5) {
-                    String phone = fields[5];
+                if (n > 5) {
                     // XTN may contain subcomponents like ext etc; keep first component
-                    d.nk1Phone = phone.split("\\^")[0];
+                    d.nk1Phone = t.splitComponents(5) > 0 ? t.component(0) : "";
                 }
-            } else if (line.startsWith("AL1")) {
-                String[] fields = line.split("\\|");
-                if (fields.length > 3) d.allergyCode = fields[3]; // AL1-3 Allergy code string
-                if (fields.length > 5) d.allergyReaction = fields[5]; // AL1-5 Reaction
-            } else if (line.startsWith("IN1")) {
-                String[] fields = line.split("\\|");
-                if (fields.length > 3) d.insurancePayerId = fields[3]; // IN1-3 payer id
-                if (fields.length > 4) d.insurancePayerName = fields[4]; // IN1-4 payer name
-                if (fields.length > 8) d.insuranceGroupNumber = fields[8]; // IN1-9 Group number
-            } else if (line.startsWith("GT1")) {
-                String[] fields = line.split("\\|");
-                if (fields.length > 3) d.guarantorName = fields[3];
-                if (fields.length > 5) d.guarantorPhone = fields[5];
+            } else if (t.segmentIs("AL1")) {
+                if (n > 3) d.allergyCode = t.field(3); // AL1-3 Allergy code string
+                if (n > 5) d.allergyReaction = t.field(5); // AL1-5 Reaction
+                if (n > 6) d.allergyIdentifiedDateTime = t.field(6); // AL1-6 Identification date
+            } else if (t.segmentIs("IN1")) {
+                if (n > 3) d.insurancePayerId = t.field(3); // IN1-3 payer id
+                if (n > 4) d.insurancePayerName = t.field(4); // IN1-4 payer name
+                if (n > 8) d.insuranceGroupNumber = t.field(8); // IN1-9 Group number
+            } else if (t.segmentIs("GT1")) {
+                if (n > 3) d.guarantorName = t.field(3);
+                if (n > 5) d.guarantorPhone = t.field(5);
             }
-            else if (line.startsWith("PID")) {
-                String[] fields = line.split("\\|");
-                if (fields.length > 5) {
+            else if (t.segmentIs("PID")) {
+                if (n > 3) d.patientId = t.firstRepetition(3); // PID-3, e.g. 123456^^^TRINITY^MR
+                if (n > 5) {
                     // PID-5 may contain multiple repetitions separated by ~ ; take first
-                    String nameField = fields[5].split("~")[0];
-                    d.patientName = nameField.trim();
+                    d.patientName = t.firstRepetition(5).trim();
+                }
+                if (n > 7) {
+                    String dobField = t.field(7).trim();
+                    if (!dobField.isEmpty()) {
+                        // keep first 8 chars YYYYMMDD
+                        if (dobField.length() >= 8) dobField = dobField.substring(0, 8);
+                        d.patientDob = dobField;
+                    }
                 }
-                if (fields.length > 7 && !fields[7].isBlank()) {
-                    String dobField = fields[7].trim();
-                    // keep first 8 chars YYYYMMDD
-                    if (dobField.length() >= 8) dobField = dobField.substring(0, 8);
-                    d.patientDob = dobField;
+                if (n > 8) d.patientGender = t.field(8).trim();
+                if (n > 12) d.patientPhone = t.field(12); // PID-13
+                if (n > 10) d.patientRace = t.field(10); // PID-10 race
+                if (n > 14) d.patientLanguage = t.field(14); // PID-15
+                if (n > 15) d.patientMaritalStatus = t.field(15); // PID-16
+                if (n > 16) d.patientReligion = t.field(16); // PID-17
+            } else if (t.segmentIs("OBR")) {
+                obrCount++;
+            } else if (t.segmentIs("OBX")) {
+                EmbeddedPayloads.Payload p = EmbeddedPayloads.read(t, hl7, obrCount - 1);
+                if (p != null) {
+                    if (payloads == null) payloads = new java.util.ArrayList<>(2);
+                    payloads.add(p);
                 }
-                if (fields.length > 8) d.patientGender = fields[8].trim();
-                if (fields.length > 12) d.patientPhone = fields[12]; // PID-13
-                if (fields.length > 10) d.patientRace = fields[10]; // PID-10 race
-                if (fields.length > 14) d.patientLanguage = fields[14]; // PID-15
-                if (fields.length > 15) d.patientMaritalStatus = fields[15]; // PID-16
-                if (fields.length > 16) d.patientReligion = fields[16]; // PID-17
             }
         }
+        if (payloads != null) d.payloads = new EmbeddedPayloads(hl7, payloads, obrCount);
         return d;
     }
-} 
\ No newline at end of file
+}
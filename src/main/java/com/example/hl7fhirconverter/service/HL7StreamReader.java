@@ -0,0 +1,113 @@
+package com.example.hl7fhirconverter.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+/**
+ * Splits a stream of HL7 v2 messages into individual messages, one at a time, without reading
+ * ahead further than the next segment.
+ * <p>
+ * Two framings are accepted, and may be mixed:
+ * <ul>
+ *   <li>MLLP: {@code 0x0B <message> 0x1C 0x0D}</li>
+ *   <li>plain text: segments on separate lines (CR, LF or CRLF); a new message starts at each
+ *       {@code MSH} segment or after a blank line</li>
+ * </ul>
+ * Returned messages use CR as the segment separator.
+ */
+public class HL7StreamReader implements Closeable {
+
+    public static final char START_BLOCK = 0x0B;
+    public static final char END_BLOCK = 0x1C;
+
+    private final PushbackReader in;
+    private String pendingLine;
+
+    public HL7StreamReader(Reader in) {
+        this.in = new PushbackReader(in, 1);
+    }
+
+    /** @return the next message, or null at end of stream */
+    public String next() throws IOException {
+        StringBuilder msg = new StringBuilder();
+        while (true) {
+            String line;
+            if (pendingLine != null) {
+                line = pendingLine;
+                pendingLine = null;
+            } else {
+                int c = peek();
+                if (c == -1) break;
+                if (c == START_BLOCK) {
+                    if (msg.length() > 0) break;
+                    in.read();
+                    String framed = readFrame();
+                    if (framed.isEmpty()) continue;
+                    return framed;
+                }
+                line = readLine();
+            }
+            if (line.isBlank()) {
+                if (msg.length() > 0) break;
+                continue;
+            }
+            if (msg.length() > 0 && line.startsWith("MSH")) {
+                pendingLine = line;
+                break;
+            }
+            msg.append(line).append('\r');
+        }
+        return msg.length() > 0 ? msg.toString() : null;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c == '\r') {
+                int n = in.read();
+                if (n != '\n' && n != -1) in.unread(n);
+                break;
+            }
+            if (c == START_BLOCK) {
+                in.unread(c);
+                break;
+            }
+            // stray end-of-block outside a frame
+            if (c == END_BLOCK) continue;
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private String readFrame() throws IOException {
+        StringBuilder sb = new StringBuilder(1024);
+        int c;
+        while ((c = in.read()) != -1 && c != END_BLOCK) {
+            sb.append((char) c);
+        }
+        if (c == END_BLOCK) {
+            int n = in.read();
+            if (n != '\r' && n != -1) in.unread(n);
+        }
+        // trim surrounding line breaks/whitespace
+        int start = 0, end = sb.length();
+        while (start < end && Character.isWhitespace(sb.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(sb.charAt(end - 1))) end--;
+        return sb.substring(start, end);
+    }
+
+    private int peek() throws IOException {
+        int c = in.read();
+        if (c != -1) in.unread(c);
+        return c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
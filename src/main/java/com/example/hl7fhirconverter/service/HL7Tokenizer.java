@@ -0,0 +1,195 @@
+package com.example.hl7fhirconverter.service;
+
+/**
+ * Single-pass cursor over the segments of a raw HL7 v2 message.
+ * <p>
+ * Each call to {@link #nextSegment()} scans one segment and records the start offset of every field
+ * in a reusable int index; nothing is copied until a caller asks for a field or component String.
+ * Delimiters are taken from MSH-1/MSH-2 as soon as the MSH segment is seen (defaults {@code |^~\&}).
+ * <p>
+ * Field and component counts follow {@code String.split} semantics (trailing empty values are
+ * dropped) so that {@link HL7SimpleData} sees exactly what the previous split-based parser produced.
+ * Not thread-safe; create one per message.
+ */
+final class HL7Tokenizer {
+
+    private final String msg;
+    private final int length;
+
+    private char fieldSep = '|';
+    private char componentSep = '^';
+    private char repetitionSep = '~';
+
+    private int cursor;
+    private int segStart;
+    private int segEnd;
+
+    // fieldStarts[i] is the first char of field i; fieldStarts[fieldCount] is segEnd + 1 (sentinel)
+    private int[] fieldStarts = new int[64];
+    private int fieldCount;
+
+    // Same layout as fieldStarts, for the field last passed to splitComponents
+    private int[] compStarts = new int[16];
+    private int compCount;
+
+    HL7Tokenizer(String msg) {
+        this.msg = msg;
+        this.length = msg.length();
+    }
+
+    /**
+     * Advances to the next non-empty segment. Segments may be separated by CR, LF, or CRLF.
+     *
+     * @return false once the message is exhausted
+     */
+    boolean nextSegment() {
+        while (cursor < length && isLineBreak(msg.charAt(cursor))) cursor++;
+        if (cursor >= length) return false;
+
+        segStart = cursor;
+        if (length - segStart > 3 && msg.startsWith("MSH", segStart)) {
+            readDelimiters();
+        }
+
+        int count = 0;
+        fieldStarts[count++] = segStart;
+        int i = segStart;
+        for (; i < length; i++) {
+            char c = msg.charAt(i);
+            if (isLineBreak(c)) break;
+            if (c == fieldSep) {
+                if (count == fieldStarts.length - 1) {
+                    fieldStarts = java.util.Arrays.copyOf(fieldStarts, fieldStarts.length * 2);
+                }
+                fieldStarts[count++] = i + 1;
+            }
+        }
+        segEnd = i;
+        cursor = i;
+        fieldStarts[count] = segEnd + 1;
+        // String.split drops trailing empty fields
+        while (count > 1 && fieldStarts[count] - fieldStarts[count - 1] == 1) {
+            count--;
+        }
+        fieldCount = count;
+        compCount = 0;
+        return true;
+    }
+
+    /** True if the current segment starts with the given three-letter id. */
+    boolean segmentIs(String id) {
+        return msg.startsWith(id, segStart);
+    }
+
+    /** MSH-1 of the message, once its MSH segment has been read. */
+    char fieldSeparator() {
+        return fieldSep;
+    }
+
+    /** Number of fields in the current segment, counting the segment id as field 0. */
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    /** Field {@code index} of the current segment, or null if the segment has no such field. */
+    String field(int index) {
+        if (index >= fieldCount) return null;
+        return msg.substring(fieldStarts[index], fieldStarts[index + 1] - 1);
+    }
+
+    /** Offset in the message of the first char of field {@code index}, which must be below {@link #fieldCount()}. */
+    int fieldStart(int index) {
+        return fieldStarts[index];
+    }
+
+    /** Offset in the message just past the last char of field {@code index}. */
+    int fieldEnd(int index) {
+        return fieldStarts[index + 1] - 1;
+    }
+
+    /** True if field {@code index} exists and is exactly {@code value}, compared in place. */
+    boolean fieldIs(int index, String value) {
+        if (index >= fieldCount) return false;
+        int start = fieldStarts[index];
+        return fieldStarts[index + 1] - 1 - start == value.length() && msg.startsWith(value, start);
+    }
+
+    /** First repetition of field {@code index}, or null if the segment has no such field. */
+    String firstRepetition(int index) {
+        if (index >= fieldCount) return null;
+        int start = fieldStarts[index];
+        int end = fieldStarts[index + 1] - 1;
+        int rep = indexOf(repetitionSep, start, end);
+        return msg.substring(start, rep < 0 ? end : rep);
+    }
+
+    /**
+     * Indexes the components of field {@code index} for {@link #component(int)}.
+     *
+     * @return the component count (0 when the field is absent or holds only separators)
+     */
+    int splitComponents(int index) {
+        compCount = 0;
+        if (index >= fieldCount) return 0;
+        int start = fieldStarts[index];
+        int end = fieldStarts[index + 1] - 1;
+        int count = 0;
+        compStarts[count++] = start;
+        for (int i = start; i < end; i++) {
+            if (msg.charAt(i) == componentSep) {
+                if (count == compStarts.length - 1) {
+                    compStarts = java.util.Arrays.copyOf(compStarts, compStarts.length * 2);
+                }
+                compStarts[count++] = i + 1;
+            }
+        }
+        compStarts[count] = end + 1;
+        // An empty field still yields one empty component; otherwise trailing empties are dropped
+        if (end > start) {
+            while (count > 0 && compStarts[count] - compStarts[count - 1] == 1) {
+                count--;
+            }
+        }
+        compCount = count;
+        return count;
+    }
+
+    /** Component {@code index} of the field last passed to {@link #splitComponents(int)}, or null. */
+    String component(int index) {
+        if (index >= compCount) return null;
+        return msg.substring(compStarts[index], compStarts[index + 1] - 1);
+    }
+
+    /** Offset in the message of the first char of component {@code index}, which must be below the component count. */
+    int componentStart(int index) {
+        return compStarts[index];
+    }
+
+    /** Offset in the message just past the last char of component {@code index}. */
+    int componentEnd(int index) {
+        return compStarts[index + 1] - 1;
+    }
+
+    private void readDelimiters() {
+        // MSH-1 is the character right after "MSH"; MSH-2 holds component, repetition, escape, subcomponent
+        fieldSep = msg.charAt(segStart + 3);
+        int enc = segStart + 4;
+        if (enc < length && msg.charAt(enc) != fieldSep && !isLineBreak(msg.charAt(enc))) {
+            componentSep = msg.charAt(enc);
+            if (enc + 1 < length && msg.charAt(enc + 1) != fieldSep && !isLineBreak(msg.charAt(enc + 1))) {
+                repetitionSep = msg.charAt(enc + 1);
+            }
+        }
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (msg.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\r' || c == '\n';
+    }
+}
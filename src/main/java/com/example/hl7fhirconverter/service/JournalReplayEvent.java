@@ -0,0 +1,37 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published for every journaled message that was accepted but not finished before the last shutdown,
+ * once it has been converted again at startup. Downstream delivery hooks in with an {@code @EventListener};
+ * the entry is marked done when listeners return, so a listener that throws leaves it for the next start.
+ */
+public class JournalReplayEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+    private final String hl7Message;
+    private final Bundle bundle;
+
+    public JournalReplayEvent(Object source, long sequence, String hl7Message, Bundle bundle) {
+        super(source);
+        this.sequence = sequence;
+        this.hl7Message = hl7Message;
+        this.bundle = bundle;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getHl7Message() {
+        return hl7Message;
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+}
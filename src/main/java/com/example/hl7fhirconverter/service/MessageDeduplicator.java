@@ -0,0 +1,357 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Recognizes messages a sender has already delivered (resends after a reconnect), so they are not
+ * converted and written downstream a second time ({@code converter.dedup.enabled}).
+ * <p>
+ * A message is identified by sending application, sending facility and MSH-10 (its content hash if it has
+ * no MSH-10), and compared by a 64-bit hash of its content ({@link #contentHash}): the same control id with
+ * different content is a new message. Two structures, both off-heap and of fixed size:
+ * <ul>
+ *   <li>an exact window of the last {@code converter.dedup.window-size} messages within
+ *       {@code converter.dedup.window} (default 24h): a ring of (key, content, time) entries in a
+ *       memory-mapped file, indexed by an open-addressing table in a direct buffer that is rebuilt from the
+ *       ring on startup</li>
+ *   <li>behind it, for older messages, a Bloom filter of two generations of
+ *       {@code converter.dedup.bloom-window} each (default 7 days), sized for
+ *       {@code converter.dedup.bloom-expected} messages per generation at {@code converter.dedup.bloom-fpp}.
+ *       A match there may be a false positive, so such messages are converted unless
+ *       {@code converter.dedup.drop-probable=true}</li>
+ * </ul>
+ * Ring and filter live in {@code converter.dedup.file} and survive restarts; the file is forced on shutdown.
+ * Messages are recorded only once their Bundle has been delivered, so a message that failed to convert or
+ * to reach the receiver can be resent. Thread-safe.
+ */
+@Component
+public class MessageDeduplicator {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageDeduplicator.class);
+
+    /** What {@link #check} found. */
+    enum Verdict {
+        NEW, DUPLICATE, PROBABLE_DUPLICATE, REUSED_ID
+    }
+
+    private static final long MAGIC = 0x484c3744_45445550L; // "HL7DEDUP"
+    private static final int HEADER_BYTES = 64;
+    private static final int ENTRY_BYTES = 24;
+    // header fields
+    private static final int H_WINDOW_SIZE = 8, H_BLOOM_BITS = 16, H_WRITTEN = 24, H_GENERATION = 32,
+            H_GENERATION_START = 40;
+
+    private final boolean enabled;
+    private final boolean dropProbable;
+    private final long windowMillis;
+    private final long bloomWindowMillis;
+    private final int windowSize;
+    private final long bloomBits;
+    private final int bloomHashes;
+    private final int bloomOffset;
+    private final MappedByteBuffer file;
+    private final FileChannel channel;
+    private final ByteBuffer index;
+    private final int indexMask;
+    private final Counter[] verdicts = new Counter[Verdict.values().length];
+
+    /** Disabled: every message is new. */
+    public MessageDeduplicator() {
+        this.enabled = false;
+        this.dropProbable = false;
+        this.windowMillis = 0;
+        this.bloomWindowMillis = 0;
+        this.windowSize = 0;
+        this.bloomBits = 0;
+        this.bloomHashes = 0;
+        this.bloomOffset = 0;
+        this.file = null;
+        this.channel = null;
+        this.index = null;
+        this.indexMask = 0;
+    }
+
+    @Autowired
+    public MessageDeduplicator(@Value("${converter.dedup.enabled:false}") boolean enabled,
+                               @Value("${converter.dedup.file:dedup/messages.dedup}") String file,
+                               @Value("${converter.dedup.window:24h}") Duration window,
+                               @Value("${converter.dedup.window-size:1000000}") int windowSize,
+                               @Value("${converter.dedup.bloom-window:7d}") Duration bloomWindow,
+                               @Value("${converter.dedup.bloom-expected:10000000}") long bloomExpected,
+                               @Value("${converter.dedup.bloom-fpp:0.01}") double bloomFpp,
+                               @Value("${converter.dedup.drop-probable:false}") boolean dropProbable,
+                               MeterRegistry registry) throws IOException {
+        this.enabled = enabled;
+        this.dropProbable = dropProbable;
+        this.windowMillis = window.toMillis();
+        this.bloomWindowMillis = bloomWindow.toMillis();
+        if (!enabled) {
+            this.windowSize = 0;
+            this.bloomBits = 0;
+            this.bloomHashes = 0;
+            this.bloomOffset = 0;
+            this.file = null;
+            this.channel = null;
+            this.index = null;
+            this.indexMask = 0;
+            return;
+        }
+        this.windowSize = Math.max(1, windowSize);
+        // m = -n ln p / (ln 2)^2 bits, k = m/n ln 2 hash functions; whole longs
+        double bits = -Math.max(1, bloomExpected) * Math.log(bloomFpp) / (Math.log(2) * Math.log(2));
+        this.bloomBits = Math.max(64, ((long) Math.ceil(bits) + 63) & ~63L);
+        this.bloomHashes = Math.max(1, (int) Math.round(bloomBits / (double) Math.max(1, bloomExpected) * Math.log(2)));
+        this.bloomOffset = HEADER_BYTES + this.windowSize * ENTRY_BYTES;
+        long size = bloomOffset + 2 * (bloomBits / 8);
+        if ((long) this.windowSize * ENTRY_BYTES > Integer.MAX_VALUE || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("converter.dedup.window-size / bloom-expected need a file over 2 GiB");
+        }
+
+        Path path = Paths.get(file);
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long existing = channel.size();
+        this.file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (existing != size || this.file.getLong(0) != MAGIC || this.file.getLong(H_WINDOW_SIZE) != this.windowSize
+                || this.file.getLong(H_BLOOM_BITS) != bloomBits) {
+            if (existing > 0) log.warn("Deduplication state in {} does not match the configured sizes, starting empty", path);
+            clear();
+        }
+
+        // At most half full, so probe sequences stay short
+        int indexSlots = Integer.highestOneBit(this.windowSize * 2 - 1) << 1;
+        this.index = ByteBuffer.allocateDirect(indexSlots * 4);
+        this.indexMask = indexSlots - 1;
+        int held = (int) Math.min(this.windowSize, this.file.getLong(H_WRITTEN));
+        for (int slot = 0; slot < held; slot++) {
+            indexPut(entryKey(slot), slot);
+        }
+        for (Verdict v : Verdict.values()) {
+            verdicts[v.ordinal()] = Counter.builder("hl7.dedup.messages")
+                    .tag("result", v.name().toLowerCase().replace('_', '-'))
+                    .description("Incoming messages checked for duplicates")
+                    .register(registry);
+        }
+        log.info("Deduplication {}: {} recent messages, Bloom filter {} KiB x 2, {} hashes",
+                path.toAbsolutePath(), held, bloomBits / 8 / 1024, bloomHashes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Throws if {@code hl7Message} has been seen (see the class comment); otherwise has {@code receipt}
+     * record it once its Bundle has been delivered ({@link DeliveryReceipt#delivered}).
+     *
+     * @throws DuplicateMessageException for a duplicate, or a probable one with {@code drop-probable}
+     */
+    void checkNew(HL7SimpleData data, String hl7Message, DeliveryReceipt receipt) {
+        if (!enabled) return;
+        long key = key(data, hl7Message);
+        long content = contentHash(hl7Message);
+        Verdict verdict = check(key, content, System.currentTimeMillis());
+        verdicts[verdict.ordinal()].increment();
+        if (verdict == Verdict.DUPLICATE || (verdict == Verdict.PROBABLE_DUPLICATE && dropProbable)) {
+            throw new DuplicateMessageException(data.messageControlId, verdict == Verdict.PROBABLE_DUPLICATE);
+        }
+        receipt.recordMessage(this, key, content);
+    }
+
+    synchronized Verdict check(long key, long content, long now) {
+        int slot = indexFind(key);
+        if (slot >= 0 && now - file.getLong(entry(slot) + 16) <= windowMillis) {
+            return file.getLong(entry(slot) + 8) == content ? Verdict.DUPLICATE : Verdict.REUSED_ID;
+        }
+        rotateBloom(now);
+        long fingerprint = fingerprint(key, content);
+        return bloomContains(0, fingerprint) || bloomContains(1, fingerprint)
+                ? Verdict.PROBABLE_DUPLICATE : Verdict.NEW;
+    }
+
+    synchronized void record(long key, long content, long now) {
+        rotateBloom(now);
+        bloomAdd((int) file.getLong(H_GENERATION), fingerprint(key, content));
+        int slot = indexFind(key);
+        if (slot < 0) {
+            long written = file.getLong(H_WRITTEN);
+            slot = (int) (written % windowSize);
+            // The ring is full: the oldest entry makes room
+            if (written >= windowSize) indexRemove(slot);
+            file.putLong(entry(slot), key);
+            indexPut(key, slot);
+            file.putLong(H_WRITTEN, written + 1);
+        }
+        file.putLong(entry(slot) + 8, content);
+        file.putLong(entry(slot) + 16, now);
+    }
+
+    private static long key(HL7SimpleData data, String hl7Message) {
+        if (data.messageControlId == null || data.messageControlId.isBlank()) {
+            return contentHash(hl7Message);
+        }
+        return ConversionCache.ContentKey.hash64(data.sendingApp + '|' + data.sendingFacility + '|'
+                + data.messageControlId);
+    }
+
+    /**
+     * {@link ConversionCache.ContentKey#hash64} of the message with any run of CR/LF counted as one segment
+     * terminator and trailing ones ignored, so the same message hashes alike over MLLP, REST and batch files.
+     */
+    static long contentHash(String hl7Message) {
+        long h = 0xcbf29ce484222325L;
+        boolean pendingTerminator = false;
+        for (int i = 0, n = hl7Message.length(); i < n; i++) {
+            char c = hl7Message.charAt(i);
+            if (c == '\r' || c == '\n') {
+                pendingTerminator = true;
+                continue;
+            }
+            if (pendingTerminator) {
+                h ^= '\r';
+                h *= 0x100000001b3L;
+                pendingTerminator = false;
+            }
+            h ^= c;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long fingerprint(long key, long content) {
+        long h = key ^ (content * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // --- exact window: ring entries and their index ---
+
+    private int entry(int slot) {
+        return HEADER_BYTES + slot * ENTRY_BYTES;
+    }
+
+    private long entryKey(int slot) {
+        return file.getLong(entry(slot));
+    }
+
+    private int home(long key) {
+        return (int) (key ^ (key >>> 32)) & indexMask;
+    }
+
+    /** @return the ring slot holding {@code key}, or -1 */
+    private int indexFind(long key) {
+        for (int i = home(key); ; i = (i + 1) & indexMask) {
+            int v = index.getInt(i * 4);
+            if (v == 0) return -1;
+            if (entryKey(v - 1) == key) return v - 1;
+        }
+    }
+
+    private void indexPut(long key, int slot) {
+        int i = home(key);
+        while (index.getInt(i * 4) != 0) i = (i + 1) & indexMask;
+        index.putInt(i * 4, slot + 1);
+    }
+
+    /** Removes ring slot {@code slot} from the index, shifting back later entries of its probe sequence. */
+    private void indexRemove(int slot) {
+        int i = home(entryKey(slot));
+        while (index.getInt(i * 4) != slot + 1) {
+            if (index.getInt(i * 4) == 0) return;
+            i = (i + 1) & indexMask;
+        }
+        for (int j = (i + 1) & indexMask; ; j = (j + 1) & indexMask) {
+            int v = index.getInt(j * 4);
+            if (v == 0) break;
+            int h = home(entryKey(v - 1));
+            // Stays if its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+            if (stays) continue;
+            index.putInt(i * 4, v);
+            i = j;
+        }
+        index.putInt(i * 4, 0);
+    }
+
+    // --- Bloom filter: two generations, the older one cleared and reused when the newer one expires ---
+
+    private void rotateBloom(long now) {
+        int current = (int) file.getLong(H_GENERATION);
+        long start = file.getLong(H_GENERATION_START);
+        if (start == 0) {
+            file.putLong(H_GENERATION_START, now);
+        } else if (now - start > bloomWindowMillis) {
+            int next = 1 - current;
+            int base = bloomBase(next);
+            for (long b = 0; b < bloomBits / 8; b += 8) file.putLong(base + (int) b, 0);
+            file.putLong(H_GENERATION, next);
+            file.putLong(H_GENERATION_START, now);
+        }
+    }
+
+    private int bloomBase(int generation) {
+        return bloomOffset + (int) (generation * (bloomBits / 8));
+    }
+
+    private void bloomAdd(int generation, long fingerprint) {
+        int base = bloomBase(generation);
+        long h1 = fingerprint & 0xffffffffL;
+        long h2 = fingerprint >>> 32;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bloomBits);
+            int at = base + (int) (bit >>> 6) * 8;
+            file.putLong(at, file.getLong(at) | (1L << (bit & 63)));
+        }
+    }
+
+    private boolean bloomContains(int generation, long fingerprint) {
+        int base = bloomBase(generation);
+        long h1 = fingerprint & 0xffffffffL;
+        long h2 = fingerprint >>> 32;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bloomBits);
+            if ((file.getLong(base + (int) (bit >>> 6) * 8) & (1L << (bit & 63))) == 0) return false;
+        }
+        return true;
+    }
+
+    private void clear() {
+        byte[] zeros = new byte[64 * 1024];
+        file.position(0);
+        while (file.hasRemaining()) {
+            file.put(zeros, 0, Math.min(zeros.length, file.remaining()));
+        }
+        file.putLong(0, MAGIC);
+        file.putLong(H_WINDOW_SIZE, windowSize);
+        file.putLong(H_BLOOM_BITS, bloomBits);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        file.force();
+        channel.close();
+    }
+}
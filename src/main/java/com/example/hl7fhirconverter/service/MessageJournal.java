@@ -0,0 +1,404 @@
+package com.example.hl7fhirconverter.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Optional write-ahead journal of inbound messages ({@code converter.journal.enabled}): the raw HL7 is
+ * appended to a memory-mapped segment file and forced to disk before conversion starts, and marked done
+ * once its result has been handed back. Entries still open after a crash are returned by
+ * {@link #recovered()} so {@link MessageJournalReplay} can convert them again.
+ * <p>
+ * Durability uses group commit: {@link #append} blocks until a single flusher thread has forced the segment
+ * past the new record, and every record appended while one force is running is covered by the next one,
+ * so concurrent requests share fsyncs instead of queueing for their own.
+ * <p>
+ * Segments ({@code converter.journal.segment-bytes}) are named after the first sequence number they hold.
+ * A full segment is sealed and a new one started; sealed segments at the head whose entries are all done
+ * are deleted, and a head segment kept alive only by a few open entries (at most a quarter of its size)
+ * is compacted by copying those entries into the current segment. Record layout: length (int, written
+ * last), CRC32C (int) over the rest, type (byte), sequence (long), UTF-8 payload; a zero length ends the
+ * segment, and a record with a bad checksum (torn write) ends recovery of that segment.
+ * Thread-safe.
+ */
+@Component
+public class MessageJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageJournal.class);
+
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_DONE = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 1 + 8;
+    private static final String SUFFIX = ".journal";
+
+    /** A journaled message not yet marked done. */
+    public static final class Entry {
+        private final long sequence;
+        private final String message;
+
+        Entry(long sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private static final class Segment {
+        final long baseSequence;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int forcedTo;
+        int open;
+        int openBytes;
+
+        Segment(long baseSequence, Path path, MappedByteBuffer buffer) {
+            this.baseSequence = baseSequence;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /** Where an open entry's record lives, so it can be compacted forward. */
+    private static final class Location {
+        Segment segment;
+        int offset;
+        int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean enabled;
+
+    // Guarded by this
+    private final Deque<Segment> sealed = new ArrayDeque<>();
+    private final Map<Long, Location> open = new HashMap<>();
+    private Segment current;
+    private long nextSequence;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean closed;
+
+    private final List<Entry> recovered;
+    private final Thread flusher;
+
+    /** Disabled: nothing is written. */
+    public MessageJournal() {
+        this.dir = null;
+        this.segmentBytes = 0;
+        this.enabled = false;
+        this.recovered = Collections.emptyList();
+        this.flusher = null;
+    }
+
+    @Autowired
+    public MessageJournal(@Value("${converter.journal.enabled:false}") boolean enabled,
+                          @Value("${converter.journal.dir:journal}") String dir,
+                          @Value("${converter.journal.segment-bytes:67108864}") int segmentBytes) throws IOException {
+        this.enabled = enabled;
+        this.dir = Paths.get(dir);
+        this.segmentBytes = segmentBytes;
+        if (!enabled) {
+            this.recovered = Collections.emptyList();
+            this.flusher = null;
+            return;
+        }
+        Files.createDirectories(this.dir);
+        this.recovered = recover();
+        synchronized (this) {
+            current = openSegment(nextSequence);
+            appendedSequence = durableSequence = nextSequence - 1;
+        }
+        this.flusher = new Thread(this::flushLoop, "hl7-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Message journal in {}: {} open entries recovered", this.dir.toAbsolutePath(), recovered.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Entries found open at startup, in sequence order; each must eventually be passed to {@link #done}. */
+    public List<Entry> recovered() {
+        return recovered;
+    }
+
+    /**
+     * Appends {@code message} and waits until it is on disk.
+     *
+     * @return the entry's sequence number, to pass to {@link #done}; -1 when the journal is disabled
+     */
+    public long append(String message) throws IOException {
+        if (!enabled) return -1;
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        long sequence;
+        synchronized (this) {
+            if (closed) throw new IOException("Message journal closed");
+            sequence = nextSequence++;
+            Location at = write(TYPE_MESSAGE, sequence, payload, 0, payload.length);
+            at.segment.open++;
+            at.segment.openBytes += at.length;
+            open.put(sequence, at);
+            appendedSequence = sequence;
+            notifyAll();
+            try {
+                while (durableSequence < sequence) {
+                    if (closed) throw new IOException("Message journal closed");
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for journal fsync");
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Marks entry {@code sequence} as handled; it will not be replayed. Not forced to disk on its own (the next
+     * group commit covers it), so a crash right after may replay the entry once more.
+     */
+    public void done(long sequence) {
+        if (!enabled || sequence < 0) return;
+        synchronized (this) {
+            Location at = open.remove(sequence);
+            if (at == null || closed) return;
+            try {
+                write(TYPE_DONE, sequence, null, 0, 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            at.segment.open--;
+            at.segment.openBytes -= at.length;
+            dropCompletedHead();
+        }
+    }
+
+    /** Writes one record into the current segment, rolling first if it does not fit. Caller holds the lock. */
+    private Location write(byte type, long sequence, byte[] payload, int from, int length) throws IOException {
+        int recordBytes = HEADER_BYTES + length;
+        if (recordBytes + 4 > segmentBytes) {
+            throw new IOException("Message of " + length + " bytes exceeds converter.journal.segment-bytes");
+        }
+        if (current.buffer.remaining() < recordBytes + 4) {
+            roll();
+        }
+        MappedByteBuffer buf = current.buffer;
+        int offset = buf.position();
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) crc.update((int) (sequence >>> shift));
+        if (length > 0) crc.update(payload, from, length);
+        buf.position(offset + 4);
+        buf.putInt((int) crc.getValue()).put(type).putLong(sequence);
+        if (length > 0) buf.put(payload, from, length);
+        // length last: a reader never sees a length before the bytes it covers
+        buf.putInt(offset, recordBytes);
+        return new Location(current, offset, recordBytes);
+    }
+
+    /** Seals the current segment (forcing it whole) and starts the next. Caller holds the lock. */
+    private void roll() throws IOException {
+        Segment full = current;
+        full.buffer.force();
+        full.forcedTo = full.buffer.position();
+        durableSequence = appendedSequence;
+        notifyAll();
+        sealed.addLast(full);
+        current = openSegment(nextSequence);
+        dropCompletedHead();
+        compactHead();
+    }
+
+    private void dropCompletedHead() {
+        while (!sealed.isEmpty() && sealed.peekFirst().open == 0) {
+            Segment s = sealed.removeFirst();
+            try {
+                Files.deleteIfExists(s.path);
+            } catch (IOException e) {
+                log.warn("Cannot delete journal segment {}", s.path, e);
+            }
+        }
+    }
+
+    /** Copies the head segment's few remaining open entries forward so the segment can be deleted. */
+    private void compactHead() throws IOException {
+        Segment head = sealed.peekFirst();
+        if (head == null || head.openBytes > segmentBytes / 4
+                || current.buffer.remaining() < head.openBytes + 4) {
+            return;
+        }
+        byte[] scratch = new byte[0];
+        for (Map.Entry<Long, Location> e : open.entrySet()) {
+            Location at = e.getValue();
+            if (at.segment != head) continue;
+            int payloadLength = at.length - HEADER_BYTES;
+            if (scratch.length < payloadLength) scratch = new byte[payloadLength];
+            head.buffer.get(at.offset + HEADER_BYTES, scratch, 0, payloadLength);
+            Location moved = write(TYPE_MESSAGE, e.getKey(), scratch, 0, payloadLength);
+            current.open++;
+            current.openBytes += moved.length;
+            head.open--;
+            head.openBytes -= at.length;
+            at.segment = moved.segment;
+            at.offset = moved.offset;
+        }
+        // the copies must be durable before the originals go
+        current.buffer.force();
+        current.forcedTo = current.buffer.position();
+        dropCompletedHead();
+    }
+
+    /** Group commit: force whatever has been appended since the last force, then wake everyone it covers. */
+    private void flushLoop() {
+        while (true) {
+            Segment segment;
+            int from;
+            int to;
+            long covers;
+            synchronized (this) {
+                try {
+                    while (!closed && appendedSequence == durableSequence) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                segment = current;
+                from = segment.forcedTo;
+                to = segment.buffer.position();
+                covers = appendedSequence;
+            }
+            // Outside the lock: appends carry on into the same segment and are picked up by the next round
+            if (to > from) segment.buffer.force(from, to - from);
+            synchronized (this) {
+                if (segment.forcedTo < to) segment.forcedTo = to;
+                if (durableSequence < covers) durableSequence = covers;
+                notifyAll();
+            }
+        }
+    }
+
+    private Segment openSegment(long baseSequence) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", baseSequence, SUFFIX));
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return new Segment(baseSequence, path, ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    /** Reads every segment, rebuilding the open set; recovered segments are sealed. */
+    private List<Entry> recover() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                files.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), p);
+            }
+        }
+        TreeMap<Long, String> messages = new TreeMap<>();
+        long maxSequence = -1;
+        for (Map.Entry<Long, Path> f : files.entrySet()) {
+            Segment s;
+            try (FileChannel ch = FileChannel.open(f.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                s = new Segment(f.getKey(), f.getValue(), ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size()));
+            }
+            MappedByteBuffer buf = s.buffer;
+            int pos = 0;
+            while (pos + HEADER_BYTES <= buf.limit()) {
+                int length = buf.getInt(pos);
+                if (length < HEADER_BYTES || pos + length > buf.limit() || !checksumOk(buf, pos, length)) break;
+                byte type = buf.get(pos + 8);
+                long sequence = buf.getLong(pos + 9);
+                maxSequence = Math.max(maxSequence, sequence);
+                if (type == TYPE_MESSAGE) {
+                    byte[] payload = new byte[length - HEADER_BYTES];
+                    buf.get(pos + HEADER_BYTES, payload);
+                    // a compacted entry appears twice; the later copy is the live one
+                    Location old = open.put(sequence, new Location(s, pos, length));
+                    if (old != null) {
+                        old.segment.open--;
+                        old.segment.openBytes -= old.length;
+                    }
+                    s.open++;
+                    s.openBytes += length;
+                    messages.put(sequence, new String(payload, StandardCharsets.UTF_8));
+                } else if (type == TYPE_DONE) {
+                    Location at = open.remove(sequence);
+                    if (at != null) {
+                        at.segment.open--;
+                        at.segment.openBytes -= at.length;
+                    }
+                    messages.remove(sequence);
+                }
+                pos += length;
+            }
+            sealed.addLast(s);
+        }
+        dropCompletedHead();
+        // past the last segment's name too, so the new segment never reuses an (empty) existing file
+        nextSequence = files.isEmpty() ? maxSequence + 1 : Math.max(maxSequence, files.lastKey()) + 1;
+        List<Entry> entries = new ArrayList<>(messages.size());
+        for (Map.Entry<Long, String> m : messages.entrySet()) {
+            entries.add(new Entry(m.getKey(), m.getValue()));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static boolean checksumOk(MappedByteBuffer buf, int pos, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buf.slice(pos + 8, length - 8));
+        return (int) crc.getValue() == buf.getInt(pos + 4);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (!enabled) return;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            current.buffer.force();
+            durableSequence = appendedSequence;
+            notifyAll();
+        }
+        flusher.interrupt();
+    }
+}
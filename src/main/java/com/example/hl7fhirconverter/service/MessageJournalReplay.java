@@ -0,0 +1,115 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * At startup, converts the journal entries left open by the previous run and publishes each as a
+ * {@link JournalReplayEvent}, before the application reports ready. Entries go through the patient lanes of
+ * {@link PartitionedExecutor}, so each patient's messages replay in their original order.
+ * <p>
+ * Replay is a lifecycle bean started in an earlier phase than the web server and the MLLP listener, and it
+ * returns only once every entry has been handled, so no new message for a patient can overtake that patient's
+ * older, replayed ones.
+ * <p>
+ * A message that fails to convert is logged and marked done (it failed the first time too, and retrying it
+ * on every start would not help); one whose event listener throws stays open for the next start.
+ * Disabled with {@code converter.journal.replay=false}.
+ */
+@Component
+public class MessageJournalReplay implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageJournalReplay.class);
+
+    private final MessageJournal journal;
+    private final ConversionPipeline pipeline;
+    private final PartitionedExecutor lanes;
+    private final ApplicationEventPublisher events;
+    private final boolean replay;
+    private volatile boolean running;
+
+    public MessageJournalReplay(MessageJournal journal,
+                                ConversionPipeline pipeline,
+                                PartitionedExecutor lanes,
+                                ApplicationEventPublisher events,
+                                @Value("${converter.journal.replay:true}") boolean replay) {
+        this.journal = journal;
+        this.pipeline = pipeline;
+        this.lanes = lanes;
+        this.events = events;
+        this.replay = replay;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        try {
+            replay();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Journal replay interrupted, remaining entries stay open for the next start");
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Before the web server (and everything else in the default phase, such as the MLLP listener). */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    void replay() throws InterruptedException {
+        List<MessageJournal.Entry> entries = journal.recovered();
+        if (!replay || entries.isEmpty()) return;
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> pending = new ArrayList<>(entries.size());
+        for (MessageJournal.Entry entry : entries) {
+            String key = PartitionedExecutor.affinityKey(entry.getMessage());
+            pending.add(lanes.submit(key, () -> {
+                replayOne(entry, failed);
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(e -> null)
+                .join();
+        log.info("Replayed {} journaled messages ({} could not be converted)", entries.size(), failed.get());
+    }
+
+    private void replayOne(MessageJournal.Entry entry, AtomicInteger failed) {
+        Bundle bundle;
+        try {
+            bundle = pipeline.convert(entry.getMessage());
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.warn("Journaled message {} could not be converted, dropping it: {}", entry.getSequence(), e.getMessage());
+            journal.done(entry.getSequence());
+            return;
+        }
+        try {
+            events.publishEvent(new JournalReplayEvent(this, entry.getSequence(), entry.getMessage(), bundle));
+            journal.done(entry.getSequence());
+        } catch (RuntimeException e) {
+            log.warn("Delivery of journaled message {} failed, keeping it for the next start", entry.getSequence(), e);
+        }
+    }
+}
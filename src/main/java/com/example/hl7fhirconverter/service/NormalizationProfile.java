@@ -0,0 +1,232 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Identifier;
+
+import java.util.Map;
+
+/**
+ * The site-specific values {@link BundleNormalizer} fills in: identifier systems and assigner of the sending
+ * facility, placeholders for fields the feed leaves empty, and the fixed codings it adds. One per sending
+ * facility or application, chosen by {@link NormalizationProfiles}.
+ * <p>
+ * Compiled once from {@code profile.<name>.*} properties (see {@link #compile}); immutable afterwards, so one
+ * instance is shared by every thread converting that facility's messages. The Codings and Identifiers it
+ * returns are shared too: copy them into a resource, never modify them.
+ */
+public final class NormalizationProfile {
+
+    /** Name of the profile for messages no other profile claims. */
+    public static final String DEFAULT_NAME = "default";
+
+    /** The values the normalizer used before profiles existed. */
+    static final NormalizationProfile BUILT_IN = new NormalizationProfile(DEFAULT_NAME,
+            "TRINITY HEALTH MINOT",
+            "urn:oid:1.2.840.114350.1.13.0.1.7.1.1",
+            "urn:id:TRINITY_HEALTH_MINOT",
+            "V0098765",
+            "+17015551212",
+            "+17015551213",
+            "en",
+            coding("http://snomed.info/sct|50849002|Emergency department visit"),
+            coding("http://www.nlm.nih.gov/research/umls/rxnorm|7980|Penicillin"),
+            coding("http://snomed.info/sct|247472004|Hives"),
+            "GRP54321",
+            new String[]{"urn:oid:2.16.840.1.113883.19.5.1", "urn:oid:2.16.840.1.113883.19.5.2",
+                    "urn:oid:2.16.840.1.113883.19.5.3"},
+            identifier("urn:oid:2.16.840.1.113883.19.5.8|G12345"),
+            identifier("urn:oid:2.16.840.1.113883.19.4.7|V0098765"));
+
+    private final String name;
+    private final String assignerDisplay;
+    private final String patientIdentifierSystem;
+    private final String visitIdentifierSystem;
+    private final String defaultVisitNumber;
+    private final String defaultPhone;
+    private final String defaultContactPhone;
+    private final String defaultLanguage;
+    private final Coding encounterType;
+    private final Coding allergyCode;
+    private final Coding allergyReaction;
+    private final String defaultCoverageGroup;
+    private final String[] locationIdentifierSystems;
+    private final Identifier guarantorIdentifier;
+    private final Identifier accountIdentifier;
+    private final String locationCacheKey;
+
+    private NormalizationProfile(String name, String assignerDisplay, String patientIdentifierSystem,
+                                 String visitIdentifierSystem, String defaultVisitNumber, String defaultPhone,
+                                 String defaultContactPhone, String defaultLanguage, Coding encounterType,
+                                 Coding allergyCode, Coding allergyReaction, String defaultCoverageGroup,
+                                 String[] locationIdentifierSystems, Identifier guarantorIdentifier,
+                                 Identifier accountIdentifier) {
+        this.name = name;
+        this.assignerDisplay = assignerDisplay;
+        this.patientIdentifierSystem = patientIdentifierSystem;
+        this.visitIdentifierSystem = visitIdentifierSystem;
+        this.defaultVisitNumber = defaultVisitNumber;
+        this.defaultPhone = defaultPhone;
+        this.defaultContactPhone = defaultContactPhone;
+        this.defaultLanguage = defaultLanguage;
+        this.encounterType = encounterType;
+        this.allergyCode = allergyCode;
+        this.allergyReaction = allergyReaction;
+        this.defaultCoverageGroup = defaultCoverageGroup;
+        this.locationIdentifierSystems = locationIdentifierSystems;
+        this.guarantorIdentifier = guarantorIdentifier;
+        this.accountIdentifier = accountIdentifier;
+        this.locationCacheKey = String.join(",", locationIdentifierSystems) + '|';
+    }
+
+    /**
+     * Compiles profile {@code name} from its properties (keys without the {@code profile.<name>.} prefix);
+     * keys it does not set are taken from {@code base}. An empty value leaves that element out. Codings are
+     * written {@code system|code|display}, identifiers {@code system|value}.
+     *
+     * @throws IllegalArgumentException for a malformed value
+     */
+    static NormalizationProfile compile(String name, Map<String, String> props, NormalizationProfile base) {
+        String[] locations = base.locationIdentifierSystems;
+        if (props.containsKey("location-identifier-systems")) {
+            String[] parts = props.get("location-identifier-systems").split(",", -1);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("profile." + name
+                        + ".location-identifier-systems needs three systems (point of care, room, bed)");
+            }
+            locations = new String[3];
+            for (int i = 0; i < 3; i++) locations[i] = blankToNull(parts[i].trim());
+        }
+        return new NormalizationProfile(name,
+                text(props, "assigner-display", base.assignerDisplay),
+                text(props, "patient-identifier-system", base.patientIdentifierSystem),
+                text(props, "visit-identifier-system", base.visitIdentifierSystem),
+                text(props, "default-visit-number", base.defaultVisitNumber),
+                text(props, "default-phone", base.defaultPhone),
+                text(props, "default-contact-phone", base.defaultContactPhone),
+                text(props, "default-language", base.defaultLanguage),
+                props.containsKey("encounter-type") ? coding(props.get("encounter-type")) : base.encounterType,
+                props.containsKey("allergy-code") ? coding(props.get("allergy-code")) : base.allergyCode,
+                props.containsKey("allergy-reaction") ? coding(props.get("allergy-reaction")) : base.allergyReaction,
+                text(props, "default-coverage-group", base.defaultCoverageGroup),
+                locations,
+                props.containsKey("guarantor-identifier") ? identifier(props.get("guarantor-identifier"))
+                        : base.guarantorIdentifier,
+                props.containsKey("account-identifier") ? identifier(props.get("account-identifier"))
+                        : base.accountIdentifier);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Prefix for keys of per-facility reference data (locations): empty for the default profile. */
+    String keyPrefix() {
+        return DEFAULT_NAME.equals(name) ? "" : name + '|';
+    }
+
+    /** Assigner display for the facility's own identifiers; null for none. */
+    String assignerDisplay() {
+        return assignerDisplay;
+    }
+
+    /** System of the Patient identifiers the facility assigns (those get {@link #assignerDisplay}). */
+    String patientIdentifierSystem() {
+        return patientIdentifierSystem;
+    }
+
+    /** System of the Encounter identifier (PV1-19). */
+    String visitIdentifierSystem() {
+        return visitIdentifierSystem;
+    }
+
+    /** Encounter identifier when PV1-19 is missing; null for none. */
+    String defaultVisitNumber() {
+        return defaultVisitNumber;
+    }
+
+    /** Patient and guarantor phone when PID-13 is missing; null for none. */
+    String defaultPhone() {
+        return defaultPhone;
+    }
+
+    /** NK1 contact phone when NK1-5 is missing; null for none. */
+    String defaultContactPhone() {
+        return defaultContactPhone;
+    }
+
+    /** Patient communication language when PID-15 is missing; null for none. */
+    String defaultLanguage() {
+        return defaultLanguage;
+    }
+
+    /** Encounter.type; null for none. */
+    Coding encounterType() {
+        return encounterType;
+    }
+
+    /** AllergyIntolerance.code for AL1; null for none. */
+    Coding allergyCode() {
+        return allergyCode;
+    }
+
+    /** AllergyIntolerance reaction manifestation for AL1; null for none. */
+    Coding allergyReaction() {
+        return allergyReaction;
+    }
+
+    /** Coverage group when IN1-8 is missing; null for none. */
+    String defaultCoverageGroup() {
+        return defaultCoverageGroup;
+    }
+
+    /** Location identifier systems for point of care, room and bed (PV1-3.1..3); an element may be null. */
+    String locationIdentifierSystem(int component) {
+        return locationIdentifierSystems[component];
+    }
+
+    /**
+     * Part of the reference-data cache key of the Locations built with this profile: the profile values they
+     * contain, so that Locations cached before a reload changed them are not handed out again.
+     */
+    String locationCacheKey() {
+        return locationCacheKey;
+    }
+
+    /** RelatedPerson identifier for GT1; null for none. */
+    Identifier guarantorIdentifier() {
+        return guarantorIdentifier;
+    }
+
+    /** Account identifier; null for none. */
+    Identifier accountIdentifier() {
+        return accountIdentifier;
+    }
+
+    private static String text(Map<String, String> props, String key, String inherited) {
+        return props.containsKey(key) ? blankToNull(props.get(key).trim()) : inherited;
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    private static Coding coding(String value) {
+        if (value == null || value.isBlank()) return null;
+        String[] parts = value.trim().split("\\|", -1);
+        if (parts.length < 2 || parts.length > 3 || parts[1].isBlank()) {
+            throw new IllegalArgumentException("Not a system|code|display coding: " + value);
+        }
+        Coding c = new Coding().setSystem(blankToNull(parts[0])).setCode(parts[1]);
+        if (parts.length == 3) c.setDisplay(blankToNull(parts[2]));
+        return c;
+    }
+
+    private static Identifier identifier(String value) {
+        if (value == null || value.isBlank()) return null;
+        String[] parts = value.trim().split("\\|", -1);
+        if (parts.length != 2 || parts[1].isBlank()) {
+            throw new IllegalArgumentException("Not a system|value identifier: " + value);
+        }
+        return new Identifier().setSystem(blankToNull(parts[0])).setValue(parts[1]);
+    }
+}
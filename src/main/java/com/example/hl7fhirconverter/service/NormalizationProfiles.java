@@ -0,0 +1,196 @@
+package com.example.hl7fhirconverter.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the {@link NormalizationProfile} for each message by sending facility (MSH-4), else sending
+ * application (MSH-3), so one instance can normalize the feeds of several hospitals.
+ * <p>
+ * Profiles come from the properties file {@code converter.profiles.file}:
+ * <pre>
+ * profile.stmarys.facilities=ST MARYS,SMH
+ * profile.stmarys.assigner-display=ST MARYS HOSPITAL
+ * profile.stmarys.visit-identifier-system=urn:id:ST_MARYS
+ * </pre>
+ * {@code facilities} and {@code applications} list the MSH-4 and MSH-3 values (as sent, components included)
+ * a profile claims; the other keys are the fields of {@link NormalizationProfile#compile}. Profile
+ * {@code default} covers every other message, and every profile inherits the keys it does not set from it;
+ * without a file it is the built-in one.
+ * <p>
+ * The file is compiled into an immutable snapshot: one lookup map per selector. It is checked for changes every
+ * {@code converter.profiles.reload-interval} (default 10s, 0 to load only at startup) and a new snapshot
+ * replaces the old one atomically, so a conversion sees one profile from start to end. A file that does not
+ * compile is logged and the previous snapshot kept. Thread-safe.
+ */
+@Component
+public class NormalizationProfiles {
+
+    private static final Logger log = LoggerFactory.getLogger(NormalizationProfiles.class);
+
+    private static final String PREFIX = "profile.";
+
+    /** One compiled profiles file. */
+    private static final class Snapshot {
+        final NormalizationProfile fallback;
+        final Map<String, NormalizationProfile> byFacility;
+        final Map<String, NormalizationProfile> byApplication;
+        final Map<String, NormalizationProfile> byName;
+
+        Snapshot(NormalizationProfile fallback, Map<String, NormalizationProfile> byFacility,
+                 Map<String, NormalizationProfile> byApplication, Map<String, NormalizationProfile> byName) {
+            this.fallback = fallback;
+            this.byFacility = byFacility;
+            this.byApplication = byApplication;
+            this.byName = byName;
+        }
+    }
+
+    private final Path file;
+    private final ScheduledExecutorService reloader;
+    private volatile Snapshot snapshot;
+    private long loadedModified;
+    private long loadedSize;
+
+    /** The built-in profile for every message. */
+    public static NormalizationProfiles defaults() {
+        return new NormalizationProfiles();
+    }
+
+    private NormalizationProfiles() {
+        this.file = null;
+        this.reloader = null;
+        this.snapshot = builtIn();
+    }
+
+    @Autowired
+    public NormalizationProfiles(@Value("${converter.profiles.file:}") String file,
+                                 @Value("${converter.profiles.reload-interval:10s}") Duration reloadInterval)
+            throws IOException {
+        this.snapshot = builtIn();
+        if (file.isBlank()) {
+            this.file = null;
+            this.reloader = null;
+            return;
+        }
+        this.file = Paths.get(file.trim());
+        // At startup a broken file is fatal, as with the code-mapping tables
+        load();
+        if (reloadInterval.isZero() || reloadInterval.isNegative()) {
+            this.reloader = null;
+            return;
+        }
+        this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hl7-profiles-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        long millis = reloadInterval.toMillis();
+        reloader.scheduleWithFixedDelay(this::reloadIfChanged, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /** The profile for {@code data}'s sending facility or application, else the default one. */
+    public NormalizationProfile select(HL7SimpleData data) {
+        Snapshot s = snapshot;
+        if (data == null) return s.fallback;
+        NormalizationProfile p = data.sendingFacility == null ? null : s.byFacility.get(data.sendingFacility);
+        if (p == null && data.sendingApp != null && !s.byApplication.isEmpty()) p = s.byApplication.get(data.sendingApp);
+        return p != null ? p : s.fallback;
+    }
+
+    /** Compiles the file again if it changed since it was last read; a broken version is reported once. */
+    void reloadIfChanged() {
+        try {
+            if (Files.getLastModifiedTime(file).toMillis() == loadedModified && Files.size(file) == loadedSize) return;
+            load();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Normalization profiles in {} not reloaded, keeping the previous ones: {}", file, e.getMessage());
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        loadedModified = Files.getLastModifiedTime(file).toMillis();
+        loadedSize = Files.size(file);
+        Properties props = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(in);
+        }
+        snapshot = compile(props);
+        log.info("Loaded {} normalization profiles from {}", snapshot.byName.size(), file.toAbsolutePath());
+    }
+
+    private static Snapshot builtIn() {
+        return new Snapshot(NormalizationProfile.BUILT_IN, Collections.emptyMap(), Collections.emptyMap(),
+                Collections.singletonMap(NormalizationProfile.DEFAULT_NAME, NormalizationProfile.BUILT_IN));
+    }
+
+    private static Snapshot compile(Properties props) {
+        // profile name -> its keys
+        Map<String, Map<String, String>> raw = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith(PREFIX)) continue;
+            int dot = key.indexOf('.', PREFIX.length());
+            if (dot < 0) throw new IllegalArgumentException("Expected profile.<name>.<key>: " + key);
+            raw.computeIfAbsent(key.substring(PREFIX.length(), dot), n -> new HashMap<>())
+                    .put(key.substring(dot + 1), props.getProperty(key));
+        }
+        Map<String, String> defaults = raw.getOrDefault(NormalizationProfile.DEFAULT_NAME, Collections.emptyMap());
+        NormalizationProfile fallback = NormalizationProfile.compile(NormalizationProfile.DEFAULT_NAME, defaults,
+                NormalizationProfile.BUILT_IN);
+
+        Map<String, NormalizationProfile> byFacility = new HashMap<>();
+        Map<String, NormalizationProfile> byApplication = new HashMap<>();
+        Map<String, NormalizationProfile> byName = new HashMap<>();
+        byName.put(fallback.getName(), fallback);
+        for (Map.Entry<String, Map<String, String>> e : raw.entrySet()) {
+            if (e.getKey().equals(NormalizationProfile.DEFAULT_NAME)) continue;
+            Map<String, String> keys = new HashMap<>(e.getValue());
+            String facilities = keys.remove("facilities");
+            String applications = keys.remove("applications");
+            NormalizationProfile profile = NormalizationProfile.compile(e.getKey(), keys, fallback);
+            byName.put(profile.getName(), profile);
+            claim(byFacility, facilities, profile, "MSH-4");
+            claim(byApplication, applications, profile, "MSH-3");
+        }
+        return new Snapshot(fallback, Collections.unmodifiableMap(byFacility),
+                Collections.unmodifiableMap(byApplication), Collections.unmodifiableMap(byName));
+    }
+
+    private static void claim(Map<String, NormalizationProfile> map, String values, NormalizationProfile profile,
+                              String field) {
+        if (values == null) return;
+        for (String v : values.split(",")) {
+            String value = v.trim();
+            if (value.isEmpty()) continue;
+            NormalizationProfile other = map.put(value, profile);
+            if (other != null && other != profile) {
+                throw new IllegalArgumentException(field + " " + value + " is claimed by profiles "
+                        + other.getName() + " and " + profile.getName());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (reloader != null) reloader.shutdownNow();
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.Set;
+
+/**
+ * A single post-conversion fix applied to bundle entries by {@link NormalizationRuleEngine}.
+ * <p>
+ * Rules only see entries whose resource type they declare, in one shared pass over the bundle, so a
+ * rule for Coverage costs nothing on messages without one. Implementations must be stateless
+ * (they are shared across threads). Site-specific rules can be registered as Spring beans; they run
+ * after the built-in ones, in {@code @Order}.
+ */
+public interface NormalizationRule {
+
+    /** Resource types this rule applies to; an empty set means every entry (including resource-less ones). */
+    Set<ResourceType> resourceTypes();
+
+    /**
+     * @param entry the entry to fix; for typed rules its resource is one of {@link #resourceTypes()}
+     * @param data  fields pulled straight from the HL7 message, may be null
+     */
+    void apply(Bundle.BundleEntryComponent entry, HL7SimpleData data);
+
+    /** Name used for the rule's timing counters. */
+    default String name() {
+        return getClass().getSimpleName();
+    }
+}
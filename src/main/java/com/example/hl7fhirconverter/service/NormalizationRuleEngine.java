@@ -0,0 +1,101 @@
+package com.example.hl7fhirconverter.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a fixed list of {@link NormalizationRule}s over a bundle in a single pass.
+ * <p>
+ * The rules are grouped once, at construction, into one array per resource type (type-specific rules
+ * merged with the every-entry rules, keeping registration order), so dispatch per entry is an array
+ * lookup by {@code ResourceType.ordinal()}. Each rule keeps invocation and elapsed-time counters.
+ * Thread-safe.
+ */
+public final class NormalizationRuleEngine {
+
+    /** Invocation count and cumulative time of one rule. */
+    public static final class RuleStats {
+        private final String rule;
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        RuleStats(String rule) {
+            this.rule = rule;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+
+        public long getInvocations() {
+            return invocations.sum();
+        }
+
+        public long getTotalTime(TimeUnit unit) {
+            return unit.convert(nanos.sum(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static final ResourceType[] TYPES = ResourceType.values();
+
+    private final NormalizationRule[] rules;
+    private final RuleStats[] stats;
+    /** indices into {@link #rules}, by ResourceType ordinal */
+    private final int[][] rulesByType;
+    /** indices of the every-entry rules, for entries without a resource */
+    private final int[] untypedRules;
+
+    public NormalizationRuleEngine(List<? extends NormalizationRule> rules) {
+        this.rules = rules.toArray(new NormalizationRule[0]);
+        this.stats = new RuleStats[this.rules.length];
+        List<Integer> untyped = new ArrayList<>();
+        for (int i = 0; i < this.rules.length; i++) {
+            stats[i] = new RuleStats(this.rules[i].name());
+            if (this.rules[i].resourceTypes().isEmpty()) untyped.add(i);
+        }
+        this.untypedRules = toArray(untyped);
+        this.rulesByType = new int[TYPES.length][];
+        for (ResourceType type : TYPES) {
+            List<Integer> applicable = new ArrayList<>();
+            for (int i = 0; i < this.rules.length; i++) {
+                Set<ResourceType> types = this.rules[i].resourceTypes();
+                if (types.isEmpty() || types.contains(type)) applicable.add(i);
+            }
+            rulesByType[type.ordinal()] = toArray(applicable);
+        }
+    }
+
+    public void apply(Bundle bundle, HL7SimpleData data) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource res = entry.getResource();
+            int[] applicable = res == null ? untypedRules : rulesByType[res.getResourceType().ordinal()];
+            for (int i : applicable) {
+                long start = System.nanoTime();
+                rules[i].apply(entry, data);
+                stats[i].nanos.add(System.nanoTime() - start);
+                stats[i].invocations.increment();
+            }
+        }
+    }
+
+    /** Counters per rule, in registration order. */
+    public List<RuleStats> stats() {
+        List<RuleStats> list = new ArrayList<>(stats.length);
+        Collections.addAll(list, stats);
+        return Collections.unmodifiableList(list);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++) a[i] = list.get(i);
+        return a;
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs work in N lanes, each a single thread draining a bounded FIFO queue, with every message of one
+ * patient (PID-3, else PV1-19 visit number) hashed to the same lane. Events for a patient are therefore
+ * converted, and handed on, strictly in submission order, while different patients proceed in parallel.
+ * <p>
+ * {@link #submit} blocks while the chosen lane's queue ({@code converter.partition.queue-depth}) is full,
+ * which pushes back on the reader or MLLP connection feeding it. Messages with no patient or visit id have
+ * nothing to stay ordered with and are spread round-robin. Per-lane meters:
+ * <ul>
+ *   <li>{@code hl7.partition.lag} timer: time a message waited in its lane before conversion started</li>
+ *   <li>{@code hl7.partition.queued} gauge: messages waiting in the lane</li>
+ *   <li>{@code hl7.partition.oldest} gauge: age in seconds of the oldest message the lane has not finished</li>
+ * </ul>
+ * Thread-safe.
+ */
+@Component
+public class PartitionedExecutor {
+
+    private static final class Task<T> {
+        final Callable<T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+
+        Task(Callable<T> work) {
+            this.work = work;
+        }
+
+        void run() {
+            try {
+                result.complete(work.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final class Lane implements Runnable {
+        final BlockingQueue<Task<?>> queue;
+        final Timer lag;
+        final Thread thread;
+        volatile Task<?> current;
+
+        Lane(int index, int queueDepth, MeterRegistry registry, ClassLoader loader) {
+            this.queue = new ArrayBlockingQueue<>(queueDepth);
+            String lane = Integer.toString(index);
+            this.lag = Timer.builder("hl7.partition.lag")
+                    .description("Time a message waited in its partition lane before conversion started")
+                    .tag("lane", lane)
+                    .publishPercentiles(0.5, 0.99)
+                    .register(registry);
+            Gauge.builder("hl7.partition.queued", queue, BlockingQueue::size)
+                    .description("Messages waiting in a partition lane")
+                    .tag("lane", lane)
+                    .register(registry);
+            Gauge.builder("hl7.partition.oldest", this, Lane::oldestAgeSeconds)
+                    .description("Age of the oldest message a partition lane has not finished")
+                    .baseUnit("seconds")
+                    .tag("lane", lane)
+                    .register(registry);
+            this.thread = new Thread(this, "hl7-lane-" + index);
+            thread.setDaemon(true);
+            // The converter loads its templates through the context class loader (see BatchConversionEngine)
+            thread.setContextClassLoader(loader);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Task<?> task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                current = task;
+                lag.record(System.nanoTime() - task.enqueuedNanos, TimeUnit.NANOSECONDS);
+                task.run();
+                current = null;
+            }
+            Task<?> left;
+            while ((left = queue.poll()) != null) {
+                left.result.completeExceptionally(new CancellationException("Partitioned executor shut down"));
+            }
+        }
+
+        double oldestAgeSeconds() {
+            Task<?> oldest = current;
+            if (oldest == null) oldest = queue.peek();
+            return oldest == null ? 0 : (System.nanoTime() - oldest.enqueuedNanos) / 1e9;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private volatile boolean closed;
+
+    @Autowired
+    public PartitionedExecutor(@Value("${converter.partition.lanes:0}") int lanes,
+                               @Value("${converter.partition.queue-depth:256}") int queueDepth,
+                               MeterRegistry registry) {
+        int n = lanes > 0 ? lanes : Runtime.getRuntime().availableProcessors();
+        ClassLoader loader = getClass().getClassLoader();
+        this.lanes = new Lane[n];
+        for (int i = 0; i < n; i++) {
+            this.lanes[i] = new Lane(i, Math.max(1, queueDepth), registry, loader);
+        }
+        for (Lane lane : this.lanes) lane.thread.start();
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /** The ordering key of a message: PID-3 (first repetition), else PV1-19, else null (unordered). */
+    public static String affinityKey(HL7SimpleData data) {
+        return affinityKey(data.patientId, data.visitNumber);
+    }
+
+    /**
+     * {@link #affinityKey(HL7SimpleData)} of a raw message, scanning only PID and PV1: cheap enough for the
+     * single thread that reads a batch or serves a connection, which then leaves the full parse to the lane.
+     */
+    public static String affinityKey(String hl7Message) {
+        if (hl7Message == null) return null;
+        String patientId = null;
+        String visitNumber = null;
+        HL7Tokenizer t = new HL7Tokenizer(hl7Message);
+        // Same fields, and the same last-segment-wins, as HL7SimpleData.parse
+        while (t.nextSegment()) {
+            if (t.segmentIs("PID")) {
+                if (t.fieldCount() > 3) patientId = t.firstRepetition(3);
+            } else if (t.segmentIs("PV1")) {
+                if (t.fieldCount() > 19) visitNumber = t.field(19);
+            }
+        }
+        return affinityKey(patientId, visitNumber);
+    }
+
+    private static String affinityKey(String patientId, String visitNumber) {
+        if (patientId != null && !patientId.isBlank()) return patientId;
+        if (visitNumber != null && !visitNumber.isBlank()) return visitNumber;
+        return null;
+    }
+
+    /**
+     * Queues {@code work} behind everything already submitted with the same {@code affinityKey}, blocking
+     * while that lane is full.
+     *
+     * @param affinityKey from {@link #affinityKey}; null to take any lane
+     * @return completes on the lane thread, so dependent stages should be cheap
+     */
+    public <T> CompletableFuture<T> submit(String affinityKey, Callable<T> work) throws InterruptedException {
+        if (closed) throw new RejectedExecutionException("Partitioned executor shut down");
+        Task<T> task = new Task<>(work);
+        Lane lane = lanes[laneFor(affinityKey)];
+        lane.queue.put(task);
+        if (closed && lane.queue.remove(task)) {
+            // raced with shutdown after the lane drained its queue
+            task.result.completeExceptionally(new RejectedExecutionException("Partitioned executor shut down"));
+        }
+        return task.result;
+    }
+
+    int laneFor(String affinityKey) {
+        if (affinityKey == null) {
+            return Math.floorMod(roundRobin.getAndIncrement(), lanes.length);
+        }
+        int h = affinityKey.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), lanes.length);
+    }
+
+    /** Stops the lanes; work still queued completes with a {@link CancellationException}. */
+    @PreDestroy
+    public void shutdown() {
+        closed = true;
+        for (Lane lane : lanes) lane.thread.interrupt();
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The last normalized content of each patient's resources, kept on disk so that update events can be sent as
+ * just the resources that changed ({@code converter.state.enabled}, see {@link BundleDelta}).
+ * <p>
+ * Only a 64-bit digest is stored per resource, keyed by a 64-bit hash of patient, visit and resource identity:
+ * an open-addressing table of 16-byte slots (linear probing) in one memory-mapped file,
+ * {@code converter.state.file}, sized for {@code converter.state.max-entries} (rounded up to a power of two,
+ * at most 2^26, a 1 GiB file). The OS writes pages back as it likes and the file is forced on shutdown; after a crash the
+ * worst case is a resource sent in full once more. Once the table is 90% full new keys are no longer stored
+ * (their resources are always sent), existing ones still update.
+ * <p>
+ * Digests are stored only once the Bundle has been delivered ({@link DeliveryReceipt}). Until then its keys
+ * are held in memory, and later messages count those resources as changed, since the receiver may have
+ * neither the stored version nor the one on its way. Thread-safe.
+ */
+@Component
+public class PatientStateStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PatientStateStore.class);
+
+    private static final long MAGIC = 0x484c3753_54415445L; // "HL7STATE"
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 16;
+    /** 1 GiB of slots: one mapping holds at most 2 GiB, and slot offsets are computed as ints. */
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final double MAX_LOAD = 0.9;
+
+    /** The digest of a key seen for the first time (or not storable). */
+    static final long ABSENT = 0;
+
+    private final boolean enabled;
+    private final Set<String> deltaEvents;
+    private final MappedByteBuffer table;
+    private final FileChannel channel;
+    private final int mask;
+    private final int maxEntries;
+    private int entries;
+    private boolean fullLogged;
+    // keys compared but neither committed nor released, and how many times
+    private final Map<Long, Integer> pending = new HashMap<>();
+    private final Counter changed;
+    private final Counter unchanged;
+
+    /** Disabled: nothing is stored and every resource counts as changed. */
+    public PatientStateStore() {
+        this.enabled = false;
+        this.deltaEvents = Collections.emptySet();
+        this.table = null;
+        this.channel = null;
+        this.mask = 0;
+        this.maxEntries = 0;
+        this.changed = null;
+        this.unchanged = null;
+    }
+
+    @Autowired
+    public PatientStateStore(@Value("${converter.state.enabled:false}") boolean enabled,
+                             @Value("${converter.state.file:state/patients.state}") String file,
+                             @Value("${converter.state.max-entries:4194304}") int maxEntries,
+                             @Value("${converter.state.delta-events:ADT^A08,ADT^A31}") List<String> deltaEvents,
+                             MeterRegistry registry) throws IOException {
+        this.enabled = enabled;
+        this.deltaEvents = new HashSet<>(deltaEvents);
+        if (!enabled) {
+            this.table = null;
+            this.channel = null;
+            this.mask = 0;
+            this.maxEntries = 0;
+            this.changed = null;
+            this.unchanged = null;
+            return;
+        }
+        int capacity = Integer.highestOneBit(Math.max(1024, Math.min(MAX_CAPACITY, maxEntries)) - 1) << 1;
+        long size = HEADER_BYTES + (long) capacity * SLOT_BYTES;
+        Path path = Paths.get(file);
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long existing = channel.size();
+        this.table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (existing != size || table.getLong(0) != MAGIC || table.getLong(8) != capacity) {
+            if (existing > 0) log.warn("Patient state in {} does not match the configured size, starting empty", path);
+            clear(capacity);
+        }
+        this.mask = capacity - 1;
+        this.maxEntries = (int) (capacity * MAX_LOAD);
+        this.entries = (int) table.getLong(16);
+        Gauge.builder("hl7.state.entries", this, PatientStateStore::size)
+                .description("Resource digests held in the patient state store")
+                .register(registry);
+        this.changed = Counter.builder("hl7.state.resources").tag("result", "changed")
+                .description("Resources of update events compared against the patient state store")
+                .register(registry);
+        this.unchanged = Counter.builder("hl7.state.resources").tag("result", "unchanged")
+                .description("Resources of update events compared against the patient state store")
+                .register(registry);
+        log.info("Patient state store {}: {} of {} slots used", path.toAbsolutePath(), entries, capacity);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * True if messages of {@code messageType} (MSH-9.1^MSH-9.2, e.g. {@code ADT^A08}; the structure in MSH-9.3
+     * does not matter) are reduced to their changes.
+     */
+    boolean isDeltaEvent(String messageType) {
+        return enabled && messageType != null && deltaEvents.contains(messageType);
+    }
+
+    /**
+     * Compares each of {@code digests} with the one stored under the same key, and holds the keys until
+     * {@link #commit} or {@link #release}.
+     *
+     * @return for each key, true if its digest is the stored one and no other Bundle holds the key
+     */
+    synchronized boolean[] compare(long[] keys, long[] digests) {
+        boolean[] same = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            same[i] = !pending.containsKey(keys[i]) && get(keys[i]) == nonZero(digests[i]);
+            pending.merge(keys[i], 1, Integer::sum);
+        }
+        return same;
+    }
+
+    /** Stores the digests of a delivered Bundle and releases its keys. */
+    synchronized void commit(long[] keys, long[] digests) {
+        for (int i = 0; i < keys.length; i++) put(keys[i], digests[i]);
+        release(keys);
+    }
+
+    /** Releases the keys of a Bundle that was not delivered; the stored digests stay as they were. */
+    synchronized void release(long[] keys) {
+        for (long key : keys) pending.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private long get(long key) {
+        int at = find(nonZero(key));
+        return table.getLong(at) == 0 ? ABSENT : table.getLong(at + 8);
+    }
+
+    private void put(long key, long digest) {
+        key = nonZero(key);
+        int at = find(key);
+        if (table.getLong(at) == 0) {
+            if (entries >= maxEntries) {
+                if (!fullLogged) {
+                    log.warn("Patient state store is full ({} entries), new patients are sent in full", entries);
+                    fullLogged = true;
+                }
+                return;
+            }
+            // Digest first: a key is never seen without its digest
+            table.putLong(at + 8, nonZero(digest));
+            table.putLong(at, key);
+            table.putLong(16, ++entries);
+            return;
+        }
+        table.putLong(at + 8, nonZero(digest));
+    }
+
+    /** The offset of the slot holding {@code key}, else of the empty slot that ends its probe sequence. */
+    private int find(long key) {
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        while (true) {
+            int at = HEADER_BYTES + i * SLOT_BYTES;
+            long k = table.getLong(at);
+            if (k == key || k == 0) return at;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /** Zero marks an empty slot (key) or an absent digest, so neither is ever stored. */
+    private static long nonZero(long value) {
+        return value == 0 ? 1 : value;
+    }
+
+    void count(int changedResources, int unchangedResources) {
+        changed.increment(changedResources);
+        unchanged.increment(unchangedResources);
+    }
+
+    synchronized int size() {
+        return entries;
+    }
+
+    private void clear(int capacity) {
+        byte[] zeros = new byte[64 * 1024];
+        table.position(0);
+        while (table.hasRemaining()) {
+            table.put(zeros, 0, Math.min(zeros.length, table.remaining()));
+        }
+        table.putLong(0, MAGIC);
+        table.putLong(8, capacity);
+        table.putLong(16, 0);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        table.force();
+        channel.close();
+    }
+}
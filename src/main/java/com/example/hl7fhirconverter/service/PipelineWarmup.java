@@ -0,0 +1,124 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the sample corpus ({@code converter.warmup.corpus}) through the full pipeline before the application
+ * reports ready, so the first real requests do not pay for FHIR context scanning, LinuxForHealth template
+ * loading and cold JIT.
+ * <p>
+ * Spring Boot only publishes readiness ({@code /actuator/health/readiness}) once all ApplicationRunners have
+ * finished, so this gates traffic for as long as it runs: {@code converter.warmup.iterations} passes over the
+ * corpus, cut short after {@code converter.warmup.max-duration}. Warm-up conversions are timed against a
+ * private registry and the reference-data cache is cleared afterwards, so no sample data or cold timings
+ * reach the real meters or Bundles. With {@code converter.warmup.exit=true} the application shuts down once
+ * warmed, which is how the Docker build records its class data sharing archive.
+ */
+@Component
+public class PipelineWarmup implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelineWarmup.class);
+
+    private final ConversionPipeline pipeline;
+    private final ReferenceDataCache referenceData;
+    private final ResourcePatternResolver resources;
+    private final ConfigurableApplicationContext context;
+    private final boolean enabled;
+    private final String corpus;
+    private final int iterations;
+    private final Duration maxDuration;
+    private final boolean exit;
+
+    public PipelineWarmup(ConversionPipeline pipeline,
+                          ReferenceDataCache referenceData,
+                          ResourcePatternResolver resources,
+                          ConfigurableApplicationContext context,
+                          @Value("${converter.warmup.enabled:true}") boolean enabled,
+                          @Value("${converter.warmup.corpus:classpath*:corpus/*.hl7}") String corpus,
+                          @Value("${converter.warmup.iterations:50}") int iterations,
+                          @Value("${converter.warmup.max-duration:30s}") Duration maxDuration,
+                          @Value("${converter.warmup.exit:false}") boolean exit) {
+        this.pipeline = pipeline;
+        this.referenceData = referenceData;
+        this.resources = resources;
+        this.context = context;
+        this.enabled = enabled;
+        this.corpus = corpus;
+        this.iterations = iterations;
+        this.maxDuration = maxDuration;
+        this.exit = exit;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (enabled) {
+            warmUp(loadCorpus());
+        }
+        if (exit) {
+            log.info("Warm-up finished, exiting (converter.warmup.exit=true)");
+            System.exit(SpringApplication.exit(context, () -> 0));
+        }
+    }
+
+    private List<String> loadCorpus() throws IOException {
+        List<String> messages = new ArrayList<>();
+        for (Resource r : resources.getResources(corpus)) {
+            try (InputStream in = r.getInputStream()) {
+                messages.add(StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+            }
+        }
+        return messages;
+    }
+
+    private void warmUp(List<String> messages) {
+        if (messages.isEmpty()) {
+            log.warn("No warm-up messages found at {}", corpus);
+            return;
+        }
+        ConversionMetrics scratchMetrics = new ConversionMetrics(new SimpleMeterRegistry());
+        Writer sink = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        long deadline = start + maxDuration.toNanos();
+        int converted = 0;
+        int failed = 0;
+        for (int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+            for (String message : messages) {
+                try {
+                    // Both encode paths: String (cached /api/convert) and streamed (_pretty, batch)
+                    Bundle bundle = pipeline.convert(message, scratchMetrics);
+                    pipeline.encode(bundle);
+                    pipeline.encode(bundle, sink, (converted & 1) == 1);
+                    converted++;
+                } catch (RuntimeException | IOException e) {
+                    if (failed++ == 0) log.warn("Warm-up message failed to convert", e);
+                }
+            }
+        }
+        referenceData.clear();
+        log.info("Warm-up converted {} messages ({} failed) from {} in {} ms", converted, failed, corpus,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+}
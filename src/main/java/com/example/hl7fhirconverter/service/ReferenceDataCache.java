@@ -0,0 +1,114 @@
+package com.example.hl7fhirconverter.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Practitioner, Organization and Location resources built by {@link BundleNormalizer}, kept across messages
+ * by business key (the raw PV1-7/PV1-9 XCN, IN1-3 payer id + name, MSH-4 facility + PV1-3 location) so the same provider,
+ * payer or bed is built once and carries the same id in every Bundle.
+ * <p>
+ * Cached resources are prototypes and are never handed out for mutation: each Bundle gets a deep
+ * {@link Resource#copy()}, since normalization rules and {@link TransactionBundleBuilder} change resources in
+ * place. What the cache saves is the build and the id, not the resource tree itself.
+ * <p>
+ * With {@code converter.reference-cache.references-only=true} a resource that has already been delivered in
+ * an earlier Bundle is left out and referenced by {@code Type/id} instead, on the assumption that the
+ * downstream server stored it under that id. Only Bundles of incoming messages
+ * ({@link ConversionPipeline#convertIncoming}) count or leave anything out, and a resource counts as delivered
+ * once its Bundle's {@link DeliveryReceipt} says so. Bulk jobs, journal replay and warm-up, whose output does
+ * not reach that server, always get it in full. Expired entries are emitted in full again. Thread-safe.
+ */
+@Component
+public class ReferenceDataCache {
+
+    /** What the normalizer should put in the Bundle for one reference resource. */
+    static final class Resolved<T extends Resource> {
+        /** a private copy to add to the Bundle, or the shared prototype (read-only) when {@link #referenceOnly} */
+        final T resource;
+        final boolean referenceOnly;
+
+        Resolved(T resource, boolean referenceOnly) {
+            this.resource = resource;
+            this.referenceOnly = referenceOnly;
+        }
+
+        String idPart() {
+            return resource.getIdElement().getIdPart();
+        }
+    }
+
+    private static final class Entry {
+        final Resource prototype;
+        volatile boolean delivered;
+
+        Entry(Resource prototype) {
+            this.prototype = prototype;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+    private final boolean referencesOnly;
+
+    /** Disabled: every call builds afresh. */
+    public ReferenceDataCache() {
+        this.cache = null;
+        this.referencesOnly = false;
+    }
+
+    @Autowired
+    public ReferenceDataCache(MeterRegistry registry,
+                              @Value("${converter.reference-cache.max-size:10000}") long maxSize,
+                              @Value("${converter.reference-cache.references-only:false}") boolean referencesOnly) {
+        this.referencesOnly = referencesOnly;
+        if (maxSize <= 0) {
+            this.cache = null;
+            return;
+        }
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "hl7.reference-data");
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /** Forgets every cached resource, e.g. the sample providers and payers seen during warm-up. */
+    public void clear() {
+        if (cache != null) cache.invalidateAll();
+    }
+
+    /**
+     * @param key     business key, including everything {@code build} reads so a changed name gives a new entry
+     * @param build   creates the resource, with its id set from {@link #stableId}
+     * @param receipt of the Bundle being built; {@link DeliveryReceipt#NONE} unless it is for an incoming message
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Resource> Resolved<T> resolve(String key, Supplier<T> build, DeliveryReceipt receipt) {
+        if (cache == null) return new Resolved<>(build.get(), false);
+        Entry e = cache.get(key, k -> new Entry(build.get()));
+        if (referencesOnly && receipt != DeliveryReceipt.NONE) {
+            if (e.delivered) return new Resolved<>((T) e.prototype, true);
+            receipt.onDelivery(() -> e.delivered = true);
+        }
+        return new Resolved<>((T) e.prototype.copy(), false);
+    }
+
+    /** Message-independent id for a reference resource, from its type and business identifier. */
+    static String stableId(String resourceType, String identifier) {
+        return UUID.nameUUIDFromBytes((resourceType + '|' + identifier).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
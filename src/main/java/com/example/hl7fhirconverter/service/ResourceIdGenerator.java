@@ -0,0 +1,50 @@
+package com.example.hl7fhirconverter.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Name-based (RFC 4122 version 3) resource ids for one message: each id is derived from the message
+ * control id (MSH-10), the segment or resource type it comes from, and a business identifier where there
+ * is one, so converting the same message again yields the same ids. Unlike {@link UUID#randomUUID()}
+ * this never touches the shared {@code SecureRandom}.
+ * <p>
+ * Requesting the same name twice yields distinct ids (a per-name ordinal is appended), in call order.
+ * Messages without MSH-10 fall back to a single random seed, i.e. per-conversion ids as before.
+ * Not thread-safe (one per message).
+ */
+final class ResourceIdGenerator {
+
+    private final String seed;
+    private final Map<String, Integer> issued = new HashMap<>();
+
+    ResourceIdGenerator(HL7SimpleData data) {
+        String controlId = data == null ? null : data.messageControlId;
+        if (controlId == null || controlId.isBlank()) {
+            controlId = "random:" + UUID.randomUUID();
+        } else if (data.sendingFacility != null) {
+            // control ids are only unique per sender
+            controlId = data.sendingFacility + '|' + controlId;
+        }
+        this.seed = controlId;
+    }
+
+    /**
+     * @param source     segment or resource type, e.g. {@code "PV1-3"} or {@code "Coverage"}
+     * @param identifier business identifier within that source, or null
+     * @return a UUID string such as {@code 3f2c...-...}
+     */
+    String next(String source, String identifier) {
+        String name = seed + '|' + source + '|' + (identifier == null ? "" : identifier);
+        Integer n = issued.merge(name, 1, Integer::sum);
+        if (n > 1) name = name + '#' + n;
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /** {@link #next} as a {@code urn:uuid:} value, the form {@code IdType.newRandomUuid()} produced. */
+    String nextUrn(String source, String identifier) {
+        return "urn:uuid:" + next(source, identifier);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ConceptMap;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Code translation tables used by the normalizer, loaded once at startup and immutable afterwards.
+ * <p>
+ * The built-in tables come from {@code classpath:terminology/concept-maps.csv}; sites add or override
+ * entries with {@code converter.terminology.locations}, a list of Spring resource locations, each either
+ * a CSV file (columns {@code map,source_system,source_code,target_system,target_code,target_display}) or
+ * a FHIR R4 ConceptMap in JSON (map name = ConceptMap.name). Later files win. A source system of
+ * {@code *} matches any system, including none. Source codes match regardless of case, as the hand-coded
+ * mappings these tables replaced did.
+ * <p>
+ * Each map compiles to immutable hash tables keyed by interned source system, then upper-cased code (two
+ * lookups, no allocation for a code already in upper case); the values are shared target {@link Coding}s that callers copy fields out of and must never modify.
+ */
+@Component
+public class TerminologyMaps {
+
+    private static final Logger log = LoggerFactory.getLogger(TerminologyMaps.class);
+
+    static final String DEFAULT_LOCATION = "classpath:terminology/concept-maps.csv";
+    static final String ANY_SYSTEM = "*";
+
+    /** Map names used by the built-in rules. */
+    static final String ENCOUNTER_CLASS = "encounter-class";
+    static final String SERVICE_TYPE = "service-type";
+    static final String ADMIT_SOURCE = "admit-source";
+    static final String MARITAL_STATUS = "marital-status";
+
+    /** One compiled ConceptMap. */
+    public static final class Table {
+        /** source system -> source code -> target; keys interned */
+        private final Map<String, Map<String, Coding>> targets;
+
+        private Table(Map<String, Map<String, Coding>> targets) {
+            this.targets = targets;
+        }
+
+        /**
+         * @return the target coding for {@code code}, in any case, in {@code system} (or under {@code *}), or
+         *         null when unmapped. Shared: read it, do not modify it.
+         */
+        public Coding translate(String system, String code) {
+            if (code == null) return null;
+            code = code.toUpperCase(Locale.ROOT);
+            Map<String, Coding> bySystem = targets.get(system == null ? "" : system);
+            Coding c = bySystem == null ? null : bySystem.get(code);
+            if (c == null) {
+                Map<String, Coding> any = targets.get(ANY_SYSTEM);
+                if (any != null) c = any.get(code);
+            }
+            return c;
+        }
+
+        /** Whether this map translates codes from {@code system}, i.e. an unmapped code there is not valid output. */
+        public boolean hasSource(String system) {
+            return system != null && targets.containsKey(system);
+        }
+
+        /**
+         * Copies the target of {@code source} into it, keeping its display if the target has none; returns false
+         * (leaving it untouched) when unmapped.
+         */
+        public boolean translateInPlace(Coding source) {
+            Coding target = translate(source.getSystem(), source.getCode());
+            if (target == null) return false;
+            source.setSystem(target.getSystem()).setCode(target.getCode());
+            if (target.hasDisplay()) source.setDisplay(target.getDisplay());
+            return true;
+        }
+    }
+
+    private static final Table EMPTY = new Table(Collections.emptyMap());
+
+    private final Map<String, Table> tables;
+
+    /** Built-in tables only. */
+    public static TerminologyMaps defaults() {
+        return new TerminologyMaps(new DefaultResourceLoader(), new String[0]);
+    }
+
+    @Autowired
+    public TerminologyMaps(ResourceLoader resourceLoader,
+                           @Value("${converter.terminology.locations:}") String[] locations) {
+        Map<String, Map<String, Map<String, Coding>>> building = new LinkedHashMap<>();
+        load(resourceLoader.getResource(DEFAULT_LOCATION), building);
+        for (String location : locations) {
+            if (location.isBlank()) continue;
+            Resource r = resourceLoader.getResource(location.trim());
+            if (!r.exists()) throw new IllegalStateException("Terminology map not found: " + location);
+            load(r, building);
+        }
+        Map<String, Table> compiled = new HashMap<>();
+        for (Map.Entry<String, Map<String, Map<String, Coding>>> e : building.entrySet()) {
+            Map<String, Map<String, Coding>> bySystem = new HashMap<>();
+            e.getValue().forEach((system, codes) -> bySystem.put(system, Map.copyOf(codes)));
+            compiled.put(e.getKey(), new Table(Map.copyOf(bySystem)));
+            log.debug("Terminology map {}: {} source systems", e.getKey(), bySystem.size());
+        }
+        this.tables = Map.copyOf(compiled);
+    }
+
+    /** The named table; empty (everything unmapped) if no file defines it. */
+    public Table get(String map) {
+        Table t = tables.get(map);
+        return t == null ? EMPTY : t;
+    }
+
+    private static void load(Resource r, Map<String, Map<String, Map<String, Coding>>> into) {
+        String name = r.getFilename() == null ? "" : r.getFilename().toLowerCase();
+        try (InputStream in = r.getInputStream()) {
+            if (name.endsWith(".json")) {
+                loadConceptMap(in, into);
+            } else {
+                loadCsv(in, r.getDescription(), into);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read terminology map " + r.getDescription(), e);
+        }
+    }
+
+    private static void loadCsv(InputStream in, String source, Map<String, Map<String, Map<String, Coding>>> into) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            if (line.isBlank() || line.startsWith("#") || (lineNo == 1 && line.startsWith("map,"))) continue;
+            List<String> cols = splitCsv(line);
+            if (cols.size() < 5) {
+                throw new IllegalStateException(source + ":" + lineNo + ": expected map,source_system,source_code,target_system,target_code[,target_display]");
+            }
+            put(into, cols.get(0), cols.get(1), cols.get(2), cols.get(3), cols.get(4), cols.size() > 5 ? cols.get(5) : null);
+        }
+    }
+
+    private static void loadConceptMap(InputStream in, Map<String, Map<String, Map<String, Coding>>> into) {
+        ConceptMap cm = FhirContext.forR4Cached().newJsonParser().parseResource(ConceptMap.class, in);
+        String map = cm.hasName() ? cm.getName() : cm.getIdElement().getIdPart();
+        for (ConceptMap.ConceptMapGroupComponent group : cm.getGroup()) {
+            String sourceSystem = group.hasSource() ? group.getSource() : ANY_SYSTEM;
+            for (ConceptMap.SourceElementComponent element : group.getElement()) {
+                for (ConceptMap.TargetElementComponent target : element.getTarget()) {
+                    Enumerations.ConceptMapEquivalence eq = target.getEquivalence();
+                    if (eq == Enumerations.ConceptMapEquivalence.UNMATCHED || eq == Enumerations.ConceptMapEquivalence.DISJOINT) continue;
+                    put(into, map, sourceSystem, element.getCode(), group.getTarget(), target.getCode(), target.getDisplay());
+                    break; // first usable target wins
+                }
+            }
+        }
+    }
+
+    private static void put(Map<String, Map<String, Map<String, Coding>>> into, String map, String sourceSystem, String sourceCode,
+                            String targetSystem, String targetCode, String targetDisplay) {
+        Coding target = new Coding()
+                .setSystem(emptyToNull(targetSystem))
+                .setCode(emptyToNull(targetCode))
+                .setDisplay(emptyToNull(targetDisplay));
+        into.computeIfAbsent(map.trim(), k -> new HashMap<>())
+                .computeIfAbsent(sourceSystem.trim().intern(), k -> new HashMap<>())
+                .put(sourceCode.trim().toUpperCase(Locale.ROOT).intern(), target);
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isBlank() ? null : s.trim();
+    }
+
+    /** Comma-separated, with optional double quotes around a value ({@code ""} for a literal quote). */
+    private static List<String> splitCsv(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    sb.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cols.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        cols.add(sb.toString());
+        return cols;
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns normalized {@code message} Bundles into one {@code transaction} Bundle a FHIR server can load
+ * directly, merging any number of messages and writing each shared resource once:
+ * <ul>
+ *   <li>Patient: conditional update, {@code PUT Patient?identifier=system|value} (the MR identifier, else the
+ *       first with system and value), so the latest demographics win without creating a duplicate</li>
+ *   <li>Practitioner, Organization, Location: conditional create, {@code POST} with
+ *       {@code ifNoneExist=identifier=system|value} (every identifier, ANDed), so reference data already on the
+ *       server is left alone</li>
+ *   <li>everything else: {@code POST}; MessageHeader is dropped (it describes the message, not the data)</li>
+ * </ul>
+ * Entries keep their {@code urn:uuid} fullUrls and references, which the server resolves to the ids it
+ * assigns. Resource ids are removed, as a conditional update with a mismatching body id is rejected. Two
+ * entries with the same conditional key (or the same fullUrl) become one; the later Patient replaces the
+ * earlier one, and references to the dropped fullUrl are rewritten to the one kept. Messages must be added in
+ * the order they were received.
+ * <p>
+ * Resources are moved, not copied: the added Bundles must not be used afterwards. A Bundle carrying embedded
+ * documents ({@link EmbeddedPayloads}) can only be converted on its own ({@link #of}), since its payload tokens
+ * are numbered per message. Not thread-safe.
+ */
+public final class TransactionBundleBuilder {
+
+    private static final FhirTerser TERSER = FhirContext.forR4Cached().newTerser();
+    private static final String MR = "MR";
+
+    private final Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+    private final Map<String, Bundle.BundleEntryComponent> byKey = new HashMap<>();
+    private final Map<String, Bundle.BundleEntryComponent> byFullUrl = new HashMap<>();
+    private int messages;
+
+    /**
+     * The transaction for a single message, carrying over its embedded documents, encode metrics and
+     * {@link DeliveryReceipt}.
+     */
+    public static Bundle of(Bundle message) {
+        Bundle transaction = new TransactionBundleBuilder().add(message).build();
+        transaction.setUserData(EmbeddedPayloads.USER_DATA_KEY, message.getUserData(EmbeddedPayloads.USER_DATA_KEY));
+        transaction.setUserData(ConversionMetrics.USER_DATA_KEY, message.getUserData(ConversionMetrics.USER_DATA_KEY));
+        transaction.setUserData(DeliveryReceipt.USER_DATA_KEY, message.getUserData(DeliveryReceipt.USER_DATA_KEY));
+        return transaction;
+    }
+
+    /** True if {@code message} carries embedded documents and therefore cannot be merged with others. */
+    public static boolean hasEmbeddedPayloads(Bundle message) {
+        return message.getUserData(EmbeddedPayloads.USER_DATA_KEY) != null;
+    }
+
+    /** Merges the entries of {@code message} into the transaction. */
+    public TransactionBundleBuilder add(Bundle message) {
+        if (messages == 0 && message.hasTimestamp()) {
+            transaction.setTimestampElement(message.getTimestampElement().copy());
+        }
+        messages++;
+        Map<String, String> aliases = new HashMap<>();
+        List<Resource> added = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : message.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null || resource.getResourceType() == ResourceType.MessageHeader) continue;
+            String fullUrl = fullUrl(entry);
+            String type = resource.fhirType();
+            String key = conditionalKey(resource);
+            Bundle.BundleEntryComponent existing = key != null ? byKey.get(type + '?' + key) : null;
+            if (existing == null && fullUrl != null) existing = byFullUrl.get(fullUrl);
+            if (existing != null) {
+                if (fullUrl != null && !fullUrl.equals(existing.getFullUrl())) aliases.put(fullUrl, existing.getFullUrl());
+                if (existing.getRequest().getMethod() == Bundle.HTTPVerb.PUT) {
+                    resource.setIdElement(null);
+                    existing.setResource(resource);
+                    added.add(resource);
+                }
+                continue;
+            }
+            resource.setIdElement(null);
+            Bundle.BundleEntryComponent e = transaction.addEntry().setFullUrl(fullUrl).setResource(resource);
+            Bundle.BundleEntryRequestComponent request = e.getRequest();
+            if (key != null && resource.getResourceType() == ResourceType.Patient) {
+                request.setMethod(Bundle.HTTPVerb.PUT).setUrl(type + '?' + key);
+            } else {
+                request.setMethod(Bundle.HTTPVerb.POST).setUrl(type);
+                if (key != null) request.setIfNoneExist(key);
+            }
+            if (key != null) byKey.put(type + '?' + key, e);
+            if (fullUrl != null) byFullUrl.put(fullUrl, e);
+            added.add(resource);
+        }
+        if (!aliases.isEmpty()) {
+            for (Resource resource : added) {
+                for (Reference ref : TERSER.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                    String target = aliases.get(ref.getReference());
+                    if (target != null) ref.setReference(target);
+                }
+            }
+        }
+        return this;
+    }
+
+    /** Messages added so far. */
+    public int size() {
+        return messages;
+    }
+
+    public Bundle build() {
+        return transaction;
+    }
+
+    private static String fullUrl(Bundle.BundleEntryComponent entry) {
+        if (entry.hasFullUrl()) return entry.getFullUrl();
+        Resource resource = entry.getResource();
+        if (!resource.hasIdElement() || resource.getIdElement().getIdPart() == null) return null;
+        String id = resource.getIdElement().getIdPart();
+        return id.startsWith("urn:") ? id : "urn:uuid:" + id;
+    }
+
+    /**
+     * The search that identifies the resource on the server, for the types loaded conditionally; else null.
+     * Patient: {@code identifier=system|value} of its MR identifier, else the first with system and value.
+     * Others: every identifier with system and value, ANDed ({@code identifier=a|1&identifier=b|2}), since a
+     * Location's are the parts of one PV1-3 (unit, room, bed). Values are URL-encoded.
+     */
+    static String conditionalKey(Resource resource) {
+        List<Identifier> identifiers;
+        switch (resource.getResourceType()) {
+            case Patient:
+                identifiers = ((Patient) resource).getIdentifier();
+                break;
+            case Practitioner:
+                identifiers = ((Practitioner) resource).getIdentifier();
+                break;
+            case Organization:
+                identifiers = ((Organization) resource).getIdentifier();
+                break;
+            case Location:
+                identifiers = ((Location) resource).getIdentifier();
+                break;
+            default:
+                return null;
+        }
+        boolean single = resource.getResourceType() == ResourceType.Patient;
+        Identifier first = null;
+        StringBuilder all = new StringBuilder();
+        for (Identifier id : identifiers) {
+            if (!id.hasSystem() || !id.hasValue()) continue;
+            if (single && id.getType().getCoding().stream().anyMatch(c -> MR.equals(c.getCode()))) {
+                return search(id);
+            }
+            if (first == null) first = id;
+            if (all.length() > 0) all.append('&');
+            all.append(search(id));
+        }
+        if (first == null) return null;
+        return single ? search(first) : all.toString();
+    }
+
+    private static String search(Identifier id) {
+        return "identifier=" + URLEncoder.encode(id.getSystem() + '|' + id.getValue(), StandardCharsets.UTF_8);
+    }
+}
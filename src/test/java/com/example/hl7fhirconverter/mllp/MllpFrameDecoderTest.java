@@ -0,0 +1,108 @@
+package com.example.hl7fhirconverter.mllp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MllpFrameDecoderTest {
+
+    private static final String MSG1 = "MSH|^~\\&|A|B|C|D|20240115083000||ADT^A01|1|P|2.5.1\rPID|1||123";
+    private static final String MSG2 = "MSH|^~\\&|A|B|C|D|20240115083000||ADT^A08|2|P|2.5.1\rPID|1||Zoë";
+
+    @Test
+    void decodesAFrameSplitAcrossReads() throws IOException {
+        byte[] bytes = frames(MSG2);
+        // every split point before the end block, including inside the two-byte UTF-8 sequence
+        for (int cut = 1; cut < bytes.length - 1; cut++) {
+            MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, 1 << 20);
+            assertNull(decoder.decode(ByteBuffer.wrap(bytes, 0, cut)), "cut at " + cut);
+            assertEquals(List.of(MSG2), decodeAll(decoder, ByteBuffer.wrap(bytes, cut, bytes.length - cut)));
+        }
+    }
+
+    @Test
+    void decodesSeveralFramesInOneRead() throws IOException {
+        MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, 1 << 20);
+        ByteBuffer in = ByteBuffer.wrap(frames(MSG1, MSG2, MSG1));
+        assertEquals(List.of(MSG1, MSG2, MSG1), decodeAll(decoder, in));
+    }
+
+    @Test
+    void decodesByteByByte() throws IOException {
+        MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, 1 << 20);
+        List<String> out = new ArrayList<>();
+        for (byte b : frames(MSG1, MSG2)) {
+            String s = decoder.decode(ByteBuffer.wrap(new byte[]{b}));
+            if (s != null) out.add(s);
+        }
+        assertEquals(List.of(MSG1, MSG2), out);
+    }
+
+    @Test
+    void ignoresBytesOutsideFramesAndAMissingTrailingCr() throws IOException {
+        MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, 1 << 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("noise\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.write(MllpFrameDecoder.START_BLOCK);
+        out.writeBytes(MSG1.getBytes(StandardCharsets.UTF_8));
+        out.write(MllpFrameDecoder.END_BLOCK);
+        // next frame right after the end block, no CR
+        out.writeBytes(frames(MSG2));
+        assertEquals(List.of(MSG1, MSG2), decodeAll(decoder, ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    void restartsOnAStartBlockInsideAFrame() throws IOException {
+        MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, 1 << 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MllpFrameDecoder.START_BLOCK);
+        out.writeBytes("MSH|abandoned".getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(frames(MSG1));
+        assertEquals(List.of(MSG1), decodeAll(decoder, ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    void acceptsAFrameOfExactlyTheMaximumSize() throws IOException {
+        for (int max : new int[]{100, 8192, 20_000}) {
+            MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, max);
+            String payload = "x".repeat(max);
+            assertEquals(List.of(payload), decodeAll(decoder, ByteBuffer.wrap(frames(payload))));
+        }
+    }
+
+    @Test
+    void rejectsAnOversizeFrame() {
+        for (int max : new int[]{100, 8192, 20_000}) {
+            MllpFrameDecoder decoder = new MllpFrameDecoder(StandardCharsets.UTF_8, max);
+            ByteBuffer in = ByteBuffer.wrap(frames("x".repeat(max + 1)));
+            assertThrows(IOException.class, () -> decodeAll(decoder, in), "max " + max);
+        }
+    }
+
+    private static List<String> decodeAll(MllpFrameDecoder decoder, ByteBuffer in) throws IOException {
+        List<String> out = new ArrayList<>();
+        String s;
+        while ((s = decoder.decode(in)) != null) out.add(s);
+        return out;
+    }
+
+    private static byte[] frames(String... payloads) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String p : payloads) {
+            out.write(MllpFrameDecoder.START_BLOCK);
+            out.writeBytes(p.getBytes(StandardCharsets.UTF_8));
+            out.write(MllpFrameDecoder.END_BLOCK);
+            out.write(MllpFrameDecoder.CARRIAGE_RETURN);
+        }
+        return out.toByteArray();
+    }
+}
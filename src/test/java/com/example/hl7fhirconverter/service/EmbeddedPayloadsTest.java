@@ -0,0 +1,138 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmbeddedPayloadsTest {
+
+    private byte[] document;
+    private String base64;
+    private HL7SimpleData data;
+    private String token;
+
+    @BeforeEach
+    void setUp() {
+        // larger than the writer's copy chunk
+        document = new byte[20_000];
+        new Random(7).nextBytes(document);
+        base64 = Base64.getEncoder().encodeToString(document);
+        String hl7 = "MSH|^~\\&|LAB|FAC|RECV|RF|20240115083000||ORU^R01|MSG1|P|2.5.1\r"
+                + "PID|1||123456^^^FAC^MR\r"
+                + "OBR|1\r"
+                + "OBX|1|ED|DOC^Discharge summary||LAB^AP^PDF^Base64^" + base64 + "\r";
+        data = HL7SimpleData.parse(hl7);
+        Bundle bundle = new Bundle();
+        data.payloads.attach(bundle, data);
+        token = attachment(bundle).getDataElement().getValueAsString();
+    }
+
+    @Test
+    void attachesAPayloadByReference() {
+        Bundle bundle = new Bundle();
+        data.payloads.attach(bundle, data);
+        Attachment attachment = attachment(bundle);
+        assertEquals("application/pdf", attachment.getContentType());
+        assertEquals("Discharge summary", attachment.getTitle());
+        assertEquals(document.length, attachment.getSize());
+        assertEquals(16, token.length());
+        // read in-process, the data is the decoded document
+        assertArrayEquals(document, attachment.getData());
+    }
+
+    @Test
+    void splicesATokenSplitAtEveryPointAcrossWriteCalls() throws IOException {
+        String text = "{\"data\":\"" + token + "\"}";
+        String expected = "{\"data\":\"" + base64 + "\"}";
+        for (int cut = 0; cut <= text.length(); cut++) {
+            for (int api = 0; api < 3; api++) {
+                StringWriter out = new StringWriter();
+                EmbeddedPayloads.SplicingWriter w = new EmbeddedPayloads.SplicingWriter(out, data.payloads);
+                write(w, text.substring(0, cut), api);
+                write(w, text.substring(cut), api);
+                w.flush();
+                assertEquals(expected, out.toString(), "cut at " + cut + " via api " + api);
+            }
+        }
+    }
+
+    @Test
+    void splicesATokenWrittenOneCharAtATime() throws IOException {
+        String text = "a" + token + token + "b";
+        StringWriter out = new StringWriter();
+        EmbeddedPayloads.SplicingWriter w = new EmbeddedPayloads.SplicingWriter(out, data.payloads);
+        for (int i = 0; i < text.length(); i++) w.write(text.charAt(i));
+        assertEquals("a" + base64 + base64 + "b", out.toString());
+    }
+
+    @Test
+    void passesNearMissesThrough() throws IOException {
+        String prefix = token.substring(0, 12);
+        // an unknown payload index, a prefix cut short, and a prefix that restarts inside a partial match
+        String unknown = prefix + "////";
+        String text = unknown + " " + prefix.substring(0, 7) + "\"" + prefix.substring(0, 3) + token + ".";
+        StringWriter out = new StringWriter();
+        EmbeddedPayloads.SplicingWriter w = new EmbeddedPayloads.SplicingWriter(out, data.payloads);
+        for (int i = 0; i < text.length(); i += 5) {
+            w.write(text, i, Math.min(5, text.length() - i));
+        }
+        w.close();
+        assertEquals(unknown + " " + prefix.substring(0, 7) + "\"" + prefix.substring(0, 3) + base64 + ".",
+                out.toString());
+    }
+
+    @Test
+    void closeEmitsAHeldBackPartialToken() throws IOException {
+        StringWriter out = new StringWriter();
+        EmbeddedPayloads.SplicingWriter w = new EmbeddedPayloads.SplicingWriter(out, data.payloads);
+        w.write(token.substring(0, 10));
+        w.close();
+        assertEquals(token.substring(0, 10), out.toString());
+    }
+
+    @Test
+    void encodesTheBase64TextIntoTheJsonOutput() throws IOException {
+        Bundle bundle = new Bundle();
+        data.payloads.attach(bundle, data);
+        StringWriter out = new StringWriter();
+        EmbeddedPayloads.encode(FhirContext.forR4Cached().newJsonParser(), bundle, out);
+        String json = out.toString();
+        assertTrue(json.contains("\"data\":\"" + base64 + "\""));
+        assertFalse(json.contains(token));
+    }
+
+    private static void write(EmbeddedPayloads.SplicingWriter w, String s, int api) throws IOException {
+        switch (api) {
+            case 0:
+                w.write(s, 0, s.length());
+                break;
+            case 1:
+                char[] padded = ("xx" + s + "yy").toCharArray();
+                w.write(padded, 2, s.length());
+                break;
+            default:
+                for (char c : s.toCharArray()) w.write(c);
+                break;
+        }
+    }
+
+    private static Attachment attachment(Bundle bundle) {
+        DocumentReference doc = (DocumentReference) bundle.getEntry().stream()
+                .filter(e -> e.getResource() instanceof DocumentReference)
+                .findFirst().orElseThrow().getResource();
+        return doc.getContentFirstRep().getAttachment();
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.hl7fhirconverter.service;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HL7DateTimeTest {
+
+    @Test
+    void keepsThePrecisionTheSenderGave() {
+        assertEquals(TemporalPrecisionEnum.YEAR, HL7DateTime.parseDateTime("2024").getPrecision());
+        assertEquals(TemporalPrecisionEnum.MONTH, HL7DateTime.parseDateTime("202401").getPrecision());
+        assertEquals(TemporalPrecisionEnum.DAY, HL7DateTime.parseDateTime("20240115").getPrecision());
+        assertEquals(TemporalPrecisionEnum.SECOND, HL7DateTime.parseDateTime("20240115083000").getPrecision());
+        assertEquals("2024-01", HL7DateTime.parseDateTime("202401").getValueAsString());
+        assertEquals("2024-01-15", HL7DateTime.parseDateTime("20240115").getValueAsString());
+    }
+
+    @Test
+    void widensHourAndMinutePrecisionToSeconds() {
+        DateTimeType hour = HL7DateTime.parseDateTime("2024011508+0000");
+        assertEquals(TemporalPrecisionEnum.SECOND, hour.getPrecision());
+        assertEquals("2024-01-15T08:00:00+00:00", hour.getValueAsString());
+        assertEquals("2024-01-15T08:30:00+00:00", HL7DateTime.parseDateTime("202401150830+0000").getValueAsString());
+    }
+
+    @Test
+    void readsOneToFourFractionDigits() {
+        assertEquals(100, millisOf("20240115083000.1+0000"));
+        assertEquals(120, millisOf("20240115083000.12+0000"));
+        assertEquals(123, millisOf("20240115083000.123+0000"));
+        assertEquals(123, millisOf("20240115083000.1239+0000"));
+        assertEquals(TemporalPrecisionEnum.MILLI, HL7DateTime.parseDateTime("20240115083000.1").getPrecision());
+        assertEquals("2024-01-15T08:30:00.120+00:00",
+                HL7DateTime.parseDateTime("20240115083000.12+0000").getValueAsString());
+    }
+
+    @Test
+    void appliesTheSendersOffset() {
+        assertEquals("2024-01-15T08:30:00-05:00",
+                HL7DateTime.parseDateTime("20240115083000-0500").getValueAsString());
+        assertEquals("2024-01-15T08:30:00+05:30",
+                HL7DateTime.parseDateTime("20240115083000+0530").getValueAsString());
+        assertEquals(utcMillis(2024, 1, 15, 13, 30),
+                HL7DateTime.parseDateTime("20240115083000-0500").getValue().getTime());
+    }
+
+    @Test
+    void takesValuesWithoutOffsetInTheDefaultZoneOnBothSidesOfDst() {
+        // surefire runs in America/New_York, where DST began at 2024-03-10T02:00 and ended 2024-11-03T02:00
+        assertEquals(local(2024, 1, 15, 8, 30), HL7DateTime.parseDateTime("20240115083000").getValue().getTime());
+        assertEquals(local(2024, 7, 15, 8, 30), HL7DateTime.parseDateTime("20240715083000").getValue().getTime());
+        assertEquals(local(2024, 3, 10, 1, 30), HL7DateTime.parseDateTime("20240310013000").getValue().getTime());
+        assertEquals(local(2024, 3, 10, 3, 30), HL7DateTime.parseDateTime("20240310033000").getValue().getTime());
+        assertEquals(local(2024, 11, 3, 3, 30), HL7DateTime.parseDateTime("20241103033000").getValue().getTime());
+    }
+
+    @Test
+    void instantsHaveAtLeastSecondPrecision() {
+        InstantType day = HL7DateTime.parseInstant("20240115");
+        assertEquals(TemporalPrecisionEnum.SECOND, day.getPrecision());
+        assertEquals(local(2024, 1, 15, 0, 0), day.getValue().getTime());
+        assertEquals(TemporalPrecisionEnum.MILLI, HL7DateTime.parseInstant("20240115083000.5").getPrecision());
+    }
+
+    @Test
+    void datesAreCivilWhateverTimeAndOffsetFollow() {
+        DateType dob = HL7DateTime.parseDate("19800101233000-1000");
+        assertEquals("1980-01-01", dob.getValueAsString());
+        assertEquals(TemporalPrecisionEnum.DAY, dob.getPrecision());
+        assertEquals("1980-01", HL7DateTime.parseDate("198001").getValueAsString());
+    }
+
+    @Test
+    void stopsAtAComponentSeparatorAndIgnoresSurroundingSpaces() {
+        assertEquals("2024-01-15", HL7DateTime.parseDateTime(" 20240115 ^D").getValueAsString());
+    }
+
+    @Test
+    void rejectsMalformedValues() {
+        assertNull(HL7DateTime.parseDateTime(null));
+        assertNull(HL7DateTime.parseDateTime(""));
+        assertNull(HL7DateTime.parseDateTime("202"));
+        assertNull(HL7DateTime.parseDateTime("2024011"));
+        assertNull(HL7DateTime.parseDateTime("202401150830001"));
+        assertNull(HL7DateTime.parseDateTime("20241315"));
+        assertNull(HL7DateTime.parseDateTime("20230229"));
+        assertNull(HL7DateTime.parseDateTime("20240115240000"));
+        assertNull(HL7DateTime.parseDateTime("202401150830.5"));
+        assertNull(HL7DateTime.parseDateTime("20240115083000.12345"));
+        assertNull(HL7DateTime.parseDateTime("20240115083000+05"));
+        assertNull(HL7DateTime.parseDateTime("20240115083000+0560"));
+        assertNull(HL7DateTime.parseDateTime("20240115083000+1900"));
+        assertNull(HL7DateTime.parseDateTime("20240115x"));
+        assertEquals("2024-02-29", HL7DateTime.parseDate("20240229").getValueAsString());
+    }
+
+    private static long millisOf(String dtm) {
+        return HL7DateTime.parseDateTime(dtm).getValue().getTime() % 1000;
+    }
+
+    private static long utcMillis(int year, int month, int day, int hour, int minute) {
+        return LocalDateTime.of(year, month, day, hour, minute).atZone(ZoneId.of("UTC")).toInstant().toEpochMilli();
+    }
+
+    private static long local(int year, int month, int day, int hour, int minute) {
+        return LocalDateTime.of(year, month, day, hour, minute).atZone(ZoneId.systemDefault()).toInstant()
+                .toEpochMilli();
+    }
+}
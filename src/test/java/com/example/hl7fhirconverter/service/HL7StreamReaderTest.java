@@ -0,0 +1,82 @@
+package com.example.hl7fhirconverter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HL7StreamReaderTest {
+
+    private static final String MSH1 = "MSH|^~\\&|A|B|C|D|20240115083000||ADT^A01|1|P|2.5.1";
+    private static final String MSH2 = "MSH|^~\\&|A|B|C|D|20240115083000||ADT^A08|2|P|2.5.1";
+
+    @Test
+    void splitsPlainTextAtEachMsh() throws IOException {
+        for (String eol : new String[]{"\r", "\n", "\r\n"}) {
+            String text = MSH1 + eol + "PID|1||123" + eol + MSH2 + eol + "PID|1||456" + eol;
+            assertEquals(List.of(MSH1 + "\rPID|1||123\r", MSH2 + "\rPID|1||456\r"), readAll(text), eol);
+        }
+    }
+
+    @Test
+    void splitsPlainTextAtBlankLines() throws IOException {
+        String text = "\n\n" + MSH1 + "\nPID|1||123\n\n  \nEVN|A08\nPID|1||456";
+        assertEquals(List.of(MSH1 + "\rPID|1||123\r", "EVN|A08\rPID|1||456\r"), readAll(text));
+    }
+
+    @Test
+    void readsMllpFrames() throws IOException {
+        String text = frame(MSH1 + "\rPID|1||123") + frame(MSH2 + "\rPID|1||456");
+        assertEquals(List.of(MSH1 + "\rPID|1||123", MSH2 + "\rPID|1||456"), readAll(text));
+    }
+
+    @Test
+    void trimsFramesAndSkipsEmptyOnes() throws IOException {
+        String text = frame("\r\n" + MSH1 + "\r\n") + frame("  ") + frame(MSH2);
+        assertEquals(List.of(MSH1, MSH2), readAll(text));
+    }
+
+    @Test
+    void acceptsFramesWithoutTrailingCrAndUnterminatedLastFrame() throws IOException {
+        String text = HL7StreamReader.START_BLOCK + MSH1 + HL7StreamReader.END_BLOCK
+                + HL7StreamReader.START_BLOCK + MSH2;
+        assertEquals(List.of(MSH1, MSH2), readAll(text));
+    }
+
+    @Test
+    void mixesFramingsAndEndsAPlainMessageAtAFrame() throws IOException {
+        String text = MSH1 + "\nPID|1||123\n" + frame(MSH2) + MSH1 + "\n";
+        assertEquals(List.of(MSH1 + "\rPID|1||123\r", MSH2, MSH1 + "\r"), readAll(text));
+    }
+
+    @Test
+    void dropsStrayEndBlocksOutsideFrames() throws IOException {
+        String text = MSH1 + HL7StreamReader.END_BLOCK + "\r" + "PID|1||123";
+        assertEquals(List.of(MSH1 + "\rPID|1||123\r"), readAll(text));
+    }
+
+    @Test
+    void returnsNullOnceExhausted() throws IOException {
+        HL7StreamReader reader = new HL7StreamReader(new StringReader("\n\r\n"));
+        assertNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    private static List<String> readAll(String text) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (HL7StreamReader reader = new HL7StreamReader(new StringReader(text))) {
+            String msg;
+            while ((msg = reader.next()) != null) out.add(msg);
+        }
+        return out;
+    }
+
+    private static String frame(String payload) {
+        return HL7StreamReader.START_BLOCK + payload + HL7StreamReader.END_BLOCK + "\r";
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.hl7fhirconverter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HL7TokenizerTest {
+
+    private static final String[] SEGMENTS = {
+            "MSH|^~\\&|EPIC|TRINITY HEALTH MINOT|FHIRSVC|RECV|20240115083000||ADT^A01|MSG00001|P|2.5.1",
+            "EVN|A01|20240115083000",
+            "PID|1||123456^^^TRINITY^MR~987654321^^^SSA^SS||DOE^JOHN^Q^^MR||19800101|M",
+            "PV1|1|I|ER^101^1||||004777^AARON^ATTEND|||||||||||V0012345||||||",
+            "NK1|1|DOE^JANE|SPO^Spouse||^^^^",
+            "AL1|1|DA|PCN^Penicillin|SV|Hives|||",
+            "ZZZ",
+            "OBX|1|ED|||^^^^"
+    };
+
+    @Test
+    void fieldsAndComponentsMatchStringSplit() {
+        HL7Tokenizer t = new HL7Tokenizer(String.join("\r", SEGMENTS));
+        for (String segment : SEGMENTS) {
+            assertTrue(t.nextSegment());
+            String[] fields = segment.split("\\|");
+            assertEquals(fields.length, t.fieldCount(), segment);
+            for (int i = 0; i < fields.length; i++) {
+                assertEquals(fields[i], t.field(i), segment + " field " + i);
+                String[] comps = fields[i].split("\\^");
+                assertEquals(comps.length, t.splitComponents(i), segment + " field " + i);
+                for (int c = 0; c < comps.length; c++) {
+                    assertEquals(comps[c], t.component(c), segment + " field " + i + " component " + c);
+                }
+            }
+            assertNull(t.field(fields.length));
+        }
+        assertFalse(t.nextSegment());
+    }
+
+    @Test
+    void takesDelimitersFromMsh1AndMsh2() {
+        String msg = "MSH#*@\\%#EPIC#FAC#RECV#RF#20240115083000##ADT*A08#MSG1#P#2.5.1\n"
+                + "PID#1##123456*x*y@654321##DOE*JOHN";
+        HL7Tokenizer t = new HL7Tokenizer(msg);
+        assertTrue(t.nextSegment());
+        assertEquals('#', t.fieldSeparator());
+        assertEquals("ADT*A08", t.field(8));
+        assertEquals(2, t.splitComponents(8));
+        assertEquals("A08", t.component(1));
+
+        assertTrue(t.nextSegment());
+        assertTrue(t.segmentIs("PID"));
+        assertEquals("123456*x*y", t.firstRepetition(3));
+        assertEquals(2, t.splitComponents(5));
+        assertEquals("JOHN", t.component(1));
+        assertTrue(t.fieldIs(1, "1"));
+        assertFalse(t.nextSegment());
+    }
+
+    @Test
+    void customDelimitersSplitLikeStringSplit() {
+        String segment = "PID#1##123456*x*y@654321##DOE*JOHN**##";
+        HL7Tokenizer t = new HL7Tokenizer("MSH#*@\\%#A\r" + segment);
+        t.nextSegment();
+        t.nextSegment();
+        String[] fields = segment.split(Pattern.quote("#"));
+        assertEquals(fields.length, t.fieldCount());
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(fields[i], t.field(i));
+            assertEquals(fields[i].split(Pattern.quote("*")).length, t.splitComponents(i));
+        }
+    }
+
+    @Test
+    void acceptsCrLfAndBlankLinesBetweenSegments() {
+        HL7Tokenizer t = new HL7Tokenizer("\r\nMSH|^~\\&|A\r\n\r\nPID|1\n\nPV1|1|I\r");
+        assertTrue(t.nextSegment());
+        assertTrue(t.segmentIs("MSH"));
+        assertTrue(t.nextSegment());
+        assertTrue(t.segmentIs("PID"));
+        assertEquals(2, t.fieldCount());
+        assertTrue(t.nextSegment());
+        assertEquals("I", t.field(2));
+        assertFalse(t.nextSegment());
+    }
+
+    @Test
+    void growsPastItsInitialFieldIndex() {
+        StringBuilder sb = new StringBuilder("MSH|^~\\&|A\rOBX");
+        for (int i = 1; i <= 300; i++) sb.append('|').append(i);
+        HL7Tokenizer t = new HL7Tokenizer(sb.toString());
+        t.nextSegment();
+        t.nextSegment();
+        assertEquals(301, t.fieldCount());
+        assertEquals("300", t.field(300));
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.hl7fhirconverter.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageDeduplicatorTest {
+
+    private static final int WINDOW_SIZE = 8;
+    private static final long NOW = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void evictionKeepsEveryOtherKeyOfItsProbeSequenceFindable() throws IOException {
+        MessageDeduplicator dedup = open();
+        Random random = new Random(42);
+        // the ring, oldest first, as the deduplicator should hold it
+        Deque<Long> ring = new ArrayDeque<>();
+        Set<Long> evicted = new HashSet<>();
+        for (int step = 0; step < 2000; step++) {
+            long key = collidingKey(random);
+            dedup.record(key, content(key), NOW);
+            if (!ring.contains(key)) {
+                if (ring.size() == WINDOW_SIZE) evicted.add(ring.removeFirst());
+                ring.addLast(key);
+                evicted.remove(key);
+            }
+            assertWindow(dedup, ring, evicted, step);
+        }
+        dedup.close();
+
+        // the index is rebuilt from the ring on startup
+        MessageDeduplicator reopened = open();
+        assertWindow(reopened, ring, evicted, -1);
+        reopened.close();
+    }
+
+    @Test
+    void sameIdWithOtherContentIsAReusedId() throws IOException {
+        MessageDeduplicator dedup = open();
+        dedup.record(17, 1, NOW);
+        assertEquals(MessageDeduplicator.Verdict.DUPLICATE, dedup.check(17, 1, NOW));
+        assertEquals(MessageDeduplicator.Verdict.REUSED_ID, dedup.check(17, 2, NOW));
+        assertEquals(MessageDeduplicator.Verdict.NEW, dedup.check(18, 1, NOW));
+        // past the window only the Bloom filter remembers it
+        assertEquals(MessageDeduplicator.Verdict.PROBABLE_DUPLICATE,
+                dedup.check(17, 1, NOW + Duration.ofDays(2).toMillis()));
+        dedup.close();
+    }
+
+    private void assertWindow(MessageDeduplicator dedup, Deque<Long> ring, Set<Long> evicted, int step) {
+        for (long key : ring) {
+            assertEquals(MessageDeduplicator.Verdict.DUPLICATE, dedup.check(key, content(key), NOW),
+                    "key " + key + " at step " + step);
+        }
+        // out of the exact window; the Bloom filter still has them
+        for (long key : evicted) {
+            assertEquals(MessageDeduplicator.Verdict.PROBABLE_DUPLICATE, dedup.check(key, content(key), NOW),
+                    "evicted key " + key + " at step " + step);
+        }
+    }
+
+    /** Keys whose index home is one of the last two or first two of the 16 slots, so probes wrap around. */
+    private static long collidingKey(Random random) {
+        int home = (14 + random.nextInt(4)) & 15;
+        return home + 16L * (1 + random.nextInt(20));
+    }
+
+    private static long content(long key) {
+        return key * 0x9e3779b97f4a7c15L;
+    }
+
+    private MessageDeduplicator open() throws IOException {
+        return new MessageDeduplicator(true, dir.resolve("messages.dedup").toString(), Duration.ofDays(1),
+                WINDOW_SIZE, Duration.ofDays(7), 1000, 0.01, false, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.hl7fhirconverter.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageJournalTest {
+
+    private static final int SEGMENT_BYTES = 256;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoversTheEntriesNotMarkedDone() throws IOException {
+        MessageJournal journal = open();
+        long a = journal.append("MSH|A");
+        long b = journal.append("MSH|B");
+        long c = journal.append("MSH|C");
+        journal.done(b);
+        journal.close();
+
+        MessageJournal reopened = open();
+        assertEquals(List.of("MSH|A", "MSH|C"), messages(reopened));
+        assertEquals(List.of(a, c), sequences(reopened));
+        // new entries continue after the recovered ones
+        assertTrue(reopened.append("MSH|D") > c);
+        reopened.close();
+    }
+
+    @Test
+    void stopsAtATornRecord() throws IOException {
+        MessageJournal journal = open();
+        journal.append("MSH|A");
+        journal.append("MSH|" + "B".repeat(20));
+        journal.close();
+
+        // a write cut short by a crash: part of the last payload never reached the disk
+        Path segment = segment(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int torn = indexOf(bytes, "BBBB".getBytes(StandardCharsets.US_ASCII));
+        bytes[torn + 2] = 0;
+        Files.write(segment, bytes);
+
+        MessageJournal reopened = open();
+        assertEquals(List.of("MSH|A"), messages(reopened));
+        // the journal stays writable and the next recovery sees the new entry
+        reopened.append("MSH|C");
+        reopened.close();
+        MessageJournal again = open();
+        assertEquals(List.of("MSH|A", "MSH|C"), messages(again));
+        again.close();
+    }
+
+    @Test
+    void recoversACompactedEntryOnceWhenBothCopiesSurvive() throws IOException {
+        MessageJournal journal = open();
+        String payload = "MSH|" + "A".repeat(36);
+        long kept = journal.append(payload);
+        for (int i = 0; i < 2; i++) journal.done(journal.append("MSH|" + "x".repeat(36)));
+
+        // the head segment as a crash between compaction and its deletion would leave it
+        Path head = segment(0);
+        byte[] beforeCompaction = Files.readAllBytes(head);
+        journal.done(journal.append("MSH|" + "y".repeat(36)));
+        assertFalse(Files.exists(head), "head segment compacted away");
+        journal.close();
+        Files.write(head, beforeCompaction);
+
+        MessageJournal reopened = open();
+        assertEquals(List.of(payload), messages(reopened));
+        assertEquals(List.of(kept), sequences(reopened));
+        // the live copy is the later one, so the stale head holds nothing open
+        assertFalse(Files.exists(head), "stale head segment deleted");
+        reopened.done(kept);
+        reopened.close();
+
+        MessageJournal again = open();
+        assertEquals(List.of(), messages(again));
+        again.close();
+    }
+
+    private MessageJournal open() throws IOException {
+        return new MessageJournal(true, dir.toString(), SEGMENT_BYTES);
+    }
+
+    private Path segment(long baseSequence) {
+        return dir.resolve(String.format("%020d.journal", baseSequence));
+    }
+
+    private static List<String> messages(MessageJournal journal) {
+        return journal.recovered().stream().map(MessageJournal.Entry::getMessage).collect(Collectors.toList());
+    }
+
+    private static List<Long> sequences(MessageJournal journal) {
+        return journal.recovered().stream().map(MessageJournal.Entry::getSequence).collect(Collectors.toList());
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j]) continue outer;
+            }
+            return i;
+        }
+        throw new AssertionError("not found");
+    }
+}